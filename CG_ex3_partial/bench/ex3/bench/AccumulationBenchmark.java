@@ -0,0 +1,162 @@
+package ex3.bench;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CountDownLatch;
+
+import ex3.image.ConcurrentFrameBuffer;
+import ex3.image.HdrFrameBuffer;
+import ex3.image.SampleBuffer;
+
+/**
+ * Measures how sample accumulation scales with the number of threads adding
+ * samples at once: ConcurrentFrameBuffer against an HdrFrameBuffer behind a
+ * single lock.
+ *
+ * Two access patterns are measured: "spread", where every thread sweeps the
+ * whole image starting at a different line (like workers rendering passes of
+ * a progressive render), and "hot", where all threads add to the same small
+ * block of pixels. While the threads run, another thread takes snapshots of
+ * the buffer as the GUI would.
+ *
+ * Usage: AccumulationBenchmark [<samples per thread>] [<max threads>]
+ */
+public class AccumulationBenchmark {
+
+	private static final int WIDTH = 640;
+	private static final int HEIGHT = 480;
+
+	// Side of the block of pixels of the "hot" pattern
+	private static final int HOT_SIZE = 16;
+
+	public static void main(String[] args) throws InterruptedException {
+		int samples = args.length > 0 ? Integer.valueOf(args[0]) : 2000000;
+		int maxThreads = args.length > 1 ? Integer.valueOf(args[1]) : 64;
+
+		System.out.printf("%-8s %-7s %16s %16s %12s%n", "pattern", "threads",
+				"lock-free Ms/s", "locked Ms/s", "snapshots/s");
+
+		for (boolean hot : new boolean[] { false, true }) {
+			for (int threads = 1; threads <= maxThreads; threads *= 2) {
+				// Warm up both before measuring
+				run(new ConcurrentFrameBuffer(WIDTH, HEIGHT), threads,
+						samples / 10, hot);
+				run(new LockedBuffer(), threads, samples / 10, hot);
+
+				Result lockFree = run(new ConcurrentFrameBuffer(WIDTH, HEIGHT),
+						threads, samples, hot);
+				Result locked = run(new LockedBuffer(), threads, samples, hot);
+				System.out.printf("%-8s %-7d %16.1f %16.1f %12.1f%n",
+						hot ? "hot" : "spread", threads,
+						lockFree.samplesPerSecond / 1e6,
+						locked.samplesPerSecond / 1e6,
+						lockFree.snapshotsPerSecond);
+			}
+		}
+	}
+
+	private static class Result {
+		double samplesPerSecond;
+		double snapshotsPerSecond;
+	}
+
+	/**
+	 * Adds samples from several threads at once, and takes snapshots until they
+	 * are done.
+	 */
+	private static Result run(final SampleBuffer buffer, int threads,
+			final int samples, final boolean hot) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++) {
+			final int firstLine = t * HEIGHT / threads;
+			Thread worker = new Thread(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					addSamples(buffer, samples, firstLine, hot);
+					done.countDown();
+				}
+			});
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		BufferedImage canvas = new BufferedImage(WIDTH, HEIGHT,
+				BufferedImage.TYPE_INT_RGB);
+		long begin = System.nanoTime();
+		start.countDown();
+		int snapshots = 0;
+		while (done.getCount() > 0) {
+			snapshot(buffer, canvas);
+			snapshots++;
+		}
+		long nanos = System.nanoTime() - begin;
+
+		Result result = new Result();
+		result.samplesPerSecond = (double) samples * threads / nanos * 1e9;
+		result.snapshotsPerSecond = snapshots / (nanos / 1e9);
+		return result;
+	}
+
+	private static void addSamples(SampleBuffer buffer, int samples,
+			int firstLine, boolean hot) {
+		int x = 0;
+		int y = hot ? firstLine % HOT_SIZE : firstLine;
+		int width = hot ? HOT_SIZE : WIDTH;
+		int height = hot ? HOT_SIZE : HEIGHT;
+		for (int i = 0; i < samples; i++) {
+			buffer.addSample(x, y, 0.25, 0.5, 0.75);
+			if (++x == width) {
+				x = 0;
+				if (++y == height) {
+					y = 0;
+				}
+			}
+		}
+	}
+
+	private static void snapshot(SampleBuffer buffer, BufferedImage canvas) {
+		if (buffer instanceof ConcurrentFrameBuffer) {
+			((ConcurrentFrameBuffer) buffer).snapshot(canvas);
+		} else {
+			((LockedBuffer) buffer).snapshot(canvas);
+		}
+	}
+
+	/**
+	 * The alternative: a frame buffer with one lock around every access.
+	 */
+	private static class LockedBuffer implements SampleBuffer {
+
+		private HdrFrameBuffer frameBuffer = new HdrFrameBuffer(WIDTH, HEIGHT);
+
+		@Override
+		public int getWidth() {
+			return WIDTH;
+		}
+
+		@Override
+		public int getHeight() {
+			return HEIGHT;
+		}
+
+		@Override
+		public synchronized void addSample(int x, int y, double r, double g,
+				double b) {
+			frameBuffer.addSample(x, y, r, g, b);
+		}
+
+		@Override
+		public synchronized int getSampleCount(int x, int y) {
+			return frameBuffer.getSampleCount(x, y);
+		}
+
+		public synchronized void snapshot(BufferedImage canvas) {
+			frameBuffer.toImage(canvas);
+		}
+	}
+}
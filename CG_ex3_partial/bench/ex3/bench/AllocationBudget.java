@@ -0,0 +1,647 @@
+package ex3.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import com.sun.management.ThreadMXBean;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedMethod;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+import lights.Light;
+import lights.OmniLight;
+import lights.SpotLight;
+import math.Ray;
+import math.Vec;
+import shapes.Intersection;
+import ex3.headless.BatchRenderer;
+import ex3.headless.HeadlessRenderer;
+import ex3.parser.Element;
+import ex3.parser.SceneDescriptor;
+import ex3.render.RenderStats;
+import ex3.render.raytrace.Scene;
+
+/**
+ * Measures how many bytes Scene.calcColor allocates per primary, shadow and
+ * reflected ray for every bundled scene, and fails when that goes over the
+ * budgets, since garbage collection is what makes renders jitter.
+ *
+ * The allocations are read from the thread's allocation counter
+ * (com.sun.management.ThreadMXBean.getThreadAllocatedBytes) around runs over
+ * the pixels of the scene, on this thread only. The kinds of rays can't be
+ * run apart, so they're told apart like this:
+ *
+ * shadow - the shadow test of every hit towards every point light (the
+ * vector to the light, the ray and its closest hit), on its own
+ * primary - calcColor of the primary rays, with one level of recursion, less
+ * their shadow rays
+ * reflection - calcColor of the rays reflected off their hits, at the last
+ * level of recursion, less their shadow rays
+ *
+ * Every ray's share includes the shading of its hit, and the recursion call
+ * that stops right away. Each measurement is the lowest of a few runs after
+ * warming up.
+ *
+ * The harness measures the allocations as written, with escape analysis off:
+ * with it on, which allocations the JIT removes depends on what it compiled
+ * when, and the same scene measured from one run to the next would differ by
+ * hundreds of bytes per ray. So unless the JVM runs with
+ * -XX:-DoEscapeAnalysis, the harness runs itself again in one that does.
+ *
+ * The budgets are the bytes per ray of every scene in the budget file; a
+ * scene is over budget when it allocates more than the threshold over them,
+ * and by more than SLACK_BYTES (less than any object with a field), since
+ * the budgets of scenes that hardly allocate are too small for percents. When a scene is over budget, or with -sites, the harness
+ * also prints the call sites that allocate the most, from a Flight Recorder
+ * recording of the allocations (on JVMs that have it).
+ *
+ * Usage: AllocationBudget [-scenes <directory>] [-size <width> <height>]
+ * [-runs <n>] [-threshold <percent>] [-budgets <file>] [-sites] [-record]
+ *
+ * With -record the measurements are written as the new budgets. Exits with 1
+ * when over budget, 0 otherwise.
+ */
+public class AllocationBudget {
+
+	private static final double SLACK_BYTES = 16;
+
+	// Allocation call sites printed, and how much to allocate while recording
+	// them
+	private static final int TOP_SITES = 15;
+	private static final long PROFILE_BYTES = 256L << 20;
+
+	private File scenes = new File("scenes");
+	private int width = 160;
+	private int height = 120;
+	private int runs = 5;
+	private double threshold = 5;
+	private File budgetFile = new File("bench/allocation-budgets.properties");
+	private boolean sites;
+	private boolean record;
+
+	private ThreadMXBean threads;
+
+	/**
+	 * Bytes per ray of one scene.
+	 */
+	private static class Result {
+		String scene;
+		String status = "OK";
+		boolean overBudget;
+		double[] bytesPerRay = new double[RenderStats.Kind.values().length];
+	}
+
+	/**
+	 * The rays counted, and bytes allocated, in a run.
+	 */
+	private static class Run {
+		long[] rays = new long[RenderStats.Kind.values().length];
+		long bytes;
+	}
+
+	/**
+	 * Something to measure the allocations of.
+	 */
+	private abstract class Workload {
+
+		/**
+		 * Runs the workload once.
+		 *
+		 * @return The rays it traced, and the bytes it allocated
+		 */
+		abstract Run run();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (escapeAnalysis()) {
+			System.exit(runWithoutEscapeAnalysis(args));
+		}
+
+		AllocationBudget harness = new AllocationBudget();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-scenes")) {
+				harness.scenes = new File(args[++i]);
+			} else if (args[i].equals("-size")) {
+				harness.width = Integer.valueOf(args[++i]);
+				harness.height = Integer.valueOf(args[++i]);
+			} else if (args[i].equals("-runs")) {
+				harness.runs = Integer.valueOf(args[++i]);
+			} else if (args[i].equals("-threshold")) {
+				harness.threshold = Double.valueOf(args[++i]);
+			} else if (args[i].equals("-budgets")) {
+				harness.budgetFile = new File(args[++i]);
+			} else if (args[i].equals("-sites")) {
+				harness.sites = true;
+			} else if (args[i].equals("-record")) {
+				harness.record = true;
+			} else {
+				System.err.println("Unknown option " + args[i]);
+				System.exit(2);
+			}
+		}
+		System.exit(harness.run() ? 0 : 1);
+	}
+
+	/**
+	 * @return Whether the JIT of this JVM does escape analysis
+	 */
+	private static boolean escapeAnalysis() {
+		HotSpotDiagnosticMXBean hotspot = ManagementFactory
+				.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+		if (hotspot == null) {
+			return false;
+		}
+		try {
+			return Boolean.valueOf(hotspot.getVMOption("DoEscapeAnalysis")
+					.getValue());
+		} catch (IllegalArgumentException e) {
+			return false; // No such option
+		}
+	}
+
+	/**
+	 * Runs the harness in a JVM like this one (same Java and class path),
+	 * without escape analysis.
+	 *
+	 * @return The exit code of the harness
+	 */
+	private static int runWithoutEscapeAnalysis(String[] args)
+			throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java");
+		command.add("-XX:-DoEscapeAnalysis");
+		command.add("-Djava.awt.headless=true");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(AllocationBudget.class.getName());
+		command.addAll(Arrays.asList(args));
+		ProcessBuilder pb = new ProcessBuilder(command);
+		pb.inheritIO();
+		return pb.start().waitFor();
+	}
+
+	/**
+	 * Runs the harness.
+	 *
+	 * @return false if some scene is over budget
+	 */
+	private boolean run() throws Exception {
+		try {
+			threads = (ThreadMXBean) ManagementFactory
+					.getThreadMXBean();
+			threads.setThreadAllocatedMemoryEnabled(true);
+		} catch (ClassCastException e) {
+			System.out.println("This JVM can't count allocated bytes");
+			return true;
+		} catch (UnsupportedOperationException e) {
+			System.out.println("This JVM can't count allocated bytes");
+			return true;
+		}
+
+		List<File> files = new ArrayList<File>();
+		for (File file : BatchRenderer.findScenes(scenes.getPath())) {
+			if (!file.getName().contains(" copy")) {
+				files.add(file);
+			}
+		}
+		System.out.printf("Measuring %d scenes at %dx%d%n", files.size(),
+				width, height);
+		System.out.printf("%-48s %14s %14s %14s%n", "scene", "primary B/ray",
+				"shadow B/ray", "reflect B/ray");
+
+		List<Result> results = new ArrayList<Result>();
+		for (File file : files) {
+			Result result = measure(file);
+			results.add(result);
+			if (!result.status.equals("OK")) {
+				System.out.printf("%-48s %s%n", result.scene, result.status);
+			} else {
+				System.out.printf("%-48s %14.1f %14.1f %14.1f%n", result.scene,
+						result.bytesPerRay[RenderStats.Kind.PRIMARY.ordinal()],
+						result.bytesPerRay[RenderStats.Kind.SHADOW.ordinal()],
+						result.bytesPerRay[RenderStats.Kind.REFLECTION.ordinal()]);
+			}
+		}
+
+		if (record) {
+			writeBudgets(results);
+			System.out.println("Budgets written to " + budgetFile);
+			return true;
+		}
+		boolean ok = true;
+		List<File> overBudget = new ArrayList<File>();
+		if (!budgetFile.exists()) {
+			System.out.println("No budgets at " + budgetFile
+					+ ", run with -record to create them");
+		} else {
+			ok = compare(results, readBudgets());
+			for (int i = 0; i < results.size(); i++) {
+				if (results.get(i).overBudget) {
+					overBudget.add(files.get(i));
+				}
+			}
+		}
+		if (sites) {
+			overBudget = files;
+		}
+		for (File file : overBudget) {
+			printCallSites(file);
+		}
+		return ok;
+	}
+
+	/**
+	 * Builds the scene of a scene file, with the given recursion level.
+	 */
+	private Scene buildScene(SceneDescriptor descriptor, File file, int levels) {
+		Map<String, String> attributes = new HashMap<String, String>(
+				descriptor.getSceneAttributes());
+		attributes.put("max-recursion-level", String.valueOf(levels));
+		Scene scene = new Scene(width, height, file);
+		scene.init(attributes);
+		for (Element e : descriptor.getObjects()) {
+			scene.addObjectByName(e.getName(), e.getAttributes());
+		}
+		scene.setCameraAttributes(descriptor.getCameraAttributes());
+		scene.prepare();
+		return scene;
+	}
+
+	/**
+	 * The primary rays through the center of every pixel.
+	 */
+	private Ray[] primaryRays(Scene scene) {
+		Ray[] rays = new Ray[width * height];
+		for (int i = 0; i < rays.length; i++) {
+			rays[i] = scene.castRay(i % width, i / width, width, height);
+		}
+		return rays;
+	}
+
+	/**
+	 * Measures the bytes per ray of one scene.
+	 */
+	private Result measure(File file) {
+		Result result = new Result();
+		result.scene = file.getPath().replace(File.separatorChar, '/');
+		try {
+			SceneDescriptor descriptor = new HeadlessRenderer(file).parse();
+			Scene one = buildScene(descriptor, file, 1);
+			Scene two = buildScene(descriptor, file, 2);
+			Ray[] rays = primaryRays(one);
+
+			int[] pixels = new int[rays.length];
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = i;
+			}
+
+			// The rays reflected off the hits of the primary rays
+			List<Ray> reflections = new ArrayList<Ray>();
+			List<Integer> reflectionPixels = new ArrayList<Integer>();
+			for (int i = 0; i < rays.length; i++) {
+				Intersection hit = one.findIntersection(rays[i]);
+				if (hit != null) {
+					Vec normal = hit.object.getNormalAtPoint(hit.point);
+					reflections.add(new Ray(hit.point, rays[i].v.reflect(normal)));
+					reflectionPixels.add(i);
+				}
+			}
+			int[] reflected = new int[reflectionPixels.size()];
+			for (int i = 0; i < reflected.length; i++) {
+				reflected[i] = reflectionPixels.get(i);
+			}
+
+			Run shadow = best(shadows(one, rays, descriptor));
+			Run primary = best(calcColors(one, rays, 0, pixels));
+			Run reflection = best(calcColors(two, reflections.toArray(new Ray[reflected.length]), 1, reflected));
+
+			int p = RenderStats.Kind.PRIMARY.ordinal();
+			int s = RenderStats.Kind.SHADOW.ordinal();
+			int r = RenderStats.Kind.REFLECTION.ordinal();
+			double shadowBytes = shadow.rays[s] == 0 ? 0 : (double) shadow.bytes
+					/ shadow.rays[s];
+			result.bytesPerRay[s] = shadowBytes;
+			result.bytesPerRay[p] = (primary.bytes - shadowBytes
+					* primary.rays[s]) / primary.rays[p];
+			result.bytesPerRay[r] = reflection.rays[r] == 0 ? 0
+					: (reflection.bytes - shadowBytes * reflection.rays[s])
+							/ reflection.rays[r];
+		} catch (Exception e) {
+			Throwable cause = e;
+			while (cause.getCause() != null) {
+				cause = cause.getCause();
+			}
+			result.status = cause.toString();
+		}
+		return result;
+	}
+
+
+	/**
+	 * Runs a workload a few times after warming up, and keeps the run that
+	 * allocated the least.
+	 */
+	private Run best(Workload workload) {
+		Run best = null;
+		for (int run = -runs; run < runs; run++) {
+			Run current = workload.run();
+			if (run >= 0 && (best == null || current.bytes < best.bytes)) {
+				best = current;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * calcColor of rays at a recursion level.
+	 *
+	 * @param pixels
+	 *            The pixel of every ray, as y * width + x
+	 */
+	private Workload calcColors(final Scene scene, final Ray[] rays,
+			final int level, final int[] pixels) {
+		return new Workload() {
+			@Override
+			Run run() {
+				Run run = new Run();
+				RenderStats stats = scene.getStats();
+				for (RenderStats.Kind kind : RenderStats.Kind.values()) {
+					run.rays[kind.ordinal()] = -stats.getRays(kind);
+				}
+
+				long id = Thread.currentThread().getId();
+				long start = threads.getThreadAllocatedBytes(id);
+				for (int i = 0; i < rays.length; i++) {
+					scene.calcColor(rays[i], level, pixels[i] % width, pixels[i] / width);
+				}
+				run.bytes = threads.getThreadAllocatedBytes(id) - start;
+
+				for (RenderStats.Kind kind : RenderStats.Kind.values()) {
+					run.rays[kind.ordinal()] += stats.getRays(kind);
+				}
+				return run;
+			}
+		};
+	}
+
+	// Keeps the JIT from dropping the shadow tests
+	private static volatile long sink;
+
+	/**
+	 * The shadow tests calcColor does from the hits of the primary rays: from
+	 * every hit towards every point light.
+	 */
+	private Workload shadows(final Scene scene, Ray[] rays,
+			SceneDescriptor descriptor) {
+		List<Light> lights = new ArrayList<Light>();
+		for (Element e : descriptor.getObjects()) {
+			if (e.getName().equals("omni-light")) {
+				lights.add(new OmniLight(e.getAttributes()));
+			} else if (e.getName().equals("spot-light")) {
+				lights.add(new SpotLight(e.getAttributes()));
+			}
+		}
+		List<Intersection> hits = new ArrayList<Intersection>();
+		for (Ray ray : rays) {
+			Intersection hit = scene.findIntersection(ray);
+			if (hit != null) {
+				hits.add(hit);
+			}
+		}
+		final Light[] shadowLights = lights.toArray(new Light[lights.size()]);
+		final Intersection[] shadowHits = hits.toArray(new Intersection[hits.size()]);
+
+		return new Workload() {
+			@Override
+			Run run() {
+				Run run = new Run();
+				long id = Thread.currentThread().getId();
+				long start = threads.getThreadAllocatedBytes(id);
+				long occluded = 0;
+				for (Light light : shadowLights) {
+					for (Intersection hit : shadowHits) {
+						Vec fromIntersectionToLightSource = light.vectorToMe(hit.point);
+						Ray shadowRay = new Ray(hit.point, fromIntersectionToLightSource);
+						if (scene.findIntersection(shadowRay) != null) {
+							occluded++;
+						}
+					}
+				}
+				run.bytes = threads.getThreadAllocatedBytes(id) - start;
+				run.rays[RenderStats.Kind.SHADOW.ordinal()] = (long) shadowHits.length
+						* shadowLights.length;
+				sink += occluded;
+				return run;
+			}
+		};
+	}
+
+	/**
+	 * Checks the results against the budgets, and prints what's over.
+	 *
+	 * @return false if some scene is over budget
+	 */
+	private boolean compare(List<Result> results, Properties budgets) {
+		if (Integer.valueOf(budgets.getProperty("width")) != width
+				|| Integer.valueOf(budgets.getProperty("height")) != height) {
+			System.out.println("The budgets were recorded at "
+					+ budgets.getProperty("width") + "x"
+					+ budgets.getProperty("height") + ", not comparing");
+			return true;
+		}
+
+		List<String> overBudget = new ArrayList<String>();
+		double most = 1 + threshold / 100;
+		for (Result result : results) {
+			if (!result.status.equals("OK")) {
+				continue;
+			}
+			for (RenderStats.Kind kind : RenderStats.Kind.values()) {
+				String budget = budgets.getProperty("scene." + result.scene + "."
+						+ kind.name().toLowerCase());
+				if (budget == null) {
+					continue; // New scene
+				}
+				double bytes = result.bytesPerRay[kind.ordinal()];
+				double allowed = Double.valueOf(budget);
+				if (bytes > allowed * most && bytes > allowed + SLACK_BYTES) {
+					result.overBudget = true;
+					overBudget.add(String.format(
+							"%s allocates %.1f bytes per %s ray, budget %.1f",
+							result.scene, bytes, kind.name().toLowerCase(),
+							allowed));
+				}
+			}
+		}
+
+		for (String line : overBudget) {
+			System.out.println("OVER BUDGET: " + line);
+		}
+		System.out.println(overBudget.isEmpty() ? "PASSED" : "FAILED");
+		return overBudget.isEmpty();
+	}
+
+	private Properties readBudgets() throws IOException {
+		Properties budgets = new Properties();
+		InputStream in = new FileInputStream(budgetFile);
+		try {
+			budgets.load(in);
+		} finally {
+			in.close();
+		}
+		return budgets;
+	}
+
+	/**
+	 * Writes the results as the budgets, one property per line, sorted so
+	 * that budgets diff well.
+	 */
+	private void writeBudgets(List<Result> results) throws IOException {
+		Properties budgets = new Properties();
+		budgets.setProperty("width", String.valueOf(width));
+		budgets.setProperty("height", String.valueOf(height));
+		for (Result result : results) {
+			if (!result.status.equals("OK")) {
+				continue;
+			}
+			for (RenderStats.Kind kind : RenderStats.Kind.values()) {
+				budgets.setProperty("scene." + result.scene + "."
+						+ kind.name().toLowerCase(), String.format("%.1f",
+						result.bytesPerRay[kind.ordinal()]));
+			}
+		}
+
+		// Let Properties escape, but drop its date and sort the lines
+		StringWriter text = new StringWriter();
+		budgets.store(text, null);
+		List<String> lines = new ArrayList<String>();
+		for (String line : text.toString().split("\\r?\\n")) {
+			if (!line.startsWith("#")) {
+				lines.add(line);
+			}
+		}
+		Collections.sort(lines);
+
+		PrintWriter out = new PrintWriter(budgetFile, "UTF-8");
+		try {
+			out.println("# Allocation budgets in bytes per ray, written by AllocationBudget -record");
+			for (String line : lines) {
+				out.println(line);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Records the allocations of calcColor in a scene (with two levels of
+	 * recursion, as measured) with Flight Recorder, and prints the call sites
+	 * that allocate the most, with their callers.
+	 * Flight Recorder samples an allocation whenever a thread needs a new
+	 * allocation buffer, and weighs it by the size of the buffer, so the
+	 * shares are estimates.
+	 */
+	private void printCallSites(File file) {
+		Map<String, Long> sites = new HashMap<String, Long>();
+		long total = 0;
+		try {
+			Recording recording = new Recording();
+			recording.enable("jdk.ObjectAllocationInNewTLAB").withStackTrace();
+			recording.enable("jdk.ObjectAllocationOutsideTLAB").withStackTrace();
+
+			SceneDescriptor descriptor = new HeadlessRenderer(file).parse();
+			Scene scene = buildScene(descriptor, file, 2);
+			Ray[] rays = primaryRays(scene);
+			int[] pixels = new int[rays.length];
+			for (int i = 0; i < pixels.length; i++) {
+				pixels[i] = i;
+			}
+			Workload workload = calcColors(scene, rays, 0, pixels);
+			best(workload);
+
+			Path dump = Files.createTempFile("allocations", ".jfr");
+			try {
+				recording.start();
+				for (long bytes = 0; bytes < PROFILE_BYTES;) {
+					bytes += workload.run().bytes;
+				}
+				recording.stop();
+				recording.dump(dump);
+				recording.close();
+
+				for (RecordedEvent e : RecordingFile.readAllEvents(dump)) {
+					long weight = e.getLong(e.getEventType().getName()
+							.endsWith("InNewTLAB") ? "tlabSize" : "allocationSize");
+					RecordedStackTrace stackTrace = e.getStackTrace();
+					if (stackTrace == null) {
+						continue;
+					}
+
+					// The first frames of ours: the call site, and its caller
+					List<String> ours = new ArrayList<String>();
+					for (RecordedFrame f : stackTrace.getFrames()) {
+						RecordedMethod m = f.getMethod();
+						String className = m.getType().getName();
+						if (className.matches("(java|javax|jdk|sun)\\..*")) {
+							continue;
+						}
+						ours.add(className + "." + m.getName() + ":"
+								+ f.getLineNumber());
+						if (ours.size() == 2) {
+							break;
+						}
+					}
+					if (ours.isEmpty()) {
+						continue;
+					}
+					String site = ours.size() > 1 ? ours.get(0) + " <- " + ours.get(1)
+							: ours.get(0);
+					Long bytes = sites.get(site);
+					sites.put(site, (bytes != null ? bytes : 0) + weight);
+					total += weight;
+				}
+			} finally {
+				Files.delete(dump);
+			}
+		} catch (Exception e) {
+			System.out.println("Could not record the allocations of " + file + ": " + e);
+			return;
+		}
+
+		List<Map.Entry<String, Long>> sorted = new ArrayList<Map.Entry<String, Long>>(
+				sites.entrySet());
+		Collections.sort(sorted, new Comparator<Map.Entry<String, Long>>() {
+			@Override
+			public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+		System.out.printf("%nAllocation call sites of %s (calcColor):%n",
+				file.getPath().replace(File.separatorChar, '/'));
+		for (int i = 0; i < Math.min(TOP_SITES, sorted.size()); i++) {
+			System.out.printf("%6.1f%%  %s%n", 100.0 * sorted.get(i).getValue()
+					/ total, sorted.get(i).getKey());
+		}
+	}
+}
@@ -0,0 +1,430 @@
+package ex3.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.imageio.ImageIO;
+
+import ex3.headless.BatchRenderer;
+import ex3.headless.HeadlessRenderer;
+import ex3.parser.SceneDescriptor;
+import ex3.render.IRenderer;
+
+/**
+ * Renders every bundled scene, measures the renders, and checks them against
+ * the reference images and against a stored baseline, so that performance
+ * work can land without silently changing images (or getting slower).
+ *
+ * Every scene is rendered on its own, at a fixed size and with a fixed number
+ * of threads, a few times after a warmup render; the fastest run counts. For
+ * every scene the suite reports the wall time (parse, build and render), the
+ * rays per second, the peak heap, and how the image compares to the
+ * reference image next to the scene: the pixels where some channel differs by
+ * more than the tolerance, and the PSNR.
+ *
+ * Some scenes don't match their references exactly to begin with, so the
+ * images are checked against the baseline rather than against perfection:
+ * the suite fails if a scene no longer renders, or if an image is further
+ * from its reference than in the baseline (more pixels over the tolerance,
+ * or a lower PSNR).
+ *
+ * The timings of the baseline are those of the machine that recorded it, so
+ * they're compared only with -timing, on that machine: then the suite also
+ * fails if a scene (or the whole suite) is slower than in the baseline by
+ * more than the threshold. Scenes faster than MIN_TIMED_MILLIS are too noisy
+ * to time and only count towards the total.
+ *
+ * Usage: GoldenImageSuite [-scenes <directory>] [-size <width> <height>]
+ * [-threads <n>] [-runs <n>] [-tolerance <levels>] [-timing] [-threshold
+ * <percent>] [-baseline <file>] [-record]
+ *
+ * With -record the results are written as the new baseline. Exits with 1 on
+ * a regression, 0 otherwise.
+ */
+public class GoldenImageSuite {
+
+	private static final double MIN_TIMED_MILLIS = 100;
+
+	private File scenes = new File("scenes");
+	private int width = 480;
+	private int height = 360;
+	private int threads = 1;
+	private int runs = 5;
+	private int tolerance = 2;
+	private boolean timing;
+	private double threshold = 20;
+	private File baselineFile = new File("bench/golden-baseline.properties");
+	private boolean record;
+
+	/**
+	 * Results of one scene.
+	 */
+	private static class Result {
+		String scene;
+		String status = "OK";
+		double millis;
+		double raysPerSecond;
+		long peakHeapBytes;
+		boolean hasReference;
+		int mismatched;
+		double psnr;
+	}
+
+	public static void main(String[] args) throws Exception {
+		GoldenImageSuite suite = new GoldenImageSuite();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-scenes")) {
+				suite.scenes = new File(args[++i]);
+			} else if (args[i].equals("-size")) {
+				suite.width = Integer.valueOf(args[++i]);
+				suite.height = Integer.valueOf(args[++i]);
+			} else if (args[i].equals("-threads")) {
+				suite.threads = Integer.valueOf(args[++i]);
+			} else if (args[i].equals("-runs")) {
+				suite.runs = Integer.valueOf(args[++i]);
+			} else if (args[i].equals("-tolerance")) {
+				suite.tolerance = Integer.valueOf(args[++i]);
+			} else if (args[i].equals("-timing")) {
+				suite.timing = true;
+			} else if (args[i].equals("-threshold")) {
+				suite.threshold = Double.valueOf(args[++i]);
+			} else if (args[i].equals("-baseline")) {
+				suite.baselineFile = new File(args[++i]);
+			} else if (args[i].equals("-record")) {
+				suite.record = true;
+			} else {
+				System.err.println("Unknown option " + args[i]);
+				System.exit(2);
+			}
+		}
+		System.exit(suite.run() ? 0 : 1);
+	}
+
+	/**
+	 * Runs the suite.
+	 *
+	 * @return false if there was a regression
+	 */
+	private boolean run() throws Exception {
+		List<File> files = new ArrayList<File>();
+		for (File file : BatchRenderer.findScenes(scenes.getPath())) {
+			if (!file.getName().contains(" copy")) {
+				files.add(file);
+			}
+		}
+		System.out.printf("Rendering %d scenes at %dx%d on %d threads%n",
+				files.size(), width, height, threads);
+		System.out.printf("%-48s %10s %12s %10s %10s %8s%n", "scene", "ms",
+				"Mrays/s", "heap MB", "mismatch", "PSNR");
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		List<Result> results = new ArrayList<Result>();
+		double total = 0;
+		try {
+			for (File file : files) {
+				Result result = measure(pool, file);
+				results.add(result);
+				total += result.millis;
+				if (!result.status.equals("OK")) {
+					System.out.printf("%-48s %s%n", result.scene, result.status);
+				} else {
+					System.out.printf("%-48s %10.1f %12.2f %10.1f %10s %8s%n",
+							result.scene, result.millis,
+							result.raysPerSecond / 1e6,
+							result.peakHeapBytes / (1024.0 * 1024.0),
+							result.hasReference ? String.valueOf(result.mismatched) : "-",
+							result.hasReference ? String.format("%.2f", result.psnr) : "-");
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		System.out.printf("%-48s %10.1f%n", "total", total);
+
+		if (record) {
+			writeBaseline(results, total);
+			System.out.println("Baseline written to " + baselineFile);
+			return true;
+		}
+		if (!baselineFile.exists()) {
+			System.out.println("No baseline at " + baselineFile
+					+ ", run with -record to create one");
+			return true;
+		}
+		return compare(results, total, readBaseline());
+	}
+
+	/**
+	 * Renders one scene a few times, and compares the image to its
+	 * reference.
+	 */
+	private Result measure(ForkJoinPool pool, final File file) {
+		Result result = new Result();
+		result.scene = file.getPath().replace(File.separatorChar, '/');
+		result.millis = Double.POSITIVE_INFINITY;
+
+		BufferedImage image = null;
+		try {
+			for (int run = -1; run < runs; run++) {
+				resetPeakHeap();
+				final HeadlessRenderer headless = new HeadlessRenderer(file);
+				final IRenderer[] renderer = new IRenderer[1];
+				long start = System.nanoTime();
+				image = pool.submit(new Callable<BufferedImage>() {
+					public BufferedImage call() throws Exception {
+						SceneDescriptor sd = headless.parse();
+						renderer[0] = headless.build(sd, width, height);
+						return headless.render(renderer[0], width, height);
+					}
+				}).get();
+				double millis = (System.nanoTime() - start) / 1e6;
+
+				// Run -1 only warms up
+				if (run >= 0 && millis < result.millis) {
+					result.millis = millis;
+					result.raysPerSecond = renderer[0].getRayCount()
+							/ (headless.getRenderNanos() / 1e9);
+				}
+				result.peakHeapBytes = Math.max(result.peakHeapBytes,
+						peakHeap());
+			}
+		} catch (Exception e) {
+			Throwable cause = e;
+			while (cause.getCause() != null) {
+				cause = cause.getCause();
+			}
+			result.status = cause.toString();
+			result.millis = 0;
+			return result;
+		}
+
+		try {
+			compareToReference(result, file, image);
+		} catch (IOException e) {
+			result.status = "Could not read reference: " + e;
+		}
+		return result;
+	}
+
+	/**
+	 * Compares a render to the reference image next to its scene, if there is
+	 * one of the same size.
+	 */
+	private void compareToReference(Result result, File file,
+			BufferedImage image) throws IOException {
+		File reference = referenceFile(file);
+		if (reference == null) {
+			return;
+		}
+		BufferedImage expected = ImageIO.read(reference);
+		if (expected == null || expected.getWidth() != width
+				|| expected.getHeight() != height) {
+			return;
+		}
+
+		int[] actualPixels = image.getRGB(0, 0, width, height, null, 0, width);
+		int[] expectedPixels = expected.getRGB(0, 0, width, height, null, 0,
+				width);
+		double squaredError = 0;
+		for (int i = 0; i < actualPixels.length; i++) {
+			int worst = 0;
+			for (int shift = 0; shift < 24; shift += 8) {
+				int d = ((actualPixels[i] >> shift) & 0xFF)
+						- ((expectedPixels[i] >> shift) & 0xFF);
+				squaredError += d * d;
+				worst = Math.max(worst, Math.abs(d));
+			}
+			if (worst > tolerance) {
+				result.mismatched++;
+			}
+		}
+
+		double mse = squaredError / (3.0 * actualPixels.length);
+		result.hasReference = true;
+		result.psnr = mse == 0 ? Double.POSITIVE_INFINITY : 10 * Math
+				.log10(255 * 255 / mse);
+	}
+
+	/**
+	 * @return The reference image of a scene (e.g. a.png or a.xml.png for
+	 *         a.xml), or null if it has none
+	 */
+	private static File referenceFile(File sceneFile) {
+		File directory = sceneFile.getAbsoluteFile().getParentFile();
+		String name = sceneFile.getName();
+		for (String candidate : Arrays.asList(
+				name.replaceAll("(\\.xml)+$", ".png"), name + ".png")) {
+			File reference = new File(directory, candidate);
+			if (reference.isFile()) {
+				return reference;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Checks the results against the baseline, and prints the regressions.
+	 *
+	 * @return false if there was a regression
+	 */
+	private boolean compare(List<Result> results, double total,
+			Properties baseline) {
+		if (Integer.valueOf(baseline.getProperty("width")) != width
+				|| Integer.valueOf(baseline.getProperty("height")) != height
+				|| Integer.valueOf(baseline.getProperty("threads")) != threads) {
+			System.out.println("The baseline was recorded at "
+					+ baseline.getProperty("width") + "x"
+					+ baseline.getProperty("height") + " on "
+					+ baseline.getProperty("threads")
+					+ " threads, not comparing");
+			return true;
+		}
+
+		List<String> regressions = new ArrayList<String>();
+		double slowest = 1 + threshold / 100;
+		for (Result result : results) {
+			String key = "scene." + result.scene;
+			String status = baseline.getProperty(key + ".status");
+			if (status == null) {
+				continue; // New scene
+			}
+			if (status.equals("OK") && !result.status.equals("OK")) {
+				regressions.add(result.scene + " no longer renders: "
+						+ result.status);
+				continue;
+			}
+			if (!result.status.equals("OK")) {
+				continue;
+			}
+
+			double millis = Double.valueOf(baseline.getProperty(key + ".millis"));
+			if (timing && millis >= MIN_TIMED_MILLIS
+					&& result.millis > millis * slowest) {
+				regressions.add(String.format(
+						"%s is slower: %.1f ms, was %.1f ms", result.scene,
+						result.millis, millis));
+			}
+
+			String mismatched = baseline.getProperty(key + ".mismatched");
+			if (mismatched != null && result.hasReference) {
+				double psnr = Double.valueOf(baseline.getProperty(key + ".psnr"));
+				if (result.mismatched > Integer.valueOf(mismatched)
+						|| result.psnr < psnr - 0.01) {
+					regressions.add(String.format(
+							"%s changed: %d pixels over tolerance, PSNR %.2f;"
+									+ " was %s pixels, PSNR %.2f",
+							result.scene, result.mismatched, result.psnr,
+							mismatched, psnr));
+				}
+			}
+		}
+
+		double totalMillis = Double.valueOf(baseline.getProperty("total.millis"));
+		if (timing && total > totalMillis * slowest) {
+			regressions.add(String.format(
+					"The suite is slower: %.1f ms, was %.1f ms", total,
+					totalMillis));
+		}
+
+		for (String regression : regressions) {
+			System.out.println("REGRESSION: " + regression);
+		}
+		System.out.println(regressions.isEmpty() ? "PASSED" : "FAILED");
+		return regressions.isEmpty();
+	}
+
+	private Properties readBaseline() throws IOException {
+		Properties baseline = new Properties();
+		InputStream in = new FileInputStream(baselineFile);
+		try {
+			baseline.load(in);
+		} finally {
+			in.close();
+		}
+		return baseline;
+	}
+
+	/**
+	 * Writes the results as the baseline, one property per line, sorted so
+	 * that baselines diff well.
+	 */
+	private void writeBaseline(List<Result> results, double total)
+			throws IOException {
+		Properties baseline = new Properties();
+		baseline.setProperty("width", String.valueOf(width));
+		baseline.setProperty("height", String.valueOf(height));
+		baseline.setProperty("threads", String.valueOf(threads));
+		baseline.setProperty("total.millis", String.format("%.1f", total));
+		for (Result result : results) {
+			String key = "scene." + result.scene;
+			baseline.setProperty(key + ".status", result.status);
+			if (!result.status.equals("OK")) {
+				continue;
+			}
+			baseline.setProperty(key + ".millis", String.format("%.1f", result.millis));
+			baseline.setProperty(key + ".raysPerSecond", String.format("%.0f", result.raysPerSecond));
+			baseline.setProperty(key + ".peakHeapBytes", String.valueOf(result.peakHeapBytes));
+			if (result.hasReference) {
+				baseline.setProperty(key + ".mismatched", String.valueOf(result.mismatched));
+				baseline.setProperty(key + ".psnr", String.format("%.2f", result.psnr));
+			}
+		}
+
+		// Let Properties escape, but drop its date and sort the lines
+		StringWriter text = new StringWriter();
+		baseline.store(text, null);
+		List<String> lines = new ArrayList<String>();
+		for (String line : text.toString().split("\\r?\\n")) {
+			if (!line.startsWith("#")) {
+				lines.add(line);
+			}
+		}
+		Collections.sort(lines);
+
+		PrintWriter out = new PrintWriter(baselineFile, "UTF-8");
+		try {
+			out.println("# Golden image suite baseline, written by GoldenImageSuite -record");
+			for (String line : lines) {
+				out.println(line);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * @return The peak heap in use since the last resetPeakHeap()
+	 */
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+}
@@ -0,0 +1,328 @@
+package ex3.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import lights.DirLight;
+import lights.Light;
+import lights.OmniLight;
+import lights.SpotLight;
+import math.Point3D;
+import math.Ray;
+import math.Vec;
+import shapes.Disc;
+import shapes.Intersection;
+import shapes.Poly;
+import shapes.Sphere;
+import shapes.SphereSet;
+import ex3.headless.HeadlessRenderer;
+import ex3.parser.Element;
+import ex3.parser.SceneDescriptor;
+import ex3.render.IRenderer;
+import ex3.render.raytrace.Camera;
+import ex3.render.raytrace.Scene;
+
+/**
+ * JMH benchmarks of the ray tracer's kernels, from single intersections up to
+ * whole lines, to judge optimizations by:
+ *
+ * intersect* - one ray against one primitive, hitting it or missing it
+ * (param ray)
+ * camera* - generating primary rays, one at a time or a line at a time
+ * shadow - shadow queries (findIntersection from hits towards the lights)
+ * calcColor - the color of one primary ray, with all it entails
+ * renderLine - one line of the image
+ *
+ * The scene benchmarks run for every scene of param scene (run from the
+ * project directory), at WIDTH x HEIGHT. The two 5_models scenes don't load,
+ * so they aren't in it.
+ *
+ * Built by mvn package (see pom.xml), and run with the gc profiler for the
+ * bytes allocated per operation:
+ *
+ * java -jar target/benchmarks.jar KernelBenchmarks -prof gc [-p
+ * scene=scenes/4_reflections/4-04.xml] [-jvmArgsAppend "--add-modules
+ * jdk.incubator.vector"]
+ *
+ * or with main(), which takes the same options and adds -prof gc itself.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KernelBenchmarks {
+
+	private static final int WIDTH = 400;
+	private static final int HEIGHT = 300;
+
+	// The eye, and rays from it that hit or miss the primitives below
+	private static final Point3D EYE = new Point3D(0, 0, 0);
+	private static final Vec HIT = new Vec(0, 0, -1);
+	private static final Vec MISS = new Vec(0.5, 0.5, -1);
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions options = new CommandLineOptions(args);
+		ChainedOptionsBuilder builder = new OptionsBuilder().parent(options)
+				.addProfiler(GCProfiler.class);
+		if (options.getIncludes().isEmpty()) {
+			builder.include(KernelBenchmarks.class.getName());
+		}
+		new Runner(builder.build()).run();
+	}
+
+	/**
+	 * One primitive of every kind, and a ray that hits them all or misses
+	 * them all.
+	 */
+	@State(Scope.Thread)
+	public static class Primitives {
+
+		@Param({ "hit", "miss" })
+		public String ray;
+
+		Ray r;
+		Sphere sphere;
+		Disc disc;
+		Poly poly;
+		SphereSet sphereSet;
+
+		@Setup
+		public void setUp() {
+			Map<String, String> attributes = new HashMap<String, String>();
+			attributes.put("center", "0 0 -5");
+			attributes.put("radius", "1");
+			sphere = new Sphere(attributes);
+
+			attributes.put("normal", "0 0 1");
+			disc = new Disc(attributes);
+
+			attributes = new HashMap<String, String>();
+			attributes.put("p0", "-1 -1 -5");
+			attributes.put("p1", "1 -1 -5");
+			attributes.put("p2", "0 1 -5");
+			poly = new Poly(attributes);
+
+			// Eight spheres, the ray hits the last one
+			List<Sphere> spheres = new ArrayList<Sphere>();
+			for (int i = 0; i < SphereSet.BLOCK; i++) {
+				attributes = new HashMap<String, String>();
+				attributes.put("center", (i - SphereSet.BLOCK + 1) * 3 + " 0 -5");
+				attributes.put("radius", "1");
+				spheres.add(new Sphere(attributes));
+			}
+			sphereSet = SphereSet.create(spheres);
+
+			r = new Ray(EYE, new Vec(ray.equals("hit") ? HIT : MISS));
+		}
+	}
+
+	@Benchmark
+	public Point3D intersectSphere(Primitives p) {
+		return Intersection.raySphereIntersection(p.r, p.sphere);
+	}
+
+	@Benchmark
+	public Point3D intersectDisc(Primitives p) {
+		return Intersection.rayDiscIntersection(p.r, p.disc);
+	}
+
+	@Benchmark
+	public Point3D intersectPoly(Primitives p) {
+		return Intersection.rayPolyIntersection(p.r, p.poly);
+	}
+
+	@Benchmark
+	public Intersection intersectSphereSet8(Primitives p) {
+		return p.sphereSet.closestIntersection(p.r, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * A camera looking down -z, and the pixel or line to generate rays for
+	 * next.
+	 */
+	@State(Scope.Thread)
+	public static class Cameras {
+
+		Camera camera;
+		double[][] directions = new double[3][WIDTH];
+		int pixel;
+		int line;
+
+		@Setup
+		public void setUp() {
+			camera = new Camera();
+			Map<String, String> attributes = new HashMap<String, String>();
+			attributes.put("eye", "0 0 0");
+			attributes.put("direction", "0 0 -1");
+			attributes.put("up-direction", "0 1 0");
+			attributes.put("screen-dist", "1");
+			attributes.put("screen-width", "2");
+			camera.init(attributes);
+			camera.prepare(WIDTH, HEIGHT);
+		}
+	}
+
+	@Benchmark
+	public Ray cameraConstructRayThroughPixel(Cameras c) {
+		c.pixel = (c.pixel + 1) % (WIDTH * HEIGHT);
+		return c.camera.constructRayThroughPixel(c.pixel % WIDTH, c.pixel
+				/ WIDTH, WIDTH, HEIGHT);
+	}
+
+	@Benchmark
+	public double[][] cameraRowDirections(Cameras c) {
+		c.line = (c.line + 1) % HEIGHT;
+		c.camera.rowDirections(c.line, 0, WIDTH, c.directions[0],
+				c.directions[1], c.directions[2], 0);
+		return c.directions;
+	}
+
+	/**
+	 * A scene, its primary rays through every pixel, shadow rays from the
+	 * hits of some of them towards every light, and a renderer of its lines.
+	 */
+	@State(Scope.Thread)
+	public static class Scenes {
+
+		@Param({ "scenes/1_primitives/1-01_sphere.xml",
+				"scenes/1_primitives/1-02_sphere_omni.xml",
+				"scenes/1_primitives/1-03_sphere_spot.xml",
+				"scenes/1_primitives/1-04_tri_front.xml",
+				"scenes/1_primitives/1-05_tri_back.xml",
+				"scenes/1_primitives/1-06_disc_front.xml",
+				"scenes/1_primitives/1-07_disc_back.xml",
+				"scenes/1_primitives/1-08_convex_poly.xml.xml",
+				"scenes/2_camera/2-01_up.xml",
+				"scenes/2_camera/2-02_screen_width.xml",
+				"scenes/2_camera/2-03_screen_dist.xml",
+				"scenes/2_camera/2-04_direction.xml",
+				"scenes/2_camera/2-05_look_at.xml",
+				"scenes/3_light/3-01_diffuse.xml",
+				"scenes/3_light/3-01_specular.xml",
+				"scenes/3_light/3-03_multi.xml",
+				"scenes/3_light/3-04_ambient.xml",
+				"scenes/3_light/3-05_emission.xml",
+				"scenes/3_light/3-06_dir.xml",
+				"scenes/4_reflections/4-01.xml",
+				"scenes/4_reflections/4-02.xml",
+				"scenes/4_reflections/4-03.xml",
+				"scenes/4_reflections/4-04.xml",
+				"scenes/Bonus_supersamplingCheckersPattern.xml" })
+		public String scene;
+
+		Scene s;
+		Ray[] primary;
+		Ray[] shadows;
+		IRenderer renderer;
+		int[] rgb = new int[WIDTH];
+		int ray;
+		int pixel;
+		int line;
+
+		@Setup
+		public void setUp() throws Exception {
+			File file = new File(scene);
+			SceneDescriptor descriptor = new HeadlessRenderer(file).parse();
+			s = buildScene(descriptor, file);
+
+			// Primary rays through every pixel
+			primary = new Ray[WIDTH * HEIGHT];
+			for (int i = 0; i < primary.length; i++) {
+				primary[i] = s.castRay(i % WIDTH, i / WIDTH, WIDTH, HEIGHT);
+			}
+
+			// Shadow rays from the hits of some of them towards the lights
+			List<Ray> rays = new ArrayList<Ray>();
+			for (Element element : descriptor.getObjects()) {
+				Light light = createLight(element);
+				if (light == null) {
+					continue;
+				}
+				for (int i = 0; i < primary.length; i += 7) {
+					Intersection hit = s.findIntersection(primary[i]);
+					if (hit != null) {
+						rays.add(new Ray(hit.point, light.vectorToMe(hit.point)));
+					}
+				}
+			}
+			shadows = rays.toArray(new Ray[rays.size()]);
+
+			renderer = new HeadlessRenderer(file).build(descriptor, WIDTH,
+					HEIGHT);
+		}
+	}
+
+	@Benchmark
+	public Intersection shadow(Scenes s) {
+		if (s.shadows.length == 0) {
+			return null;
+		}
+		s.ray = (s.ray + 1) % s.shadows.length;
+		return s.s.findIntersection(s.shadows[s.ray]);
+	}
+
+	@Benchmark
+	public Vec calcColor(Scenes s) {
+		s.pixel = (s.pixel + 1) % s.primary.length;
+		return s.s.calcColor(s.primary[s.pixel], 0, s.pixel % WIDTH, s.pixel
+				/ WIDTH);
+	}
+
+	@Benchmark
+	public int[] renderLine(Scenes s) {
+		s.line = (s.line + 1) % HEIGHT;
+		s.renderer.renderLine(s.rgb, 0, s.line);
+		return s.rgb;
+	}
+
+	/**
+	 * Builds a scene from its description, as RayTracer.init() does.
+	 */
+	private static Scene buildScene(SceneDescriptor descriptor, File file) {
+		Scene scene = new Scene(WIDTH, HEIGHT, file);
+		scene.init(descriptor.getSceneAttributes());
+		for (Element e : descriptor.getObjects()) {
+			scene.addObjectByName(e.getName(), e.getAttributes());
+		}
+		scene.setCameraAttributes(descriptor.getCameraAttributes());
+		scene.prepare();
+		return scene;
+	}
+
+	/**
+	 * The light an element of a scene describes, or null if it isn't one.
+	 */
+	private static Light createLight(Element element) {
+		String name = element.getName().toLowerCase();
+		if (name.equals("dir-light")) {
+			return new DirLight(element.getAttributes());
+		} else if (name.equals("spot-light")) {
+			return new SpotLight(element.getAttributes());
+		} else if (name.equals("omni-light")) {
+			return new OmniLight(element.getAttributes());
+		}
+		return null;
+	}
+}
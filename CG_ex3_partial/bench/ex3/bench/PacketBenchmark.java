@@ -0,0 +1,256 @@
+package ex3.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import math.Point3D;
+import math.Ray;
+import math.Simd;
+import math.Vec;
+import shapes.Intersection;
+import ex3.render.raytrace.Camera;
+import ex3.render.raytrace.PacketTracer;
+import ex3.render.raytrace.RayPacket;
+import ex3.render.raytrace.Scene;
+
+/**
+ * Measures how much faster rays are intersected in packets (PacketTracer) than
+ * one at a time (Scene.findIntersection), for every kind of primitive, with
+ * the scalar kernels and with the vector ones (VectorPacketTracer).
+ *
+ * Every kind gets a scene of its own: a wall of primitives in front of the
+ * camera. Two sets of rays are shot at it: the primary rays of an image, which
+ * are coherent, and rays from the eye in random directions, which aren't (like
+ * rays reflected off curved surfaces). All the paths must find the same
+ * closest hits as the single rays; mismatches are counted.
+ *
+ * The vector kernels are only measured when the JVM runs with --add-modules
+ * jdk.incubator.vector, with as many lanes as -Dex3.simd says (see Simd), and
+ * only with packets of at least as many rays.
+ *
+ * Usage: PacketBenchmark [<primitives per side>] [<seconds per measurement>]
+ */
+public class PacketBenchmark {
+
+	private static final int WIDTH = 320;
+	private static final int HEIGHT = 240;
+
+	private static final int[] PACKET_SIZES = { 4, 8, 16 };
+
+	public static void main(String[] args) {
+		int side = args.length > 0 ? Integer.valueOf(args[0]) : 8;
+		double seconds = args.length > 1 ? Double.valueOf(args[1]) : 1;
+
+		if (!Simd.isAvailable()) {
+			System.out.println("Vector kernels not available, run with --add-modules jdk.incubator.vector to measure them");
+		}
+		System.out.printf("%-8s %-10s %-8s %6s %10s %8s %10s%n", "kind",
+				"rays", "path", "packet", "Mrays/s", "speedup", "mismatches");
+
+		for (String kind : new String[] { "sphere", "disc", "poly" }) {
+			Scene scene = buildScene(kind, side);
+			for (boolean coherent : new boolean[] { true, false }) {
+				double[][] rays = coherent ? primaryRays(scene.getCamera())
+						: randomRays();
+				Point3D eye = scene.getCamera().getEye();
+				String prefix = String.format("%-8s %-10s", kind,
+						coherent ? "coherent" : "incoherent");
+
+				// Warm up before measuring
+				single(scene, eye, rays, seconds / 4);
+				double singleRate = single(scene, eye, rays, seconds);
+				System.out.printf("%s %-8s %6d %10.2f %7.2fx %10s%n", prefix,
+						"single", 1, singleRate / 1e6, 1.0, "-");
+
+				List<PacketTracer> tracers = new ArrayList<PacketTracer>();
+				tracers.add(new PacketTracer(scene.getSurfaces()));
+				PacketTracer vector = PacketTracer.create(scene.getSurfaces());
+				if (vector.lanes() > 1) {
+					tracers.add(vector);
+				}
+				for (PacketTracer tracer : tracers) {
+					for (int size : PACKET_SIZES) {
+						if (size < tracer.lanes()) {
+							continue;
+						}
+						packets(tracer, eye, rays, size, seconds / 4);
+						double packetRate = packets(tracer, eye, rays, size,
+								seconds);
+						System.out.printf("%s %-8s %6d %10.2f %7.2fx %10d%n",
+								prefix, tracer.lanes() > 1 ? "simd"
+										+ tracer.lanes() : "scalar", size,
+								packetRate / 1e6, packetRate / singleRate,
+								compare(scene, tracer, eye, rays, size));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builds a scene with a wall of side x side primitives of one kind.
+	 */
+	private static Scene buildScene(String kind, int side) {
+		Scene scene = new Scene(WIDTH, HEIGHT, new File("."));
+		scene.init(new HashMap<String, String>());
+
+		double cell = 4.0 / side;
+		for (int i = 0; i < side; i++) {
+			for (int j = 0; j < side; j++) {
+				double x = -2 + (i + 0.5) * cell;
+				double y = -1.5 + (j + 0.5) * cell * 0.75;
+				double z = -4 - ((i + j) % 3);
+				double r = cell * 0.4;
+				Map<String, String> attributes = new HashMap<String, String>();
+				if (kind.equals("poly")) {
+					attributes.put("p0", (x - r) + " " + (y - r) + " " + z);
+					attributes.put("p1", (x + r) + " " + (y - r) + " " + z);
+					attributes.put("p2", x + " " + (y + r) + " " + z);
+				} else {
+					attributes.put("center", x + " " + y + " " + z);
+					attributes.put("radius", String.valueOf(r));
+					if (kind.equals("disc")) {
+						attributes.put("normal", "0 0 1");
+					}
+				}
+				scene.addObjectByName(kind, attributes);
+			}
+		}
+
+		Map<String, String> camera = new HashMap<String, String>();
+		camera.put("eye", "0 0 0");
+		camera.put("direction", "0 0 -1");
+		camera.put("up-direction", "0 1 0");
+		camera.put("screen-dist", "1");
+		camera.put("screen-width", "2");
+		scene.setCameraAttributes(camera);
+		scene.prepare();
+		return scene;
+	}
+
+	/**
+	 * Directions of the primary rays of the image, line after line.
+	 */
+	private static double[][] primaryRays(Camera camera) {
+		double[][] rays = new double[3][WIDTH * HEIGHT];
+		camera.tileDirections(0, WIDTH, 0, HEIGHT, rays[0], rays[1], rays[2]);
+		return rays;
+	}
+
+	/**
+	 * As many random directions into the half-space in front of the eye.
+	 */
+	private static double[][] randomRays() {
+		Random random = new Random(1);
+		double[][] rays = new double[3][WIDTH * HEIGHT];
+		for (int i = 0; i < WIDTH * HEIGHT; i++) {
+			Vec v = new Vec(random.nextDouble() * 2 - 1,
+					random.nextDouble() * 1.5 - 0.75, -random.nextDouble());
+			v.normalize();
+			rays[0][i] = v.x;
+			rays[1][i] = v.y;
+			rays[2][i] = v.z;
+		}
+		return rays;
+	}
+
+	/**
+	 * Intersects the rays one at a time for a while.
+	 *
+	 * @return Rays per second
+	 */
+	private static double single(Scene scene, Point3D eye, double[][] rays,
+			double seconds) {
+		long rounds = 0;
+		long begin = System.nanoTime();
+		long deadline = begin + (long) (seconds * 1e9);
+		long hits = 0;
+		do {
+			for (int i = 0; i < rays[0].length; i++) {
+				Ray ray = new Ray(eye, new Vec(rays[0][i], rays[1][i],
+						rays[2][i]), false);
+				if (scene.findIntersection(ray) != null) {
+					hits++;
+				}
+			}
+			rounds++;
+		} while (System.nanoTime() < deadline);
+		sink(hits);
+		return rounds * rays[0].length / ((System.nanoTime() - begin) / 1e9);
+	}
+
+	/**
+	 * Intersects the rays in packets for a while.
+	 *
+	 * @return Rays per second
+	 */
+	private static double packets(PacketTracer tracer, Point3D eye,
+			double[][] rays, int size, double seconds) {
+		RayPacket packet = new RayPacket(size);
+		long rounds = 0;
+		long begin = System.nanoTime();
+		long deadline = begin + (long) (seconds * 1e9);
+		long hits = 0;
+		do {
+			for (int start = 0; start < rays[0].length; start += size) {
+				int end = Math.min(rays[0].length, start + size);
+				fill(packet, eye, rays, start, end);
+				tracer.intersect(packet);
+				for (int i = 0; i < packet.size(); i++) {
+					if (packet.getObject(i) != null) {
+						hits++;
+					}
+				}
+			}
+			rounds++;
+		} while (System.nanoTime() < deadline);
+		sink(hits);
+		return rounds * rays[0].length / ((System.nanoTime() - begin) / 1e9);
+	}
+
+	/**
+	 * Counts the rays whose closest hits differ between the two paths.
+	 */
+	private static int compare(Scene scene, PacketTracer tracer, Point3D eye,
+			double[][] rays, int size) {
+		RayPacket packet = new RayPacket(size);
+		int mismatches = 0;
+		for (int start = 0; start < rays[0].length; start += size) {
+			int end = Math.min(rays[0].length, start + size);
+			fill(packet, eye, rays, start, end);
+			tracer.intersect(packet);
+			for (int i = start; i < end; i++) {
+				Intersection expected = scene.findIntersection(new Ray(eye,
+						new Vec(rays[0][i], rays[1][i], rays[2][i]), false));
+				Intersection actual = packet.getIntersection(i - start);
+				if (expected == null ? actual != null : actual == null
+						|| expected.object != actual.object
+						|| expected.distance != actual.distance
+						|| !expected.point.equals(actual.point)) {
+					mismatches++;
+				}
+			}
+		}
+		return mismatches;
+	}
+
+	private static void fill(RayPacket packet, Point3D eye, double[][] rays,
+			int start, int end) {
+		packet.clear();
+		for (int i = start; i < end; i++) {
+			packet.add(eye.x, eye.y, eye.z, rays[0][i], rays[1][i], rays[2][i],
+					i % WIDTH, i / WIDTH);
+		}
+	}
+
+	// Keeps the JIT from dropping the work
+	private static volatile long sink;
+
+	private static void sink(long value) {
+		sink += value;
+	}
+}
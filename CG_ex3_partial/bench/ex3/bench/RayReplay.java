@@ -0,0 +1,334 @@
+package ex3.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import math.Point3D;
+import math.Ray;
+import math.Vec;
+import shapes.Disc;
+import shapes.Intersection;
+import shapes.Poly;
+import shapes.Sphere;
+import shapes.Surface;
+import ex3.headless.HeadlessRenderer;
+import ex3.parser.Element;
+import ex3.parser.SceneDescriptor;
+import ex3.render.RenderStats;
+import ex3.render.raytrace.PacketTracer;
+import ex3.render.raytrace.RayPacket;
+import ex3.render.raytrace.RayRecorder;
+import ex3.render.raytrace.Scene;
+
+/**
+ * Replays the rays captured from a render (-Dex3.capture, see RayRecorder)
+ * through intersection backends, so that they can be measured and checked on
+ * the exact rays of a real scene, without rendering it:
+ *
+ * scan - Scene.findIntersection, as the scalar renderer does
+ * linear - the plain intersection of every surface, one after another
+ * packet - PacketTracer, in packets of PACKET_SIZE rays
+ * simd - VectorPacketTracer, the same way (only when the JVM runs with
+ * --add-modules jdk.incubator.vector, see Simd)
+ *
+ * The capture must come from the same scene file. Every backend intersects
+ * all the rays a few times (the fastest run counts), and its closest hits are
+ * compared with the captured ones: a ray mismatches if it hits another
+ * surface, or the same one at a distance off by more than DISTANCE_TOLERANCE
+ * (relatively). Mismatches are reported by kind of ray.
+ *
+ * Usage: RayReplay [-backend <scan|linear|packet|simd|all>] [-runs <n>]
+ * <scene file> <capture file>
+ *
+ * Exits with 1 if some backend mismatches, 0 otherwise.
+ */
+public class RayReplay {
+
+	private static final int PACKET_SIZE = 8;
+	private static final double DISTANCE_TOLERANCE = 1e-9;
+
+	// The captured rays, and their hits
+	private int count;
+	private byte[] kind;
+	private double[] ox, oy, oz, dx, dy, dz;
+	private int[] object;
+	private double[] distance;
+
+	// The scene, and the index of every surface in it
+	private Scene scene;
+	private Surface[] surfaces;
+	private Map<Surface, Integer> surfaceIndex = new IdentityHashMap<Surface, Integer>();
+
+	/**
+	 * An intersection backend.
+	 */
+	private abstract class Backend {
+
+		final String name;
+
+		Backend(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Intersects all the rays.
+		 *
+		 * @param hitObject
+		 *            Receives the index of the surface every ray hits, or -1
+		 * @param hitDistance
+		 *            Receives the distance to it
+		 */
+		abstract void run(int[] hitObject, double[] hitDistance);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String backend = "all";
+		int runs = 5;
+		List<String> files = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-backend")) {
+				backend = args[++i];
+			} else if (args[i].equals("-runs")) {
+				runs = Integer.valueOf(args[++i]);
+			} else {
+				files.add(args[i]);
+			}
+		}
+		if (files.size() != 2) {
+			System.err.println("Usage: RayReplay [-backend <scan|linear|packet|simd|all>] [-runs <n>] <scene file> <capture file>");
+			System.exit(2);
+		}
+
+		RayReplay replay = new RayReplay(new File(files.get(0)));
+		replay.load(new File(files.get(1)));
+
+		boolean ok = true;
+		for (Backend b : replay.backends()) {
+			if (backend.equals("all") || backend.equals(b.name)) {
+				ok &= replay.measure(b, runs);
+			}
+		}
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * Builds the scene of a scene file.
+	 */
+	private RayReplay(File file) throws Exception {
+		SceneDescriptor descriptor = new HeadlessRenderer(file).parse();
+		scene = new Scene(1, 1, file);
+		scene.init(descriptor.getSceneAttributes());
+		for (Element e : descriptor.getObjects()) {
+			scene.addObjectByName(e.getName(), e.getAttributes());
+		}
+		scene.setCameraAttributes(descriptor.getCameraAttributes());
+		scene.prepare();
+
+		surfaces = scene.getSurfaces().toArray(new Surface[0]);
+		for (Surface surface : surfaces) {
+			surfaceIndex.put(surface, surfaceIndex.size());
+		}
+	}
+
+	/**
+	 * Reads all the captured rays into memory.
+	 */
+	private void load(File file) throws Exception {
+		long records = (file.length() - RayRecorder.MAGIC.length)
+				/ RayRecorder.RECORD_BYTES;
+		if (records > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many rays in " + file);
+		}
+		count = (int) records;
+		kind = new byte[count];
+		ox = new double[count];
+		oy = new double[count];
+		oz = new double[count];
+		dx = new double[count];
+		dy = new double[count];
+		dz = new double[count];
+		object = new int[count];
+		distance = new double[count];
+
+		RayRecorder.Reader reader = new RayRecorder.Reader(file);
+		try {
+			for (int i = 0; i < count && reader.next(); i++) {
+				kind[i] = (byte) reader.kind.ordinal();
+				ox[i] = reader.ox;
+				oy[i] = reader.oy;
+				oz[i] = reader.oz;
+				dx[i] = reader.dx;
+				dy[i] = reader.dy;
+				dz[i] = reader.dz;
+				object[i] = reader.object;
+				distance[i] = reader.distance;
+				if (object[i] >= surfaces.length) {
+					throw new IllegalArgumentException(file
+							+ " was not captured from this scene");
+				}
+			}
+		} finally {
+			reader.close();
+		}
+
+		System.out.printf("%,d rays:", count);
+		int[] kinds = new int[RenderStats.Kind.values().length];
+		for (int i = 0; i < count; i++) {
+			kinds[kind[i]]++;
+		}
+		for (RenderStats.Kind k : RenderStats.Kind.values()) {
+			System.out.printf(" %,d %s", kinds[k.ordinal()], k.name()
+					.toLowerCase());
+		}
+		System.out.printf("%n%-8s %12s %12s", "backend", "Mrays/s", "ms");
+		for (RenderStats.Kind k : RenderStats.Kind.values()) {
+			System.out.printf(" %12s", k.name().toLowerCase() + " diff");
+		}
+		System.out.println();
+	}
+
+	/**
+	 * The captured rays, as rays.
+	 */
+	private Ray[] rays() {
+		Ray[] rays = new Ray[count];
+		for (int i = 0; i < count; i++) {
+			rays[i] = new Ray(new Point3D(ox[i], oy[i], oz[i]), new Vec(dx[i],
+					dy[i], dz[i]), false);
+		}
+		return rays;
+	}
+
+	private List<Backend> backends() {
+		List<Backend> backends = new ArrayList<Backend>();
+
+		backends.add(new Backend("scan") {
+			Ray[] rays = rays();
+
+			@Override
+			void run(int[] hitObject, double[] hitDistance) {
+				for (int i = 0; i < count; i++) {
+					Intersection hit = scene.findIntersection(rays[i]);
+					hitObject[i] = hit != null ? surfaceIndex.get(hit.object) : -1;
+					hitDistance[i] = hit != null ? hit.distance : Double.NaN;
+				}
+			}
+		});
+
+		backends.add(new Backend("linear") {
+			Ray[] rays = rays();
+
+			@Override
+			void run(int[] hitObject, double[] hitDistance) {
+				for (int i = 0; i < count; i++) {
+					int minObject = -1;
+					double minDistance = Double.POSITIVE_INFINITY;
+					for (int s = 0; s < surfaces.length; s++) {
+						Point3D p;
+						if (surfaces[s] instanceof Disc) {
+							p = Intersection.rayDiscIntersection(rays[i], (Disc) surfaces[s]);
+						} else if (surfaces[s] instanceof Sphere) {
+							p = Intersection.raySphereIntersection(rays[i], (Sphere) surfaces[s]);
+						} else {
+							p = Intersection.rayPolyIntersection(rays[i], (Poly) surfaces[s]);
+						}
+						if (p == null) {
+							continue;
+						}
+						double dist = Point3D.distance(rays[i].p, p);
+						if ((dist < minDistance) && (dist > Intersection.TOLERANCE)) {
+							minDistance = dist;
+							minObject = s;
+						}
+					}
+					hitObject[i] = minObject;
+					hitDistance[i] = minObject != -1 ? minDistance : Double.NaN;
+				}
+			}
+		});
+
+		backends.add(new PacketBackend("packet", new PacketTracer(scene.getSurfaces())));
+
+		PacketTracer vector = PacketTracer.create(scene.getSurfaces());
+		if (vector.lanes() > 1) {
+			backends.add(new PacketBackend("simd", vector));
+		}
+
+		return backends;
+	}
+
+	/**
+	 * Intersects the rays in packets of PACKET_SIZE.
+	 */
+	private class PacketBackend extends Backend {
+
+		PacketTracer tracer;
+		RayPacket[] packets;
+
+		PacketBackend(String name, PacketTracer tracer) {
+			super(name);
+			this.tracer = tracer;
+			packets = new RayPacket[(count + PACKET_SIZE - 1) / PACKET_SIZE];
+			for (int p = 0; p < packets.length; p++) {
+				packets[p] = new RayPacket(PACKET_SIZE);
+				for (int i = p * PACKET_SIZE; i < Math.min(count, (p + 1) * PACKET_SIZE); i++) {
+					packets[p].add(ox[i], oy[i], oz[i], dx[i], dy[i], dz[i], 0, 0);
+				}
+			}
+		}
+
+		@Override
+		void run(int[] hitObject, double[] hitDistance) {
+			for (int p = 0; p < packets.length; p++) {
+				tracer.intersect(packets[p]);
+				for (int j = 0; j < packets[p].size(); j++) {
+					int i = p * PACKET_SIZE + j;
+					Intersection hit = packets[p].getIntersection(j);
+					hitObject[i] = hit != null ? surfaceIndex.get(hit.object) : -1;
+					hitDistance[i] = hit != null ? hit.distance : Double.NaN;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs a backend a few times after a warmup run, prints its throughput
+	 * and mismatches.
+	 *
+	 * @return Whether it found all the captured hits
+	 */
+	private boolean measure(Backend backend, int runs) {
+		int[] hitObject = new int[count];
+		double[] hitDistance = new double[count];
+
+		backend.run(hitObject, hitDistance);
+		long best = Long.MAX_VALUE;
+		for (int r = 0; r < runs; r++) {
+			long start = System.nanoTime();
+			backend.run(hitObject, hitDistance);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		int[] mismatches = new int[RenderStats.Kind.values().length];
+		int total = 0;
+		for (int i = 0; i < count; i++) {
+			if (hitObject[i] != object[i]
+					|| (object[i] != -1 && Math.abs(hitDistance[i] - distance[i]) > DISTANCE_TOLERANCE
+							* distance[i])) {
+				mismatches[kind[i]]++;
+				total++;
+			}
+		}
+
+		System.out.printf("%-8s %12.2f %12.1f", backend.name, count
+				/ (best / 1e9) / 1e6, best / 1e6);
+		for (int m : mismatches) {
+			System.out.printf(" %12d", m);
+		}
+		System.out.println();
+		return total == 0;
+	}
+}
@@ -0,0 +1,423 @@
+package ex3.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Generates scene files with as many primitives and lights as asked for, to
+ * measure how the loader, the scene build and the render scale, far beyond
+ * the bundled scenes. The same arguments (and seed) always generate the same
+ * file.
+ *
+ * The primitives fill a box in front of the camera, EXTENT units wide, with
+ * sizes that shrink as their number grows (so the image stays about as
+ * crowded). Their positions follow one of the distributions:
+ *
+ * uniform - anywhere in the box
+ * clustered - in gaussian clusters around random centers
+ * fractal - in a self-similar dust: the box is split into 8 octants over and
+ * over, and only 4 of them (a tetrahedron) are ever kept
+ *
+ * Every primitive gets a random diffuse color, and a reflectance drawn from
+ * the mix: a list of <reflectance>:<weight> pairs, e.g. 0:3,0.5:1 for a
+ * quarter of the primitives half reflective and the rest not at all.
+ *
+ * The primitives are spheres, discs (facing random directions) and triangles
+ * (the poly element). The lights are spread over the box, and dimmed so that
+ * together they're as bright as one.
+ *
+ * Usage: SceneGenerator [-spheres <n>] [-discs <n>] [-polys <n>]
+ * [-dir-lights <n>] [-omni-lights <n>] [-spot-lights <n>] [-distribution
+ * <uniform|clustered|fractal>] [-reflectance <mix>] [-recursion <levels>]
+ * [-seed <n>] <scene file>
+ *
+ * Without counts, generates 1000 spheres under one omni light.
+ */
+public class SceneGenerator {
+
+	private static final double EXTENT = 10;
+
+	// Size of a primitive relative to its share of the box
+	private static final double SIZE = 0.4;
+
+	// The tetrahedron of octants the fractal distribution keeps
+	private static final int[] FRACTAL_OCTANTS = { 0, 3, 5, 6 };
+
+	private long spheres;
+	private long discs;
+	private long polys;
+	private int dirLights;
+	private int omniLights;
+	private int spotLights;
+	private String distribution = "uniform";
+	private double[] reflectances = { 0 };
+	private double[] weights = { 1 };
+	private int recursion = 3;
+	private long seed = 1;
+
+	private Random random;
+	private double size;
+	private double[][] clusters;
+	private int fractalLevels;
+	private StringBuilder line = new StringBuilder();
+
+	public static void main(String[] args) throws IOException {
+		SceneGenerator generator = new SceneGenerator();
+		File file = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-spheres")) {
+					generator.spheres = Long.parseLong(args[++i]);
+				} else if (args[i].equals("-discs")) {
+					generator.discs = Long.parseLong(args[++i]);
+				} else if (args[i].equals("-polys")) {
+					generator.polys = Long.parseLong(args[++i]);
+				} else if (args[i].equals("-dir-lights")) {
+					generator.dirLights = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-omni-lights")) {
+					generator.omniLights = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-spot-lights")) {
+					generator.spotLights = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-distribution")) {
+					generator.distribution = args[++i];
+				} else if (args[i].equals("-reflectance")) {
+					generator.setReflectanceMix(args[++i]);
+				} else if (args[i].equals("-recursion")) {
+					generator.recursion = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-seed")) {
+					generator.seed = Long.parseLong(args[++i]);
+				} else if (file == null && !args[i].startsWith("-")) {
+					file = new File(args[i]);
+				} else {
+					throw new IllegalArgumentException("Unknown argument: " + args[i]);
+				}
+			}
+			if (file == null) {
+				throw new IllegalArgumentException("No scene file");
+			}
+			if (!generator.distribution.matches("uniform|clustered|fractal")) {
+				throw new IllegalArgumentException("Unknown distribution: "
+						+ generator.distribution);
+			}
+		} catch (RuntimeException e) {
+			System.err.println(e.getMessage());
+			System.err.println("Usage: SceneGenerator [-spheres <n>] [-discs <n>] [-polys <n>] "
+					+ "[-dir-lights <n>] [-omni-lights <n>] [-spot-lights <n>] "
+					+ "[-distribution <uniform|clustered|fractal>] [-reflectance <mix>] "
+					+ "[-recursion <levels>] [-seed <n>] <scene file>");
+			System.exit(2);
+		}
+		if (generator.spheres + generator.discs + generator.polys == 0) {
+			generator.spheres = 1000;
+		}
+		if (generator.dirLights + generator.omniLights + generator.spotLights == 0) {
+			generator.omniLights = 1;
+		}
+
+		long start = System.nanoTime();
+		Writer out = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(file), "UTF-8"), 1 << 16);
+		try {
+			generator.generate(out);
+		} finally {
+			out.close();
+		}
+		System.out.printf("%s: %,d primitives, %,d lights, %,d bytes in %.1f s%n",
+				file, generator.spheres + generator.discs + generator.polys,
+				generator.dirLights + generator.omniLights + generator.spotLights,
+				file.length(), (System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * Parses a reflectance mix, e.g. 0:3,0.5:1.
+	 */
+	private void setReflectanceMix(String mix) {
+		String[] pairs = mix.split(",");
+		reflectances = new double[pairs.length];
+		weights = new double[pairs.length];
+		double total = 0;
+		for (int i = 0; i < pairs.length; i++) {
+			String[] pair = pairs[i].split(":");
+			reflectances[i] = Double.parseDouble(pair[0]);
+			weights[i] = pair.length > 1 ? Double.parseDouble(pair[1]) : 1;
+			if (reflectances[i] < 0 || reflectances[i] > 1 || weights[i] < 0) {
+				throw new IllegalArgumentException("Invalid reflectance mix: " + mix);
+			}
+			total += weights[i];
+		}
+		if (total <= 0) {
+			throw new IllegalArgumentException("Invalid reflectance mix: " + mix);
+		}
+		for (int i = 0; i < weights.length; i++) {
+			weights[i] /= total;
+		}
+	}
+
+	/**
+	 * Writes the whole scene.
+	 */
+	private void generate(Writer out) throws IOException {
+		random = new Random(seed);
+		long primitives = spheres + discs + polys;
+		size = SIZE * EXTENT / Math.cbrt(primitives);
+
+		// Clusters of about a thousand primitives (at least 4 clusters)
+		int clusterCount = (int) Math.max(4, Math.min(100000, primitives / 1000));
+		clusters = new double[clusterCount][];
+		for (int i = 0; i < clusterCount; i++) {
+			clusters[i] = uniform();
+		}
+
+		// Deep enough for a cell per primitive
+		fractalLevels = (int) Math.ceil(Math.log(primitives) / Math.log(FRACTAL_OCTANTS.length)) + 1;
+
+		out.write("<scene\n");
+		out.write("\tbackground-col=\"0.1 0.1 0.15\"\n");
+		out.write("\tambient-light=\"0.1 0.1 0.1\"\n");
+		out.write("\tmax-recursion-level=\"" + recursion + "\"\n");
+		out.write(">\n\n");
+
+		// Looking into the box, which spans -EXTENT to -3 EXTENT on the z axis
+		out.write("\t<camera\n");
+		out.write("\teye=\"0 0 0\"\n");
+		out.write("\tdirection=\"0 0 -1\"\n");
+		out.write("\tup-direction=\"0 1 0\"\n");
+		out.write("\tscreen-dist=\"1\"\n");
+		out.write("\tscreen-width=\"2\"\n");
+		out.write("\t/>\n\n");
+
+		writeLights(out);
+
+		for (long i = 0; i < spheres; i++) {
+			double[] c = position();
+			line.setLength(0);
+			line.append("\t<sphere center=\"");
+			append(c);
+			line.append("\" radius=\"");
+			append(size * (0.5 + random.nextDouble()));
+			line.append('"');
+			appendMaterial();
+			out.append(line);
+		}
+		for (long i = 0; i < discs; i++) {
+			double[] c = position();
+			line.setLength(0);
+			line.append("\t<disc center=\"");
+			append(c);
+			line.append("\" radius=\"");
+			append(size * (0.5 + random.nextDouble()));
+			line.append("\" normal=\"");
+			append(direction());
+			line.append('"');
+			appendMaterial();
+			out.append(line);
+		}
+		for (long i = 0; i < polys; i++) {
+			double[] c = position();
+			line.setLength(0);
+			line.append("\t<triangle");
+			appendTriangle(c);
+			appendMaterial();
+			out.append(line);
+		}
+
+		out.write("\n</scene>\n");
+	}
+
+	/**
+	 * Writes the lights, above and around the box, pointing into it.
+	 */
+	private void writeLights(Writer out) throws IOException {
+		int lights = dirLights + omniLights + spotLights;
+		String color = number(1.0 / lights) + " " + number(1.0 / lights) + " "
+				+ number(1.0 / lights);
+		double[] center = { 0, 0, -2 * EXTENT };
+
+		for (int i = 0; i < dirLights; i++) {
+			double[] d = direction();
+			d[1] = -Math.abs(d[1]) - 0.5; // From above
+			out.write("\t<dir-light direction=\"" + vector(d) + "\" color=\""
+					+ color + "\" />\n");
+		}
+		for (int i = 0; i < omniLights; i++) {
+			out.write("\t<omni-light pos=\"" + vector(lightPosition()) + "\" color=\""
+					+ color + "\" kc=\"1\" kl=\"0\" kq=\"0\" />\n");
+		}
+		for (int i = 0; i < spotLights; i++) {
+			double[] p = lightPosition();
+			double[] d = { center[0] - p[0], center[1] - p[1], center[2] - p[2] };
+			out.write("\t<spot-light pos=\"" + vector(p) + "\" dir=\"" + vector(d)
+					+ "\" color=\"" + color + "\" kc=\"1\" kl=\"0\" kq=\"0\" />\n");
+		}
+		out.write("\n");
+	}
+
+	/**
+	 * A random point above the box, and a bit in front of it.
+	 */
+	private double[] lightPosition() {
+		return new double[] { (random.nextDouble() * 2 - 1) * EXTENT,
+				EXTENT * (1 + random.nextDouble()),
+				-EXTENT * (0.5 + 2 * random.nextDouble()) };
+	}
+
+	/**
+	 * A random point in the box, following the distribution.
+	 */
+	private double[] position() {
+		if (distribution.equals("clustered")) {
+			double[] c = clusters[random.nextInt(clusters.length)];
+			double spread = EXTENT / (2 * Math.cbrt(clusters.length));
+			return clamp(new double[] { c[0] + random.nextGaussian() * spread,
+					c[1] + random.nextGaussian() * spread,
+					c[2] + random.nextGaussian() * spread });
+		}
+		if (distribution.equals("fractal")) {
+			double[] p = { -EXTENT, -EXTENT, -3 * EXTENT };
+			double cell = 2 * EXTENT;
+			for (int level = 0; level < fractalLevels; level++) {
+				cell /= 2;
+				int octant = FRACTAL_OCTANTS[random.nextInt(FRACTAL_OCTANTS.length)];
+				p[0] += (octant & 1) * cell;
+				p[1] += ((octant >> 1) & 1) * cell;
+				p[2] += ((octant >> 2) & 1) * cell;
+			}
+			p[0] += random.nextDouble() * cell;
+			p[1] += random.nextDouble() * cell;
+			p[2] += random.nextDouble() * cell;
+			return p;
+		}
+		return uniform();
+	}
+
+	private double[] uniform() {
+		return new double[] { (random.nextDouble() * 2 - 1) * EXTENT,
+				(random.nextDouble() * 2 - 1) * EXTENT,
+				-EXTENT * (1 + 2 * random.nextDouble()) };
+	}
+
+	private static double[] clamp(double[] p) {
+		p[0] = Math.max(-EXTENT, Math.min(EXTENT, p[0]));
+		p[1] = Math.max(-EXTENT, Math.min(EXTENT, p[1]));
+		p[2] = Math.max(-3 * EXTENT, Math.min(-EXTENT, p[2]));
+		return p;
+	}
+
+	/**
+	 * A random unit vector.
+	 */
+	private double[] direction() {
+		double[] d;
+		double length;
+		do {
+			d = new double[] { random.nextGaussian(), random.nextGaussian(),
+					random.nextGaussian() };
+			length = Math.sqrt(d[0] * d[0] + d[1] * d[1] + d[2] * d[2]);
+		} while (length < 1e-6);
+		d[0] /= length;
+		d[1] /= length;
+		d[2] /= length;
+		return d;
+	}
+
+	/**
+	 * Appends the points of a random triangle around a center: three points
+	 * on a circle in a random plane, at least 60 degrees apart, so it's never
+	 * degenerate.
+	 */
+	private void appendTriangle(double[] c) {
+		double[] n = direction();
+		double[] u = Math.abs(n[0]) < 0.9 ? new double[] { 1, 0, 0 }
+				: new double[] { 0, 1, 0 };
+		u = cross(n, u);
+		double length = Math.sqrt(u[0] * u[0] + u[1] * u[1] + u[2] * u[2]);
+		u[0] /= length;
+		u[1] /= length;
+		u[2] /= length;
+		double[] v = cross(n, u);
+
+		double radius = size * (0.5 + random.nextDouble());
+		double angle = random.nextDouble() * 2 * Math.PI;
+		for (int i = 0; i < 3; i++) {
+			double a = angle + i * 2 * Math.PI / 3 + (random.nextDouble() - 0.5)
+					* Math.PI / 3;
+			double cos = Math.cos(a) * radius;
+			double sin = Math.sin(a) * radius;
+			line.append(" p").append(i).append("=\"");
+			append(new double[] { c[0] + u[0] * cos + v[0] * sin,
+					c[1] + u[1] * cos + v[1] * sin, c[2] + u[2] * cos + v[2] * sin });
+			line.append('"');
+		}
+	}
+
+	private static double[] cross(double[] a, double[] b) {
+		return new double[] { a[1] * b[2] - a[2] * b[1],
+				a[2] * b[0] - a[0] * b[2], a[0] * b[1] - a[1] * b[0] };
+	}
+
+	/**
+	 * Appends a random material, closing the element.
+	 */
+	private void appendMaterial() {
+		line.append(" mtl-diffuse=\"");
+		append(new double[] { 0.2 + 0.8 * random.nextDouble(),
+				0.2 + 0.8 * random.nextDouble(), 0.2 + 0.8 * random.nextDouble() });
+		line.append("\" mtl-specular=\"0.5 0.5 0.5\" mtl-shininess=\"20\"");
+
+		double r = random.nextDouble();
+		int k = 0;
+		while (k < weights.length - 1 && r >= weights[k]) {
+			r -= weights[k++];
+		}
+		if (reflectances[k] > 0) {
+			line.append(" reflectance=\"");
+			append(reflectances[k]);
+			line.append('"');
+		}
+		line.append(" />\n");
+	}
+
+	// Numbers are written with a fixed number of decimals, which is faster
+	// than formatting them, and the same in every locale
+	private static final int DECIMALS = 5;
+	private static final long SCALE = 100000;
+
+	private void append(double x) {
+		long fixed = Math.round(x * SCALE);
+		if (fixed < 0) {
+			line.append('-');
+			fixed = -fixed;
+		}
+		line.append(fixed / SCALE).append('.');
+		String fraction = Long.toString(fixed % SCALE);
+		for (int i = fraction.length(); i < DECIMALS; i++) {
+			line.append('0');
+		}
+		line.append(fraction);
+	}
+
+	private void append(double[] v) {
+		append(v[0]);
+		line.append(' ');
+		append(v[1]);
+		line.append(' ');
+		append(v[2]);
+	}
+
+	private String number(double x) {
+		line.setLength(0);
+		append(x);
+		return line.toString();
+	}
+
+	private String vector(double[] v) {
+		line.setLength(0);
+		append(v);
+		return line.toString();
+	}
+}
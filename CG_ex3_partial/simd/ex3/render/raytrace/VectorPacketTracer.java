@@ -0,0 +1,271 @@
+package ex3.render.raytrace;
+
+import java.util.List;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import math.Simd;
+import shapes.Intersection;
+import shapes.Surface;
+
+/**
+ * A packet tracer whose kernels test Simd.LANES rays of the packet at a time
+ * against an object, with the Vector API: one lane per ray, loaded straight
+ * from the arrays of the packet.
+ *
+ * Every lane does the arithmetic of the scalar kernels of PacketTracer,
+ * operation for operation (no fused multiply-adds), so every ray gets exactly
+ * the same closest hit. The rays left over at the end of a packet, fewer than
+ * a vector, go through the scalar kernels.
+ *
+ * Compiled and run with --add-modules jdk.incubator.vector. Created by
+ * PacketTracer.create() when that's the case.
+ *
+ */
+public class VectorPacketTracer extends PacketTracer {
+
+	// The shape of the vectors, a constant so that they compile to vector instructions
+	private static final VectorSpecies<Double> SPECIES = VectorSpecies.of(double.class, VectorShape.forBitSize(Simd.LANES * Double.SIZE));
+
+	// All zeros, to turn masks into vectors: on JDK 17, masked stores, andNot(),
+	// toLong() and laneIsSet() of masks aren't compiled to vector instructions
+	// and box the vectors (allocating on every call)
+	private static final DoubleVector ZERO = DoubleVector.zero(SPECIES);
+
+	/**
+	 * Constructor.
+	 *
+	 * @param surfaces - the surfaces of the scene
+	 */
+	public VectorPacketTracer(List<Surface> surfaces) {
+		super(surfaces);
+	}
+
+	@Override
+	int intersectSphere(RayPacket packet, int from, int to, Surface obj, double[] sphere) {
+
+		double cx = sphere[0], cy = sphere[1], cz = sphere[2], r2 = sphere[3];
+
+		int i = from;
+		for (; i <= to - SPECIES.length(); i += SPECIES.length()) {
+
+			DoubleVector ox = DoubleVector.fromArray(SPECIES, packet.ox, i);
+			DoubleVector oy = DoubleVector.fromArray(SPECIES, packet.oy, i);
+			DoubleVector oz = DoubleVector.fromArray(SPECIES, packet.oz, i);
+			DoubleVector vx = DoubleVector.fromArray(SPECIES, packet.dx, i);
+			DoubleVector vy = DoubleVector.fromArray(SPECIES, packet.dy, i);
+			DoubleVector vz = DoubleVector.fromArray(SPECIES, packet.dz, i);
+
+			DoubleVector wx = ox.sub(cx);
+			DoubleVector wy = oy.sub(cy);
+			DoubleVector wz = oz.sub(cz);
+			DoubleVector b = vx.mul(wx).add(vy.mul(wy)).add(vz.mul(wz)).mul(2);
+			DoubleVector c = wx.mul(wx).add(wy.mul(wy)).add(wz.mul(wz)).sub(r2);
+			DoubleVector discriminant = b.mul(b).sub(c.mul(4.0));
+
+			// No solution exists, for any of the rays
+			VectorMask<Double> solved = discriminant.compare(VectorOperators.LT, 0.0).not();
+			if (!solved.anyTrue()) {
+				continue;
+			}
+			DoubleVector d = discriminant.lanewise(VectorOperators.SQRT);
+
+			// Take the closest t in front of the origin
+			DoubleVector t1 = b.neg().add(d).div(2.0);
+			DoubleVector t2 = b.neg().sub(d).div(2.0);
+			VectorMask<Double> behind1 = t1.compare(VectorOperators.LE, 0.0);
+			VectorMask<Double> behind2 = t2.compare(VectorOperators.LE, 0.0);
+			DoubleVector t = t1.min(t2)
+					.blend(t1, t1.compare(VectorOperators.GT, 0.0).and(behind2))
+					.blend(t2, t2.compare(VectorOperators.GT, 0.0).and(behind1));
+			VectorMask<Double> valid = solved.and(behind1.and(behind2).not());
+
+			DoubleVector hx = ox.add(vx.mul(t));
+			DoubleVector hy = oy.add(vy.mul(t));
+			DoubleVector hz = oz.add(vz.mul(t));
+
+			// Keep the hits that are the closest ones of their rays so far
+			DoubleVector ex = ox.sub(hx);
+			DoubleVector ey = oy.sub(hy);
+			DoubleVector ez = oz.sub(hz);
+			DoubleVector dist = ex.mul(ex).add(ey.mul(ey)).add(ez.mul(ez)).lanewise(VectorOperators.SQRT);
+			DoubleVector closest = DoubleVector.fromArray(SPECIES, packet.distance, i);
+			VectorMask<Double> closer = valid
+					.and(dist.compare(VectorOperators.LT, closest))
+					.and(dist.compare(VectorOperators.GT, Intersection.TOLERANCE));
+			if (closer.anyTrue()) {
+				closest.blend(dist, closer).intoArray(packet.distance, i);
+				DoubleVector.fromArray(SPECIES, packet.px, i).blend(hx, closer).intoArray(packet.px, i);
+				DoubleVector.fromArray(SPECIES, packet.py, i).blend(hy, closer).intoArray(packet.py, i);
+				DoubleVector.fromArray(SPECIES, packet.pz, i).blend(hz, closer).intoArray(packet.pz, i);
+				DoubleVector hits = ZERO.blend(1.0, closer);
+				for (int lane = 0; lane < SPECIES.length(); lane++) {
+					if (hits.lane(lane) != 0.0) {
+						packet.object[i + lane] = obj;
+					}
+				}
+			}
+		}
+
+		// The rays left, one at a time
+		return (i - from) + super.intersectSphere(packet, i, to, obj, sphere);
+
+	}
+
+	@Override
+	int intersectDisc(RayPacket packet, int from, int to, Surface obj, double[] disc) {
+
+		DoubleVector cx = DoubleVector.broadcast(SPECIES, disc[0]);
+		DoubleVector cy = DoubleVector.broadcast(SPECIES, disc[1]);
+		DoubleVector cz = DoubleVector.broadcast(SPECIES, disc[2]);
+		double nx = disc[3], ny = disc[4], nz = disc[5];
+		double radius = disc[6];
+
+		int i = from;
+		for (; i <= to - SPECIES.length(); i += SPECIES.length()) {
+
+			DoubleVector vx = DoubleVector.fromArray(SPECIES, packet.dx, i);
+			DoubleVector vy = DoubleVector.fromArray(SPECIES, packet.dy, i);
+			DoubleVector vz = DoubleVector.fromArray(SPECIES, packet.dz, i);
+
+			// The disc's plane, back-faces ignored
+			DoubleVector rayDotNormal = vx.mul(nx).add(vy.mul(ny)).add(vz.mul(nz));
+			VectorMask<Double> facing = rayDotNormal.compare(VectorOperators.GE, 0.0).not();
+			if (!facing.anyTrue()) {
+				continue;
+			}
+			DoubleVector ox = DoubleVector.fromArray(SPECIES, packet.ox, i);
+			DoubleVector oy = DoubleVector.fromArray(SPECIES, packet.oy, i);
+			DoubleVector oz = DoubleVector.fromArray(SPECIES, packet.oz, i);
+			DoubleVector d = cx.sub(ox).mul(nx).add(cy.sub(oy).mul(ny)).add(cz.sub(oz).mul(nz)).div(rayDotNormal);
+			DoubleVector hx = ox.add(vx.mul(d));
+			DoubleVector hy = oy.add(vy.mul(d));
+			DoubleVector hz = oz.add(vz.mul(d));
+
+			// Inside the disc
+			DoubleVector rx = hx.sub(cx);
+			DoubleVector ry = hy.sub(cy);
+			DoubleVector rz = hz.sub(cz);
+			DoubleVector fromCenter = rx.mul(rx).add(ry.mul(ry)).add(rz.mul(rz)).lanewise(VectorOperators.SQRT);
+			VectorMask<Double> inside = facing.and(fromCenter.compare(VectorOperators.LE, radius));
+			if (!inside.anyTrue()) {
+				continue;
+			}
+
+			// Keep the hits that are the closest ones of their rays so far
+			DoubleVector ex = ox.sub(hx);
+			DoubleVector ey = oy.sub(hy);
+			DoubleVector ez = oz.sub(hz);
+			DoubleVector dist = ex.mul(ex).add(ey.mul(ey)).add(ez.mul(ez)).lanewise(VectorOperators.SQRT);
+			DoubleVector closest = DoubleVector.fromArray(SPECIES, packet.distance, i);
+			VectorMask<Double> closer = inside
+					.and(dist.compare(VectorOperators.LT, closest))
+					.and(dist.compare(VectorOperators.GT, Intersection.TOLERANCE));
+			if (closer.anyTrue()) {
+				closest.blend(dist, closer).intoArray(packet.distance, i);
+				DoubleVector.fromArray(SPECIES, packet.px, i).blend(hx, closer).intoArray(packet.px, i);
+				DoubleVector.fromArray(SPECIES, packet.py, i).blend(hy, closer).intoArray(packet.py, i);
+				DoubleVector.fromArray(SPECIES, packet.pz, i).blend(hz, closer).intoArray(packet.pz, i);
+				DoubleVector hits = ZERO.blend(1.0, closer);
+				for (int lane = 0; lane < SPECIES.length(); lane++) {
+					if (hits.lane(lane) != 0.0) {
+						packet.object[i + lane] = obj;
+					}
+				}
+			}
+		}
+
+		// The rays left, one at a time
+		return (i - from) + super.intersectDisc(packet, i, to, obj, disc);
+
+	}
+
+	@Override
+	int intersectPoly(RayPacket packet, int from, int to, Surface obj, double[] poly) {
+
+		double nx = poly[0], ny = poly[1], nz = poly[2];
+		DoubleVector qx = DoubleVector.broadcast(SPECIES, poly[3]);
+		DoubleVector qy = DoubleVector.broadcast(SPECIES, poly[4]);
+		DoubleVector qz = DoubleVector.broadcast(SPECIES, poly[5]);
+		int size = (poly.length - 3) / 3;
+
+		int i = from;
+		for (; i <= to - SPECIES.length(); i += SPECIES.length()) {
+
+			DoubleVector vx = DoubleVector.fromArray(SPECIES, packet.dx, i);
+			DoubleVector vy = DoubleVector.fromArray(SPECIES, packet.dy, i);
+			DoubleVector vz = DoubleVector.fromArray(SPECIES, packet.dz, i);
+
+			// The poly's plane, back-faces ignored
+			DoubleVector rayDotNormal = vx.mul(nx).add(vy.mul(ny)).add(vz.mul(nz));
+			VectorMask<Double> inside = rayDotNormal.compare(VectorOperators.GE, 0.0).not();
+			if (!inside.anyTrue()) {
+				continue;
+			}
+			DoubleVector ox = DoubleVector.fromArray(SPECIES, packet.ox, i);
+			DoubleVector oy = DoubleVector.fromArray(SPECIES, packet.oy, i);
+			DoubleVector oz = DoubleVector.fromArray(SPECIES, packet.oz, i);
+			DoubleVector d = qx.sub(ox).mul(nx).add(qy.sub(oy).mul(ny)).add(qz.sub(oz).mul(nz)).div(rayDotNormal);
+			DoubleVector hx = ox.add(vx.mul(d));
+			DoubleVector hy = oy.add(vy.mul(d));
+			DoubleVector hz = oz.add(vz.mul(d));
+
+			// Inside every side of the pyramid from the origin to the poly
+			DoubleVector fx = hx.sub(ox), fy = hy.sub(oy), fz = hz.sub(oz);
+			for (int j = 0; j < size && inside.anyTrue(); j++) {
+				int a = 3 + 3*j;
+				int b = 3 + 3*((j+1) % size);
+				DoubleVector v1x = DoubleVector.broadcast(SPECIES, poly[a]).sub(ox);
+				DoubleVector v1y = DoubleVector.broadcast(SPECIES, poly[a+1]).sub(oy);
+				DoubleVector v1z = DoubleVector.broadcast(SPECIES, poly[a+2]).sub(oz);
+				DoubleVector v2x = DoubleVector.broadcast(SPECIES, poly[b]).sub(ox);
+				DoubleVector v2y = DoubleVector.broadcast(SPECIES, poly[b+1]).sub(oy);
+				DoubleVector v2z = DoubleVector.broadcast(SPECIES, poly[b+2]).sub(oz);
+				DoubleVector sx = v2y.mul(v1z).sub(v2z.mul(v1y));
+				DoubleVector sy = v2z.mul(v1x).sub(v2x.mul(v1z));
+				DoubleVector sz = v2x.mul(v1y).sub(v2y.mul(v1x));
+				DoubleVector side = fx.mul(sx).add(fy.mul(sy)).add(fz.mul(sz));
+				inside = inside.and(side.compare(VectorOperators.LT, 0.0).not());
+			}
+			if (!inside.anyTrue()) {
+				continue;
+			}
+
+			// Keep the hits that are the closest ones of their rays so far
+			DoubleVector ex = ox.sub(hx);
+			DoubleVector ey = oy.sub(hy);
+			DoubleVector ez = oz.sub(hz);
+			DoubleVector dist = ex.mul(ex).add(ey.mul(ey)).add(ez.mul(ez)).lanewise(VectorOperators.SQRT);
+			DoubleVector closest = DoubleVector.fromArray(SPECIES, packet.distance, i);
+			VectorMask<Double> closer = inside
+					.and(dist.compare(VectorOperators.LT, closest))
+					.and(dist.compare(VectorOperators.GT, Intersection.TOLERANCE));
+			if (closer.anyTrue()) {
+				closest.blend(dist, closer).intoArray(packet.distance, i);
+				DoubleVector.fromArray(SPECIES, packet.px, i).blend(hx, closer).intoArray(packet.px, i);
+				DoubleVector.fromArray(SPECIES, packet.py, i).blend(hy, closer).intoArray(packet.py, i);
+				DoubleVector.fromArray(SPECIES, packet.pz, i).blend(hz, closer).intoArray(packet.pz, i);
+				DoubleVector hits = ZERO.blend(1.0, closer);
+				for (int lane = 0; lane < SPECIES.length(); lane++) {
+					if (hits.lane(lane) != 0.0) {
+						packet.object[i + lane] = obj;
+					}
+				}
+			}
+		}
+
+		// The rays left, one at a time
+		return (i - from) + super.intersectPoly(packet, i, to, obj, poly);
+
+	}
+
+	@Override
+	public int lanes() {
+		return SPECIES.length();
+	}
+
+}
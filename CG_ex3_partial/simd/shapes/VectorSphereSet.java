@@ -0,0 +1,117 @@
+package shapes;
+
+import java.util.Arrays;
+import java.util.List;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+import math.Point3D;
+import math.Ray;
+import math.Simd;
+
+/**
+ * A sphere set that tests a ray against Simd.LANES spheres at a time, with
+ * the Vector API: one lane per sphere, loaded straight from the arrays of
+ * centers and squared radii.
+ *
+ * The arrays are padded to a whole number of vectors with spheres no ray can
+ * hit (radius^2 = -infinity, so the discriminant is -infinity). Most vectors
+ * of spheres miss the ray altogether, and cost only the discriminants. Of
+ * the lanes that hit, the closest one is kept, the first one of a tie, so the
+ * closest hit is the one the scalar loop finds; every lane does its
+ * arithmetic operation for operation. Nothing is allocated but the
+ * intersection returned (the lanes are never copied out to arrays).
+ *
+ * Compiled and run with --add-modules jdk.incubator.vector. Created by
+ * SphereSet.create() when that's the case.
+ *
+ */
+public class VectorSphereSet extends SphereSet {
+
+	// The shape of the vectors, a constant so that they compile to vector instructions
+	private static final VectorSpecies<Double> SPECIES = VectorSpecies.of(double.class, VectorShape.forBitSize(Simd.LANES * Double.SIZE));
+
+	/**
+	 * Constructor.
+	 *
+	 * @param spheres - the spheres, in the order to test them
+	 */
+	public VectorSphereSet(List<Sphere> spheres) {
+
+		super(spheres);
+
+		int padded = SPECIES.loopBound(cx.length + SPECIES.length() - 1);
+		cx = Arrays.copyOf(cx, padded);
+		cy = Arrays.copyOf(cy, padded);
+		cz = Arrays.copyOf(cz, padded);
+		r2 = Arrays.copyOf(r2, padded);
+		Arrays.fill(r2, spheres.size(), padded, Double.NEGATIVE_INFINITY);
+
+	}
+
+	@Override
+	public Intersection closestIntersection(Ray ray, double minDistance) {
+
+		DoubleVector ox = DoubleVector.broadcast(SPECIES, ray.p.x);
+		DoubleVector oy = DoubleVector.broadcast(SPECIES, ray.p.y);
+		DoubleVector oz = DoubleVector.broadcast(SPECIES, ray.p.z);
+		double vx = ray.v.x, vy = ray.v.y, vz = ray.v.z;
+		int closest = -1;
+		double closestT = 0;
+
+		for (int start = 0; start < cx.length; start += SPECIES.length()) {
+
+			// Which spheres the ray's line hits
+			DoubleVector wx = ox.sub(DoubleVector.fromArray(SPECIES, cx, start));
+			DoubleVector wy = oy.sub(DoubleVector.fromArray(SPECIES, cy, start));
+			DoubleVector wz = oz.sub(DoubleVector.fromArray(SPECIES, cz, start));
+			DoubleVector b = wx.mul(vx).add(wy.mul(vy)).add(wz.mul(vz)).mul(2);
+			DoubleVector c = wx.mul(wx).add(wy.mul(wy)).add(wz.mul(wz)).sub(DoubleVector.fromArray(SPECIES, r2, start));
+			DoubleVector discriminant = b.mul(b).sub(c.mul(4.0));
+			VectorMask<Double> solved = discriminant.compare(VectorOperators.LT, 0.0).not();
+			if (!solved.anyTrue()) {
+				continue;
+			}
+
+			// Take the closest t in front of the origin
+			DoubleVector d = discriminant.lanewise(VectorOperators.SQRT);
+			DoubleVector t1 = b.neg().add(d).div(2.0);
+			DoubleVector t2 = b.neg().sub(d).div(2.0);
+			VectorMask<Double> behind1 = t1.compare(VectorOperators.LE, 0.0);
+			VectorMask<Double> behind2 = t2.compare(VectorOperators.LE, 0.0);
+			DoubleVector t = t1.min(t2)
+					.blend(t1, t1.compare(VectorOperators.GT, 0.0).and(behind2))
+					.blend(t2, t2.compare(VectorOperators.GT, 0.0).and(behind1));
+			VectorMask<Double> valid = solved.and(behind1.and(behind2).not());
+
+			// Their distances
+			DoubleVector ex = ox.sub(ox.add(t.mul(vx)));
+			DoubleVector ey = oy.sub(oy.add(t.mul(vy)));
+			DoubleVector ez = oz.sub(oz.add(t.mul(vz)));
+			DoubleVector dist = ex.mul(ex).add(ey.mul(ey)).add(ez.mul(ez)).lanewise(VectorOperators.SQRT);
+			VectorMask<Double> closer = valid
+					.and(dist.compare(VectorOperators.LT, minDistance))
+					.and(dist.compare(VectorOperators.GT, Intersection.TOLERANCE));
+
+			// Keep the closest, the first one if there's a tie (as in order)
+			if (closer.anyTrue()) {
+				minDistance = dist.reduceLanes(VectorOperators.MIN, closer);
+				int lane = closer.and(dist.compare(VectorOperators.EQ, minDistance)).firstTrue();
+				closest = start + lane;
+				closestT = t.lane(lane);
+			}
+
+		}
+
+		if (closest == -1) {
+			return null;
+		}
+		return new Intersection(spheres[closest], new Point3D(ray.p.x + vx*closestT, ray.p.y + vy*closestT, ray.p.z + vz*closestT), minDistance);
+
+	}
+
+}
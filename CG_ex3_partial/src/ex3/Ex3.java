@@ -1,8 +1,27 @@
 package ex3;
 
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
 
 import ex3.gui.MainFrame;
+import ex3.headless.BatchRenderer;
+import ex3.headless.BudgetedRender;
+import ex3.headless.CheckpointedRender;
+import ex3.headless.CropRender;
+import ex3.headless.FarmCoordinator;
+import ex3.headless.HeadlessRenderer;
+import ex3.headless.RenderClient;
+import ex3.headless.RenderDaemon;
+import ex3.headless.SceneWatcher;
+import ex3.headless.StreamingRender;
+import ex3.image.HdrFrameBuffer;
+import ex3.image.ParallelPngWriter;
+import ex3.render.IRenderer;
+import ex3.render.RenderEvents;
+import ex3.render.RenderStats;
 
 /**
  * You basically don't need to add things here to the this package
@@ -18,8 +37,118 @@ public class Ex3 {
 	/**
 	 * Main method. Command line usage is: <input scene filename> <canvas width>
 	 * <canvas height> <target image filename>
+	 * 
+	 * Prefix the arguments with -watch to keep running and re-render whenever
+	 * the scene file (or its texture) changes.
+	 * 
+	 * -daemon [<socket file>] starts a render server on a Unix domain socket,
+	 * and -client sends jobs to it: -client [-socket <socket file>] <input
+	 * scene filename> <canvas width> <canvas height> <target image filename>,
+	 * or -client [-socket <socket file>] shutdown.
+	 * 
+	 * -batch <scene directory or glob> [<canvas width> <canvas height>]
+	 * [-threads <n>] [-csv <summary file>] renders many scenes in one go.
+	 * 
+	 * -farm <workers> <input scene filename> <canvas width> <canvas height>
+	 * <target image filename> [-tile <lines>] [<worker JVM options>] renders
+	 * one image with several worker JVMs.
+	 * 
+	 * -checkpoint <checkpoint file> [-resume] <input scene filename> <canvas
+	 * width> <canvas height> <target image filename> saves progress while
+	 * rendering; with -resume it continues from the saved progress.
+	 * 
+	 * -stream [-band <lines>] <input scene filename> <canvas width> <canvas
+	 * height> <target image filename> renders images too big for memory,
+	 * streaming them to a PNG or PPM (by extension) file.
+	 * 
+	 * -hdr [-map <frame buffer file>] [-reinhard] <input scene filename>
+	 * <canvas width> <canvas height> <target image filename> keeps the
+	 * unclamped colors, and saves them to a PFM file, or tone mapped to a PNG.
+	 * With -map the samples are kept in the given file, and every run adds
+	 * more.
+	 * 
+	 * -budget <milliseconds> <input scene filename> <canvas width> <canvas
+	 * height> <target image filename> lowers the scene's super sampling and
+	 * recursion level as needed to finish within the given time.
+	 * 
+	 * -crop <x> <y> <width> <height> [-into <full image>] <input scene
+	 * filename> <canvas width> <canvas height> <target image filename> renders
+	 * only the given rectangle of the canvas. With -into the rectangle is
+	 * pasted into a previous render of the whole canvas.
+	 * 
+	 * The normal mode and -hdr print statistics of the render (rays, primitive
+	 * tests, recursion depth and phase timings), and also write them to a JSON
+	 * file when the JVM runs with -Dex3.stats.json=<file>.
+	 * 
+	 * With -Dex3.heatmap=rays, tests or nanos, the cost of every pixel is kept
+	 * too, and saved as a false colour image next to the rendered image (e.g.
+	 * image.heat.png for image.png) by the normal mode, -hdr and -batch.
+	 * 
+	 * On JVMs with Flight Recorder, renders emit JFR events (see RenderEvents)
+	 * for the scene load, build, every line and the image encode.
+	 * 
+	 * The normal mode, -stream and the modes that render with HeadlessRenderer
+	 * (-hdr, -batch, -daemon, -watch) register a RenderMonitor MBean, which JMX
+	 * tools can use to watch the progress of renders, and pause, resume or
+	 * cancel them.
+	 * 
+	 * With -Dex3.capture=<file>, every ray traced is recorded to the given
+	 * file with its closest hit (see RayRecorder), for the RayReplay benchmark.
+	 * 
+	 * All modes render with the default ray tracer, or with the wavefront
+	 * renderer when the JVM runs with -Dex3.renderer=wavefront (add
+	 * -Dex3.wavefront.sort=direction or origin to sort its ray queues).
+	 * 
+	 * When the JVM runs with --add-modules jdk.incubator.vector, packets of rays
+	 * are intersected with vector instructions, 4 or 8 rays at a time
+	 * (-Dex3.simd=4, 8 or off, see Simd).
+	 * 
+	 * Scenes with super sampling place their sub-pixel rays with the pattern
+	 * set with -Dex3.sampler=jittered (the default), halton or grid (see
+	 * PixelSampler).
 	 */
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("-watch")) {
+			watch(shift(args));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-daemon")) {
+			daemon(shift(args));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-client")) {
+			client(shift(args));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-batch")) {
+			batch(shift(args));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-farm")) {
+			farm(shift(args));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-checkpoint")) {
+			checkpoint(shift(args));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-stream")) {
+			stream(shift(args));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-hdr")) {
+			hdr(shift(args));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-budget")) {
+			budget(shift(args));
+			return;
+		}
+		if (args.length > 0 && args[0].equals("-crop")) {
+			crop(shift(args));
+			return;
+		}
+
 		String sceneFilename = null;
 		String imageFilename = null;
 		int canvasWidth = 480;
@@ -52,4 +181,401 @@ public class Ex3 {
 			System.exit(1);
 		}
 	}
+
+	/**
+	 * Watch mode. Same arguments as the normal mode. Without a target image
+	 * filename the renders are shown in the GUI, otherwise they are saved to
+	 * the target image.
+	 */
+	private static void watch(String[] args) {
+		if (args.length == 0) {
+			System.out.println("Usage: -watch <input scene filename> [<canvas width> <canvas height> [<target image filename>]]");
+			return;
+		}
+
+		File sceneFile = new File(args[0]);
+		int canvasWidth = args.length > 1 ? Integer.valueOf(args[1]) : 480;
+		int canvasHeight = args.length > 2 ? Integer.valueOf(args[2]) : 360;
+		final File imageFile = args.length > 3 ? new File(args[3]) : null;
+
+		final MainFrame mainFrame;
+		if (imageFile == null) {
+			mainFrame = new MainFrame();
+			mainFrame.initialize(args[0], canvasWidth, canvasHeight,
+					getAboutMessage());
+			mainFrame.setVisible(true);
+		} else {
+			mainFrame = null;
+		}
+
+		SceneWatcher watcher = new SceneWatcher(sceneFile, canvasWidth,
+				canvasHeight, new SceneWatcher.Listener() {
+
+					public void sceneRendered(BufferedImage image,
+							boolean preview) {
+						if (mainFrame != null) {
+							mainFrame.showImage(image);
+						} else if (!preview) {
+							try {
+								ParallelPngWriter.write(image, imageFile);
+							} catch (IOException e) {
+								e.printStackTrace();
+							}
+						}
+					}
+				});
+
+		try {
+			watcher.run();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			// Done watching
+		}
+	}
+
+	/**
+	 * Daemon mode. Serves render jobs until asked to shut down.
+	 */
+	private static void daemon(String[] args) {
+		File socketFile = args.length > 0 ? new File(args[0])
+				: RenderDaemon.DEFAULT_SOCKET;
+		try {
+			new RenderDaemon(socketFile).run();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Client mode. Sends one job to the daemon and prints its response. Exits
+	 * with a non-zero status if the job failed.
+	 */
+	private static void client(String[] args) {
+		File socketFile = RenderDaemon.DEFAULT_SOCKET;
+		if (args.length > 1 && args[0].equals("-socket")) {
+			socketFile = new File(args[1]);
+			args = shift(shift(args));
+		}
+
+		RenderClient client = new RenderClient(socketFile);
+		String response;
+		try {
+			if (args.length == 1 && args[0].equals("shutdown")) {
+				response = client.shutdown();
+			} else if (args.length == 4) {
+				response = client.render(new File(args[0]),
+						Integer.valueOf(args[1]), Integer.valueOf(args[2]),
+						new File(args[3]));
+			} else {
+				System.out.println("Usage: -client [-socket <socket file>] <input scene filename> <canvas width> <canvas height> <target image filename>");
+				System.out.println("       -client [-socket <socket file>] shutdown");
+				return;
+			}
+		} catch (IOException e) {
+			System.out.println("Could not reach the render daemon: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		System.out.println(response);
+		if (!response.startsWith("OK")) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Batch mode. Renders every scene of a directory or glob, writes the images
+	 * next to the scenes and a CSV summary (by default batch-summary.csv in the
+	 * working directory).
+	 */
+	private static void batch(String[] args) {
+		String dirOrGlob = null;
+		int canvasWidth = 480;
+		int canvasHeight = 360;
+		int threads = Runtime.getRuntime().availableProcessors();
+		File csvFile = new File("batch-summary.csv");
+
+		int positional = 0;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-threads") && i + 1 < args.length) {
+				threads = Integer.valueOf(args[++i]);
+			} else if (args[i].equals("-csv") && i + 1 < args.length) {
+				csvFile = new File(args[++i]);
+			} else if (positional == 0) {
+				dirOrGlob = args[i];
+				positional++;
+			} else if (positional == 1) {
+				canvasWidth = Integer.valueOf(args[i]);
+				positional++;
+			} else {
+				canvasHeight = Integer.valueOf(args[i]);
+			}
+		}
+		if (dirOrGlob == null) {
+			System.out.println("Usage: -batch <scene directory or glob> [<canvas width> <canvas height>] [-threads <n>] [-csv <summary file>]");
+			return;
+		}
+
+		try {
+			List<File> scenes = BatchRenderer.findScenes(dirOrGlob);
+			System.out.println("Rendering " + scenes.size() + " scenes on "
+					+ threads + " threads");
+
+			long start = System.nanoTime();
+			List<BatchRenderer.Result> results = new BatchRenderer(scenes,
+					canvasWidth, canvasHeight, threads).run();
+			long elapsed = System.nanoTime() - start;
+
+			int failed = 0;
+			for (BatchRenderer.Result r : results) {
+				if (!r.status.equals("OK")) {
+					System.out.println(r.sceneFile + ": " + r.status);
+					failed++;
+				}
+			}
+			BatchRenderer.writeSummary(results, csvFile);
+			System.out.printf("Done in %.1f s, %d failed, summary in %s%n",
+					elapsed / 1e9, failed, csvFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			// Abandon the batch
+		}
+	}
+
+	/**
+	 * Farm mode. Renders a single image with several worker JVMs.
+	 */
+	private static void farm(String[] args) {
+		if (args.length < 5) {
+			System.out.println("Usage: -farm <workers> <input scene filename> <canvas width> <canvas height> <target image filename> [-tile <lines>] [<worker JVM options>]");
+			return;
+		}
+
+		FarmCoordinator farm = new FarmCoordinator(new File(args[1]),
+				Integer.valueOf(args[2]), Integer.valueOf(args[3]),
+				Integer.valueOf(args[0]));
+		for (int i = 5; i < args.length; i++) {
+			if (args[i].equals("-tile") && i + 1 < args.length) {
+				farm.setTileHeight(Integer.valueOf(args[++i]));
+			} else {
+				farm.addWorkerJvmOption(args[i]);
+			}
+		}
+
+		try {
+			long start = System.nanoTime();
+			BufferedImage image = farm.render();
+			System.out.printf("Rendered in %.1f s%n",
+					(System.nanoTime() - start) / 1e9);
+			ParallelPngWriter.write(image, new File(args[4]));
+		} catch (IOException e) {
+			System.out.println("Render failed: " + e.getMessage());
+			System.exit(1);
+		} catch (InterruptedException e) {
+			// Abandon the render
+		}
+	}
+
+	/**
+	 * Checkpoint mode. Renders to file while saving finished bands, and deletes
+	 * the checkpoint once the image is saved.
+	 */
+	private static void checkpoint(String[] args) {
+		boolean resume = args.length > 1 && args[1].equals("-resume");
+		String[] rest = resume ? shift(shift(args)) : shift(args);
+		if (args.length == 0 || rest.length != 4) {
+			System.out.println("Usage: -checkpoint <checkpoint file> [-resume] <input scene filename> <canvas width> <canvas height> <target image filename>");
+			return;
+		}
+
+		File checkpointFile = new File(args[0]);
+		CheckpointedRender render = new CheckpointedRender(new File(rest[0]),
+				Integer.valueOf(rest[1]), Integer.valueOf(rest[2]),
+				checkpointFile);
+		try {
+			BufferedImage image = render.render(resume);
+			if (resume) {
+				System.out.println("Resumed " + render.getResumedBands()
+						+ " of " + render.bandCount() + " bands");
+			}
+			ParallelPngWriter.write(image, new File(rest[3]));
+			checkpointFile.delete();
+		} catch (Exception e) {
+			System.out.println("Render failed: " + e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Streaming mode. Renders band by band straight to the target file.
+	 */
+	private static void stream(String[] args) {
+		int bandHeight = -1;
+		if (args.length > 1 && args[0].equals("-band")) {
+			bandHeight = Integer.valueOf(args[1]);
+			args = shift(shift(args));
+		}
+		if (args.length != 4) {
+			System.out.println("Usage: -stream [-band <lines>] <input scene filename> <canvas width> <canvas height> <target image filename>");
+			return;
+		}
+
+		StreamingRender render = new StreamingRender(new File(args[0]),
+				Integer.valueOf(args[1]), Integer.valueOf(args[2]));
+		if (bandHeight > 0) {
+			render.setBandHeight(bandHeight);
+		}
+		try {
+			long start = System.nanoTime();
+			render.render(new File(args[3]));
+			System.out.printf("Rendered in %.1f s%n",
+					(System.nanoTime() - start) / 1e9);
+			System.out.printf("Encoding: %.1f ms on its own, %.1f ms after the last band%n",
+					render.getEncodeNanos() / 1e6,
+					render.getEncodeTailNanos() / 1e6);
+		} catch (Exception e) {
+			System.out.println("Render failed: " + e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * HDR mode. Renders into a floating point frame buffer, and saves it as is
+	 * (.pfm) or tone mapped (anything else, as PNG).
+	 */
+	private static void hdr(String[] args) {
+		File mapFile = null;
+		boolean reinhard = false;
+		while (args.length > 0 && args[0].startsWith("-")) {
+			if (args[0].equals("-map") && args.length > 1) {
+				mapFile = new File(args[1]);
+				args = shift(shift(args));
+			} else if (args[0].equals("-reinhard")) {
+				reinhard = true;
+				args = shift(args);
+			} else {
+				break;
+			}
+		}
+		if (args.length != 4) {
+			System.out.println("Usage: -hdr [-map <frame buffer file>] [-reinhard] <input scene filename> <canvas width> <canvas height> <target image filename>");
+			return;
+		}
+
+		int canvasWidth = Integer.valueOf(args[1]);
+		int canvasHeight = Integer.valueOf(args[2]);
+		File imageFile = new File(args[3]);
+		try {
+			HeadlessRenderer headless = new HeadlessRenderer(new File(args[0]));
+			IRenderer renderer = headless.build(headless.parse(), canvasWidth,
+					canvasHeight);
+
+			HdrFrameBuffer frameBuffer = mapFile != null ? HdrFrameBuffer.map(
+					mapFile, canvasWidth, canvasHeight) : new HdrFrameBuffer(
+					canvasWidth, canvasHeight);
+			headless.render(renderer, frameBuffer);
+			frameBuffer.force();
+			System.out.println(headless.timingSummary() + ", "
+					+ frameBuffer.getSampleCount(0, 0) + " samples per pixel");
+
+			if (imageFile.getName().toLowerCase().endsWith(".pfm")) {
+				long start = System.nanoTime();
+				RenderEvents.Event event = RenderEvents.IMAGE_ENCODE.begin();
+				frameBuffer.writePfm(imageFile);
+				event.commit(imageFile.getPath(), canvasWidth, canvasHeight);
+				renderer.getStats().addTime(RenderStats.Phase.ENCODE,
+						System.nanoTime() - start);
+				if (renderer.getStats().getCostMap() != null) {
+					renderer.getStats().getCostMap().writeNextTo(imageFile);
+				}
+			} else {
+				if (reinhard) {
+					frameBuffer.setToneMap(HdrFrameBuffer.ToneMap.REINHARD);
+				}
+				BufferedImage image = new BufferedImage(canvasWidth,
+						canvasHeight, BufferedImage.TYPE_INT_RGB);
+				frameBuffer.toImage(image);
+				headless.write(renderer, image, imageFile);
+			}
+			renderer.getStats().report(System.out);
+		} catch (Exception e) {
+			System.out.println("Render failed: " + e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Budget mode. Renders within a time budget, and reports the settings it
+	 * used and the time it took.
+	 */
+	private static void budget(String[] args) {
+		if (args.length != 5) {
+			System.out.println("Usage: -budget <milliseconds> <input scene filename> <canvas width> <canvas height> <target image filename>");
+			return;
+		}
+
+		BudgetedRender render = new BudgetedRender(new File(args[1]),
+				Integer.valueOf(args[2]), Integer.valueOf(args[3]),
+				Long.valueOf(args[0]));
+		try {
+			BufferedImage image = render.render();
+			System.out.print(render.report());
+			ParallelPngWriter.write(image, new File(args[4]));
+		} catch (Exception e) {
+			System.out.println("Render failed: " + e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Crop mode. Renders a rectangle of the canvas, on its own or pasted into
+	 * a previous render.
+	 */
+	private static void crop(String[] args) {
+		if (args.length < 8) {
+			System.out.println("Usage: -crop <x> <y> <width> <height> [-into <full image>] <input scene filename> <canvas width> <canvas height> <target image filename>");
+			return;
+		}
+
+		Rectangle region = new Rectangle(Integer.valueOf(args[0]),
+				Integer.valueOf(args[1]), Integer.valueOf(args[2]),
+				Integer.valueOf(args[3]));
+		String[] rest = shift(shift(shift(shift(args))));
+		File fullImage = null;
+		if (rest[0].equals("-into") && rest.length == 6) {
+			fullImage = new File(rest[1]);
+			rest = shift(shift(rest));
+		}
+		if (rest.length != 4) {
+			System.out.println("Usage: -crop <x> <y> <width> <height> [-into <full image>] <input scene filename> <canvas width> <canvas height> <target image filename>");
+			return;
+		}
+
+		try {
+			CropRender render = new CropRender(new File(rest[0]),
+					Integer.valueOf(rest[1]), Integer.valueOf(rest[2]), region);
+			long start = System.nanoTime();
+			BufferedImage image = fullImage != null ? render
+					.renderInto(fullImage) : render.render();
+			System.out.printf("Rendered %dx%d pixels in %.1f ms%n",
+					region.width, region.height,
+					(System.nanoTime() - start) / 1e6);
+			ParallelPngWriter.write(image, new File(rest[3]));
+		} catch (Exception e) {
+			System.out.println("Render failed: " + e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @return The arguments without the first one
+	 */
+	private static String[] shift(String[] args) {
+		String[] rest = new String[args.length - 1];
+		System.arraycopy(args, 1, rest, 0, rest.length);
+		return rest;
+	}
 }
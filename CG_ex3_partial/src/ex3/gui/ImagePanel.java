@@ -1,7 +1,14 @@
 package ex3.gui;
 
+import java.awt.BasicStroke;
+import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
 
 import javax.swing.JPanel;
@@ -14,16 +21,46 @@ import javax.swing.JPanel;
  * "repaint" will the new image appear.
  * 
  * NOTE: the dimensions of the image panel below.
+ * 
+ * A rectangle of the image can be selected by dragging the mouse over it (a
+ * click clears the selection), e.g. to render that region only.
  */
 public class ImagePanel extends JPanel {
 
 	private static final long serialVersionUID = 1L;
 	private BufferedImage image;
 
+	// Rubber band selection, in image coordinates
+	private Point anchor;
+	private Rectangle selection;
+
 	public ImagePanel() {
 		super();
 		this.setDoubleBuffered(false);
 		this.setPreferredSize(new Dimension(320, 240));
+
+		MouseAdapter rubberBand = new MouseAdapter() {
+
+			public void mousePressed(MouseEvent e) {
+				anchor = e.getPoint();
+				setSelection(null);
+			}
+
+			public void mouseDragged(MouseEvent e) {
+				if (anchor == null) {
+					return;
+				}
+				Rectangle dragged = new Rectangle(anchor);
+				dragged.add(e.getPoint());
+				setSelection(dragged);
+			}
+
+			public void mouseReleased(MouseEvent e) {
+				anchor = null;
+			}
+		};
+		addMouseListener(rubberBand);
+		addMouseMotionListener(rubberBand);
 	}
 
 	public BufferedImage getImage() {
@@ -31,10 +68,45 @@ public class ImagePanel extends JPanel {
 	}
 
 	/**
-	 * Overrides the JPanel's paint method to draw the image
+	 * @return The selected rectangle, within the image, or null if nothing is
+	 *         selected
+	 */
+	public Rectangle getSelection() {
+		if (selection == null || image == null) {
+			return null;
+		}
+		Rectangle clipped = selection.intersection(new Rectangle(0, 0, image
+				.getWidth(), image.getHeight()));
+		return clipped.isEmpty() ? null : clipped;
+	}
+
+	/**
+	 * Selects a rectangle of the image, or clears the selection.
+	 * 
+	 * @param selection
+	 *            Rectangle in image coordinates, or null
+	 */
+	public void setSelection(Rectangle selection) {
+		this.selection = selection;
+		repaint();
+	}
+
+	/**
+	 * Overrides the JPanel's paint method to draw the image, and the selection
+	 * over it
 	 */
 	public void paint(Graphics g) {
 		g.drawImage(image, 0, 0, null);
+
+		if (selection != null) {
+			Graphics2D g2 = (Graphics2D) g.create();
+			g2.setXORMode(Color.WHITE);
+			g2.setStroke(new BasicStroke(1, BasicStroke.CAP_BUTT,
+					BasicStroke.JOIN_MITER, 1, new float[] { 4, 4 }, 0));
+			g2.drawRect(selection.x, selection.y, selection.width - 1,
+					selection.height - 1);
+			g2.dispose();
+		}
 	}
 
 	/**
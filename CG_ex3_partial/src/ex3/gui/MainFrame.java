@@ -2,6 +2,7 @@ package ex3.gui;
 
 import java.awt.BorderLayout;
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -15,8 +16,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-import javax.imageio.ImageIO;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JMenu;
@@ -27,8 +30,16 @@ import javax.swing.KeyStroke;
 import javax.swing.UIManager;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
+import ex3.image.ConcurrentFrameBuffer;
+import ex3.image.CostMap;
+import ex3.image.ParallelPngWriter;
 import ex3.parser.SceneDescriptor;
 import ex3.render.IRenderer;
+import ex3.render.LineRenderTask;
+import ex3.render.RegionRenderTask;
+import ex3.render.RenderEvents;
+import ex3.render.RenderMonitor;
+import ex3.render.RenderStats;
 import ex3.render.RendererFactory;
 
 /**
@@ -38,6 +49,9 @@ public class MainFrame extends JFrame {
 
 	private static final long serialVersionUID = 1L;
 
+	// Milliseconds between screen updates while rendering
+	private static final long SNAPSHOT_INTERVAL = 100;
+
 	protected String aboutMessage;
 	protected File currentDir;
 	protected File sceneFile;
@@ -148,6 +162,17 @@ public class MainFrame extends JFrame {
 			}
 		});
 
+		menuItem = new JMenuItem("Render Selection", KeyEvent.VK_S);
+		menuItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_R,
+				ActionEvent.CTRL_MASK));
+		menu.add(menuItem);
+		menuItem.addActionListener(new ActionListener() {
+
+			public void actionPerformed(ActionEvent e) {
+				renderSelection();
+			}
+		});
+
 		return menu;
 	}
 
@@ -203,12 +228,16 @@ public class MainFrame extends JFrame {
 
 	/**
 	 * Load the scene and render it to a canvas while display it in the image
-	 * panel.
+	 * panel. Prints the statistics of the render at the end (see
+	 * RenderStats). The render can be watched, paused and cancelled through
+	 * JMX while it runs (see RenderMonitor).
 	 */
 	public void render() {
 
 		System.out.println("Begin Render");
 
+		long start = System.nanoTime();
+		RenderEvents.Event event = RenderEvents.SCENE_LOAD.begin();
 		if (!loadSceneFromFile(sceneFile)) {
 			return;
 		}
@@ -227,23 +256,92 @@ public class MainFrame extends JFrame {
 			System.out.println("Syntactical error in scene description:");
 			e.printStackTrace();
 		}
+		event.commit(sceneFile.getPath(), sd.getObjects().size());
+		long parseNanos = System.nanoTime() - start;
 
 		// Instantiate new renderer
+		start = System.nanoTime();
 		renderer = RendererFactory.newInstance();
 		renderer.init(sd, (int) getImageSize().getWidth(), (int) getImageSize()
 				.getHeight(), sceneFile);
+		RenderStats stats = renderer.getStats();
+		stats.addTime(RenderStats.Phase.PARSE, parseNanos);
+		stats.addTime(RenderStats.Phase.BUILD, System.nanoTime() - start);
 
-		// Create canvas
+		// Create canvas, and a frame buffer the render threads add samples to
 		BufferedImage canvas = new BufferedImage(canvasWidth, canvasHeight,
 				BufferedImage.TYPE_INT_RGB);
-
-		// Render a line and draw to screen immediately
-		for (int y = 0; y < canvas.getHeight(); ++y) {
-			renderer.renderLine(canvas, y);
-			showImage(canvas);
+		ConcurrentFrameBuffer frameBuffer = new ConcurrentFrameBuffer(
+				canvasWidth, canvasHeight);
+
+		// Render the lines in parallel, and draw snapshots of the frame buffer
+		// to screen while they render
+		start = System.nanoTime();
+		RenderMonitor.Render monitored = RenderMonitor.get().begin(
+				sceneFile.getPath(), renderer, canvasHeight);
+		ForkJoinTask<Void> task = ForkJoinPool.commonPool().submit(
+				new LineRenderTask(renderer, frameBuffer, 0, canvasHeight));
+		try {
+			while (!task.isDone()) {
+				frameBuffer.snapshot(canvas);
+				showImage(canvas);
+				try {
+					Thread.sleep(SNAPSHOT_INTERVAL);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			task.join();
+		} catch (CancellationException e) {
+			System.out.println("Render cancelled");
+		} finally {
+			monitored.end();
 		}
+		frameBuffer.snapshot(canvas);
+		showImage(canvas);
+		stats.addTime(RenderStats.Phase.RENDER, System.nanoTime() - start);
 
 		System.out.println("End Render");
+		stats.report(System.out);
+	}
+
+	/**
+	 * Load the scene again and render only the rectangle selected in the image
+	 * panel, in place. The rest of the image is kept, so a detail can be
+	 * checked after changing the scene without rendering the whole frame.
+	 */
+	public void renderSelection() {
+
+		BufferedImage canvas = imagePanel.getImage();
+		Rectangle region = imagePanel.getSelection();
+		if (canvas == null || region == null) {
+			JOptionPane.showMessageDialog(this,
+					"Render the scene, then drag over the image to select a region.",
+					"Render Selection", JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+
+		if (!loadSceneFromFile(sceneFile)) {
+			return;
+		}
+
+		SceneDescriptor sd = new SceneDescriptor();
+		try {
+			sd.fromXML(sceneXMLDesc);
+		} catch (ParseException e) {
+			System.out.println("Syntactical error in scene description:");
+			e.printStackTrace();
+			return;
+		}
+
+		// Rays are shot through the full canvas, so the region matches it
+		renderer = RendererFactory.newInstance();
+		renderer.init(sd, canvas.getWidth(), canvas.getHeight(), sceneFile);
+
+		int[] rgb = RegionRenderTask.renderRegion(renderer, region);
+		canvas.setRGB(region.x, region.y, region.width, region.height, rgb, 0,
+				region.width);
+		showImage(canvas);
 	}
 
 	/**
@@ -309,7 +407,9 @@ public class MainFrame extends JFrame {
 	}
 
 	/**
-	 * Saves currently rendered image to given file
+	 * Saves currently rendered image to given file. The time it takes is
+	 * added to the statistics of the render (and to their JSON file, if any).
+	 * The cost map of the render, if one was kept, is saved next to it.
 	 * 
 	 * @param file
 	 *            Image filename
@@ -319,7 +419,28 @@ public class MainFrame extends JFrame {
 			return;
 
 		try {
-			ImageIO.write(imagePanel.getImage(), "png", file);
+			long start = System.nanoTime();
+			RenderEvents.Event event = RenderEvents.IMAGE_ENCODE.begin();
+			ParallelPngWriter.write(imagePanel.getImage(), file);
+			event.commit(file.getPath(), imagePanel.getImage().getWidth(),
+					imagePanel.getImage().getHeight());
+			long encodeNanos = System.nanoTime() - start;
+			System.out.printf("Encoded in %.1f ms%n", encodeNanos / 1e6);
+
+			if (renderer != null) {
+				renderer.getStats().addTime(RenderStats.Phase.ENCODE,
+						encodeNanos);
+				if (RenderStats.JSON_FILE != null) {
+					renderer.getStats().writeJson(
+							new File(RenderStats.JSON_FILE));
+				}
+
+				CostMap costMap = renderer.getStats().getCostMap();
+				if (costMap != null) {
+					System.out.println("Cost map saved to "
+							+ costMap.writeNextTo(file));
+				}
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
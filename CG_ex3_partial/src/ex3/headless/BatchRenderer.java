@@ -0,0 +1,285 @@
+package ex3.headless;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import ex3.parser.SceneDescriptor;
+import ex3.render.IRenderer;
+
+/**
+ * Renders many scenes in one JVM.
+ *
+ * All the work runs in a single fork/join pool with one thread per core:
+ * scenes are submitted to the pool, and each scene forks its bands of lines
+ * into the same pool (see LineRenderTask). Idle threads steal bands from busy
+ * scenes, so a batch of small scenes and a single big scene both keep every
+ * core busy without ever running more threads than cores. The number of scenes
+ * in flight is bounded as well, to bound the memory their canvases take.
+ *
+ * Each image is written next to its scene, as &lt;scene&gt;.render.png (the
+ * plain &lt;scene&gt;.png names are taken by the reference images).
+ */
+public class BatchRenderer {
+
+	public static final String OUTPUT_SUFFIX = ".render.png";
+
+	private List<File> sceneFiles;
+	private int width;
+	private int height;
+	private int threads;
+	private int maxScenesInFlight;
+
+	// How often the heap is sampled for the peak heap column
+	private static final long HEAP_SAMPLE_MILLIS = 10;
+
+	// Results of the scenes currently in flight
+	private Set<Result> active = Collections
+			.newSetFromMap(new ConcurrentHashMap<Result, Boolean>());
+
+	/**
+	 * Per scene results, written to the summary.
+	 */
+	public static class Result {
+		public File sceneFile;
+		public String status = "OK";
+		public long parseNanos;
+		public long buildNanos;
+		public long renderNanos;
+		public long encodeNanos;
+		public long rays;
+		public volatile long peakHeapBytes;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sceneFiles
+	 *            Scenes to render
+	 * @param width
+	 *            Width of the rendered images
+	 * @param height
+	 *            Height of the rendered images
+	 * @param threads
+	 *            Size of the thread pool
+	 */
+	public BatchRenderer(List<File> sceneFiles, int width, int height,
+			int threads) {
+		this.sceneFiles = sceneFiles;
+		this.width = width;
+		this.height = height;
+		this.threads = threads;
+		this.maxScenesInFlight = 2 * threads;
+	}
+
+	/**
+	 * Renders all the scenes.
+	 *
+	 * @return Results, in the order of the scene files
+	 */
+	public List<Result> run() throws InterruptedException {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		Semaphore inFlight = new Semaphore(maxScenesInFlight);
+		List<SceneTask> tasks = new ArrayList<SceneTask>();
+
+		ScheduledExecutorService sampler = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "heap-sampler");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		sampler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				sampleHeap();
+			}
+		}, 0, HEAP_SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+
+		try {
+			for (File sceneFile : sceneFiles) {
+				inFlight.acquire();
+				SceneTask task = new SceneTask(sceneFile, inFlight);
+				tasks.add(task);
+				pool.execute(task);
+			}
+
+			List<Result> results = new ArrayList<Result>();
+			for (SceneTask task : tasks) {
+				task.join();
+				results.add(task.result);
+			}
+			return results;
+		} finally {
+			sampler.shutdown();
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Records the heap in use into every scene currently in flight. Scenes
+	 * render concurrently, so this is the JVM's heap while the scene was in
+	 * flight, not the scene's own.
+	 */
+	private void sampleHeap() {
+		Runtime rt = Runtime.getRuntime();
+		long used = rt.totalMemory() - rt.freeMemory();
+		for (Result r : active) {
+			r.peakHeapBytes = Math.max(r.peakHeapBytes, used);
+		}
+	}
+
+	/**
+	 * Parses, renders and saves a single scene.
+	 */
+	private class SceneTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private Semaphore inFlight;
+		private Result result = new Result();
+
+		SceneTask(File sceneFile, Semaphore inFlight) {
+			this.result.sceneFile = sceneFile;
+			this.inFlight = inFlight;
+		}
+
+		@Override
+		protected void compute() {
+			active.add(result);
+			try {
+				HeadlessRenderer headless = new HeadlessRenderer(result.sceneFile);
+				SceneDescriptor sd = headless.parse();
+				IRenderer renderer = headless.build(sd, width, height);
+				BufferedImage image = headless.render(renderer, width, height);
+
+				headless.write(renderer, image, outputFile(result.sceneFile));
+
+				result.encodeNanos = headless.getEncodeNanos();
+				result.parseNanos = headless.getParseNanos();
+				result.buildNanos = headless.getBuildNanos();
+				result.renderNanos = headless.getRenderNanos();
+				result.rays = renderer.getRayCount();
+			} catch (Exception e) {
+				result.status = e.toString();
+			} finally {
+				sampleHeap();
+				active.remove(result);
+				inFlight.release();
+			}
+		}
+	}
+
+	/**
+	 * Writes the results as CSV, one line per scene.
+	 */
+	public static void writeSummary(List<Result> results, File csvFile)
+			throws IOException {
+		PrintWriter out = new PrintWriter(csvFile, "UTF-8");
+		try {
+			out.println("scene,status,parse_ms,build_ms,render_ms,encode_ms,rays,peak_heap_mb");
+			for (Result r : results) {
+				out.printf("%s,%s,%.2f,%.2f,%.2f,%.2f,%d,%.1f%n",
+						csv(r.sceneFile.getPath()), csv(r.status),
+						r.parseNanos / 1e6, r.buildNanos / 1e6,
+						r.renderNanos / 1e6, r.encodeNanos / 1e6, r.rays,
+						r.peakHeapBytes / (1024.0 * 1024.0));
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Quotes a CSV field if needed.
+	 */
+	private static String csv(String field) {
+		if (field.contains(",") || field.contains("\"")) {
+			return "\"" + field.replace("\"", "\"\"") + "\"";
+		}
+		return field;
+	}
+
+	/**
+	 * @return The image file written for the given scene
+	 */
+	public static File outputFile(File sceneFile) {
+		String name = sceneFile.getName();
+		if (name.toLowerCase().endsWith(".xml")) {
+			name = name.substring(0, name.length() - 4);
+		}
+		return new File(sceneFile.getAbsoluteFile().getParentFile(), name
+				+ OUTPUT_SUFFIX);
+	}
+
+	/**
+	 * Collects the scene files of a directory (recursively), or the files
+	 * matching a glob pattern such as "scenes/*&#47;*.xml".
+	 *
+	 * @param dirOrGlob
+	 *            A directory or a glob pattern
+	 * @return The matching scene files, sorted by path
+	 */
+	public static List<File> findScenes(String dirOrGlob) throws IOException {
+		final List<File> found = new ArrayList<File>();
+		final PathMatcher matcher;
+		Path root;
+
+		if (new File(dirOrGlob).isDirectory()) {
+			root = Paths.get(dirOrGlob);
+			matcher = FileSystems.getDefault().getPathMatcher("glob:**.xml");
+		} else {
+			// Walk from the longest prefix without wildcards
+			String glob = dirOrGlob.replace(File.separatorChar, '/');
+			int wildcard = indexOfWildcard(glob);
+			int slash = glob.lastIndexOf('/', wildcard);
+			root = Paths.get(slash < 0 ? "." : glob.substring(0, Math.max(1, slash)));
+			String pattern = slash < 0 ? glob : glob.substring(slash + 1);
+			matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+		}
+
+		final Path base = root;
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (matcher.matches(base.relativize(file))) {
+					found.add(file.toFile());
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		Collections.sort(found);
+		return found;
+	}
+
+	private static int indexOfWildcard(String glob) {
+		for (int i = 0; i < glob.length(); i++) {
+			if ("*?[{".indexOf(glob.charAt(i)) >= 0) {
+				return i;
+			}
+		}
+		return glob.length();
+	}
+}
@@ -0,0 +1,476 @@
+package ex3.headless;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import ex3.parser.SceneDescriptor;
+import ex3.render.IRenderer;
+import ex3.render.LineRenderTask;
+
+/**
+ * Renders a scene within a wall clock budget (e.g. thumbnails that must be
+ * ready by a deadline), giving up quality rather than time.
+ *
+ * A few bands spread over the image are rendered first, to measure what a
+ * line costs. From that, the best settings expected to fit in the budget are
+ * chosen: the scene's own super-samp-width and max-recursion-level, lowering
+ * super sampling first and then the recursion level. The whole image is
+ * rendered with those settings, and if it falls behind, the remaining bands
+ * drop to cheaper ones. Time left at the end is spent re-rendering bands at
+ * the scene's own settings, those with the most contrast (where super sampling
+ * and reflections show the most) first, for as long as the budget allows.
+ */
+public class BudgetedRender {
+
+	// Lines per band, the unit of profiling and of refinement
+	private static final int BAND_HEIGHT = 8;
+
+	// One band out of this many is rendered to profile the scene
+	private static final int PROFILE_STRIDE = 16;
+
+	// Part of the remaining time the chosen settings may be expected to take,
+	// the rest is a margin for estimation errors
+	private static final double PLAN_FRACTION = 0.8;
+
+	private static final int DEFAULT_MAX_RECURSION = 10;
+
+	/**
+	 * Render settings, as given by the super-samp-width and
+	 * max-recursion-level scene attributes.
+	 */
+	public static class Quality {
+
+		// Super sampling width, 1 for no super sampling
+		public final int superSampling;
+		public final int maxRecursion;
+
+		public Quality(int superSampling, int maxRecursion) {
+			this.superSampling = superSampling;
+			this.maxRecursion = maxRecursion;
+		}
+
+		/**
+		 * @return Rays shot through each pixel
+		 */
+		public int samples() {
+			return superSampling * superSampling;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Quality)) {
+				return false;
+			}
+			Quality other = (Quality) o;
+			return superSampling == other.superSampling
+					&& maxRecursion == other.maxRecursion;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * superSampling + maxRecursion;
+		}
+
+		@Override
+		public String toString() {
+			return "super-samp-width=" + superSampling
+					+ ", max-recursion-level=" + maxRecursion;
+		}
+	}
+
+	private File sceneFile;
+	private int width;
+	private int height;
+	private long budgetNanos;
+
+	private HeadlessRenderer headless;
+	private SceneDescriptor sd;
+	private long deadline;
+
+	// Measured wall time per line, without super sampling, by recursion level
+	private Map<Integer, Double> lineNanos = new HashMap<Integer, Double>();
+
+	// Quality each band was rendered with
+	private Quality[] bandQuality;
+
+	// Outcome of the last render
+	private Quality requested;
+	private Quality chosen;
+	private long estimateNanos;
+	private List<String> switches = new ArrayList<String>();
+	private int refinedBands;
+	private double refineThreshold = Double.NaN;
+	private long actualNanos;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sceneFile
+	 *            Scene to render
+	 * @param width
+	 *            Width of the image
+	 * @param height
+	 *            Height of the image
+	 * @param budgetMillis
+	 *            Wall clock time the render may take, parsing included
+	 */
+	public BudgetedRender(File sceneFile, int width, int height,
+			long budgetMillis) {
+		this.sceneFile = sceneFile;
+		this.width = width;
+		this.height = height;
+		this.budgetNanos = budgetMillis * 1000000L;
+	}
+
+	/**
+	 * Renders the scene.
+	 *
+	 * @return The rendered image
+	 */
+	public BufferedImage render() throws IOException, ParseException {
+		long start = System.nanoTime();
+		deadline = start + budgetNanos;
+
+		headless = new HeadlessRenderer(sceneFile);
+		sd = headless.parse();
+		requested = requestedQuality(sd.getSceneAttributes());
+
+		List<Quality> ladder = ladder(requested);
+		int bands = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+		bandQuality = new Quality[bands];
+
+		// Choose the best settings expected to fit
+		int level = chooseLevel(ladder);
+		chosen = ladder.get(level);
+		estimateNanos = estimate(chosen);
+
+		BufferedImage canvas = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		renderBase(canvas, ladder, level);
+		refine(canvas);
+
+		actualNanos = System.nanoTime() - start;
+		return canvas;
+	}
+
+	/**
+	 * @return The settings the scene asks for
+	 */
+	private static Quality requestedQuality(Map<String, String> attributes) {
+		int superSampling = 1;
+		if (attributes.containsKey("super-samp-width")) {
+			superSampling = Math.max(1,
+					Integer.parseInt(attributes.get("super-samp-width")));
+		}
+		int maxRecursion = DEFAULT_MAX_RECURSION;
+		if (attributes.containsKey("max-recursion-level")) {
+			maxRecursion = Integer.parseInt(attributes
+					.get("max-recursion-level"));
+		}
+		return new Quality(superSampling, maxRecursion);
+	}
+
+	/**
+	 * @return Settings from the requested ones down to the cheapest: first
+	 *         less super sampling, then halving the recursion level
+	 */
+	private static List<Quality> ladder(Quality requested) {
+		List<Quality> ladder = new ArrayList<Quality>();
+		for (int ss = requested.superSampling; ss >= 1; ss--) {
+			ladder.add(new Quality(ss, requested.maxRecursion));
+		}
+		for (int rec = requested.maxRecursion / 2; rec >= 1; rec /= 2) {
+			ladder.add(new Quality(1, rec));
+		}
+		return ladder;
+	}
+
+	/**
+	 * Profiles the scene as needed and picks the first settings of the ladder
+	 * expected to fit in the remaining time.
+	 *
+	 * @return Index of the settings in the ladder
+	 */
+	private int chooseLevel(List<Quality> ladder) {
+		for (int level = 0; level < ladder.size(); level++) {
+			Quality quality = ladder.get(level);
+			profile(quality.maxRecursion);
+			long remaining = deadline - System.nanoTime();
+			if (estimate(quality) <= PLAN_FRACTION * remaining) {
+				return level;
+			}
+		}
+		return ladder.size() - 1;
+	}
+
+	/**
+	 * Measures the cost of a line at the given recursion level, without super
+	 * sampling, by rendering one band out of every PROFILE_STRIDE.
+	 */
+	private void profile(int maxRecursion) {
+		if (lineNanos.containsKey(maxRecursion)) {
+			return;
+		}
+		IRenderer renderer = build(new Quality(1, maxRecursion));
+		BufferedImage scratch = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+
+		List<Integer> bands = new ArrayList<Integer>();
+		int first = Math.min(PROFILE_STRIDE / 2, bandQuality.length - 1);
+		for (int band = first; band < bandQuality.length; band += PROFILE_STRIDE) {
+			bands.add(band);
+		}
+
+		long start = System.nanoTime();
+		int lines = renderBands(renderer, scratch, bands);
+		lineNanos.put(maxRecursion, (double) (System.nanoTime() - start)
+				/ lines);
+	}
+
+	/**
+	 * @return Expected time to render the whole image with the given settings
+	 */
+	private long estimate(Quality quality) {
+		return (long) (lineNanos.get(quality.maxRecursion) * height * quality
+				.samples());
+	}
+
+	/**
+	 * Renders the whole image, a few bands at a time. After each chunk the
+	 * pace is checked: if the rest of the image is not expected to make it,
+	 * the next chunks drop a step down the ladder, and if there is time to
+	 * spare (the first profile runs on code the JIT hasn't compiled yet, so it
+	 * tends to be pessimistic) they go a step back up.
+	 */
+	private void renderBase(BufferedImage canvas, List<Quality> ladder,
+			int level) {
+		Quality quality = ladder.get(level);
+		IRenderer renderer = build(quality);
+
+		int chunk = BAND_HEIGHT
+				* Math.max(1, ForkJoinPool.commonPool().getParallelism());
+		for (int from = 0; from < height; from += chunk) {
+			int to = Math.min(height, from + chunk);
+			long start = System.nanoTime();
+			ForkJoinPool.commonPool().invoke(
+					new LineRenderTask(renderer, canvas, from, to));
+			long now = System.nanoTime();
+			for (int band = from / BAND_HEIGHT; band * BAND_HEIGHT < to; band++) {
+				bandQuality[band] = quality;
+			}
+			if (to == height) {
+				break;
+			}
+
+			// One step at a time, the next chunk measures the new pace
+			double nanosPerLine = (double) (now - start) / (to - from);
+			int next = level;
+			if (now + nanosPerLine * (height - to) > deadline) {
+				next = Math.min(ladder.size() - 1, level + 1);
+			} else if (level > 0) {
+				Quality better = ladder.get(level - 1);
+				double betterNanosPerLine = nanosPerLine * better.samples()
+						/ quality.samples()
+						* lineNanos.get(better.maxRecursion)
+						/ lineNanos.get(quality.maxRecursion);
+				if (betterNanosPerLine * (height - to) <= PLAN_FRACTION
+						* (deadline - now)) {
+					next = level - 1;
+				}
+			}
+			if (next != level) {
+				level = next;
+				quality = ladder.get(level);
+				renderer = build(quality);
+				switches.add(String.format("Switched to %s from line %d",
+						quality, to));
+			}
+		}
+	}
+
+	/**
+	 * Re-renders bands at the requested settings, most contrasted first, as
+	 * long as the time left allows.
+	 */
+	private void refine(BufferedImage canvas) {
+		final double[] contrast = new double[bandQuality.length];
+		List<Integer> bands = new ArrayList<Integer>();
+		for (int band = 0; band < bandQuality.length; band++) {
+			if (bandQuality[band] != null && !bandQuality[band].equals(requested)) {
+				contrast[band] = contrast(canvas, band);
+				bands.add(band);
+			}
+		}
+		if (bands.isEmpty()) {
+			return;
+		}
+		Collections.sort(bands, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(contrast[b], contrast[a]);
+			}
+		});
+
+		IRenderer renderer = build(requested);
+		double nanosPerLine = lineNanos.get(requested.maxRecursion)
+				* requested.samples();
+		int batch = Math.max(1, ForkJoinPool.commonPool().getParallelism());
+
+		for (int next = 0; next < bands.size(); next += batch) {
+			List<Integer> batchBands = bands.subList(next,
+					Math.min(bands.size(), next + batch));
+			long start = System.nanoTime();
+			if (start + nanosPerLine * BAND_HEIGHT * batchBands.size() > deadline) {
+				break;
+			}
+
+			int lines = renderBands(renderer, canvas, batchBands);
+			nanosPerLine = (double) (System.nanoTime() - start) / lines;
+
+			for (int band : batchBands) {
+				bandQuality[band] = requested;
+			}
+			refinedBands += batchBands.size();
+			refineThreshold = contrast[batchBands.get(batchBands.size() - 1)];
+		}
+	}
+
+	/**
+	 * @return Mean absolute difference between neighbouring pixels of a band,
+	 *         over all channels, in [0, 1]
+	 */
+	private double contrast(BufferedImage canvas, int band) {
+		int from = band * BAND_HEIGHT;
+		int to = Math.min(height, from + BAND_HEIGHT);
+		int[] rgb = canvas.getRGB(0, from, width, to - from, null, 0, width);
+
+		long sum = 0;
+		long pairs = 0;
+		for (int y = 0; y < to - from; y++) {
+			for (int x = 0; x < width; x++) {
+				int pixel = rgb[y * width + x];
+				if (x + 1 < width) {
+					sum += difference(pixel, rgb[y * width + x + 1]);
+					pairs++;
+				}
+				if (y + 1 < to - from) {
+					sum += difference(pixel, rgb[(y + 1) * width + x]);
+					pairs++;
+				}
+			}
+		}
+		return pairs == 0 ? 0 : sum / (3 * 255.0 * pairs);
+	}
+
+	private static int difference(int a, int b) {
+		return Math.abs(((a >> 16) & 0xFF) - ((b >> 16) & 0xFF))
+				+ Math.abs(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF))
+				+ Math.abs((a & 0xFF) - (b & 0xFF));
+	}
+
+	/**
+	 * Renders some bands in parallel.
+	 *
+	 * @return Number of lines rendered
+	 */
+	private int renderBands(IRenderer renderer, BufferedImage canvas,
+			List<Integer> bands) {
+		List<ForkJoinTask<Void>> tasks = new ArrayList<ForkJoinTask<Void>>();
+		int lines = 0;
+		for (int band : bands) {
+			int from = band * BAND_HEIGHT;
+			int to = Math.min(height, from + BAND_HEIGHT);
+			tasks.add(ForkJoinPool.commonPool().submit(
+					new LineRenderTask(renderer, canvas, from, to)));
+			lines += to - from;
+		}
+		for (ForkJoinTask<Void> task : tasks) {
+			task.join();
+		}
+		return lines;
+	}
+
+	/**
+	 * Builds a renderer with the scene's description, but the given settings.
+	 */
+	private IRenderer build(Quality quality) {
+		Map<String, String> attributes = new HashMap<String, String>(
+				sd.getSceneAttributes());
+		if (quality.superSampling > 1) {
+			attributes.put("super-samp-width",
+					Integer.toString(quality.superSampling));
+		} else {
+			attributes.remove("super-samp-width");
+		}
+		attributes.put("max-recursion-level",
+				Integer.toString(quality.maxRecursion));
+
+		SceneDescriptor copy = new SceneDescriptor();
+		copy.setSceneAttributes(attributes);
+		copy.setCameraAttributes(sd.getCameraAttributes());
+		copy.setObjects(sd.getObjects());
+		return headless.build(copy, width, height);
+	}
+
+	/**
+	 * @return A few lines on the budget, the time taken and the settings used
+	 */
+	public String report() {
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("Budget %.0f ms, took %.0f ms (%.0f%%)%n",
+				budgetNanos / 1e6, actualNanos / 1e6, 100.0 * actualNanos
+						/ budgetNanos));
+		report.append("Requested: " + requested + String.format("%n"));
+		report.append(String.format("Chosen: %s (estimated %.0f ms)%n",
+				chosen, estimateNanos / 1e6));
+		for (String change : switches) {
+			report.append(change + String.format("%n"));
+		}
+		if (refinedBands > 0) {
+			report.append(String.format(
+					"Refined %d of %d bands at the requested settings (contrast threshold %.4f)%n",
+					refinedBands, bandQuality.length, refineThreshold));
+		}
+		return report.toString();
+	}
+
+	public Quality getRequestedQuality() {
+		return requested;
+	}
+
+	public Quality getChosenQuality() {
+		return chosen;
+	}
+
+	/**
+	 * @return Time the last render was expected to take with the chosen
+	 *         settings
+	 */
+	public long getEstimateNanos() {
+		return estimateNanos;
+	}
+
+	/**
+	 * @return Time the last render took
+	 */
+	public long getActualNanos() {
+		return actualNanos;
+	}
+
+	/**
+	 * @return Number of bands the last render refined at the requested
+	 *         settings
+	 */
+	public int getRefinedBands() {
+		return refinedBands;
+	}
+}
@@ -0,0 +1,372 @@
+package ex3.headless;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+import ex3.image.HdrFrameBuffer;
+import ex3.render.IRenderer;
+import ex3.render.raytrace.PixelSampler;
+
+/**
+ * Renders a scene while saving finished bands of lines to a checkpoint file,
+ * so a long render that crashes can resume instead of starting over.
+ *
+ * The checkpoint file is append only: a header, followed by one record per
+ * finished band. A band is appended as soon as it's done, and the file is
+ * forced to disk every few seconds. A crash can at most leave a partial last
+ * record behind, which the next resume drops (records carry a CRC).
+ *
+ * Pixels only depend on their coordinates, so the image of a resumed render is
+ * identical to the one of an uninterrupted render. Besides the scene and the
+ * size, the header keeps the settings that change the pixels (the renderer,
+ * the sample pattern and how colors are quantized), and a resume under other
+ * settings fails rather than mix two different images.
+ */
+public class CheckpointedRender {
+
+	private static final int MAGIC = 0x45583343; // "EX3C"
+	private static final int VERSION = 2;
+
+	// magic, version, width, height, band height, scene hash (long), length
+	// of the settings, followed by the settings (UTF-8)
+	private static final int HEADER_BYTES = 5 * 4 + 8 + 4;
+
+	// from, to, crc
+	private static final int RECORD_HEADER_BYTES = 3 * 4;
+
+	// How often appended bands are forced to disk
+	private static final long FORCE_INTERVAL_NANOS = 5000000000L;
+
+	private File sceneFile;
+	private File checkpointFile;
+	private int width;
+	private int height;
+	private int bandHeight = 16;
+
+	private FileChannel channel;
+	private long lastForce;
+	private int resumedBands;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sceneFile
+	 *            Scene to render
+	 * @param width
+	 *            Width of the image
+	 * @param height
+	 *            Height of the image
+	 * @param checkpointFile
+	 *            Where to save the finished bands
+	 */
+	public CheckpointedRender(File sceneFile, int width, int height,
+			File checkpointFile) {
+		this.sceneFile = sceneFile;
+		this.width = width;
+		this.height = height;
+		this.checkpointFile = checkpointFile;
+	}
+
+	/**
+	 * Sets the number of lines in each checkpointed band. Ignored when
+	 * resuming, the checkpoint's band height is used instead.
+	 */
+	public void setBandHeight(int bandHeight) {
+		this.bandHeight = bandHeight;
+	}
+
+	/**
+	 * Renders the scene.
+	 *
+	 * @param resume
+	 *            Whether to continue from an existing checkpoint file (if there
+	 *            is none, the render starts from scratch)
+	 * @return The rendered image
+	 * @throws IOException
+	 *             If the checkpoint file can't be written, or belongs to
+	 *             another scene or size
+	 */
+	public BufferedImage render(boolean resume) throws IOException,
+			ParseException {
+
+		HeadlessRenderer headless = new HeadlessRenderer(sceneFile);
+		IRenderer renderer = headless.build(headless.parse(), width, height);
+		long sceneHash = hash(headless.getSceneText());
+		String settings = settings(renderer);
+
+		BufferedImage canvas = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+
+		boolean[] done;
+		if (resume && checkpointFile.exists()) {
+			channel = FileChannel.open(checkpointFile.toPath(),
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			done = readCheckpoint(sceneHash, settings, canvas);
+		} else {
+			channel = FileChannel.open(checkpointFile.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			writeHeader(sceneHash, settings);
+			done = new boolean[bandCount()];
+		}
+
+		try {
+			final List<BandTask> tasks = new ArrayList<BandTask>();
+			for (int band = 0; band < done.length; band++) {
+				if (!done[band]) {
+					tasks.add(new BandTask(renderer, canvas, band));
+				}
+			}
+
+			ForkJoinPool.commonPool().invoke(new RecursiveAction() {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					ForkJoinTask.invokeAll(tasks);
+				}
+			});
+
+			channel.force(true);
+		} catch (RuntimeException e) {
+			// Checkpoint I/O errors are wrapped by the bands
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw e;
+		} finally {
+			channel.close();
+		}
+
+		return canvas;
+	}
+
+	/**
+	 * @return Number of bands restored from the checkpoint by the last render
+	 */
+	public int getResumedBands() {
+		return resumedBands;
+	}
+
+	/**
+	 * @return Total number of bands in the image
+	 */
+	public int bandCount() {
+		return (height + bandHeight - 1) / bandHeight;
+	}
+
+	/**
+	 * Renders one band and appends it to the checkpoint.
+	 */
+	private class BandTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private IRenderer renderer;
+		private BufferedImage canvas;
+		private int band;
+
+		BandTask(IRenderer renderer, BufferedImage canvas, int band) {
+			this.renderer = renderer;
+			this.canvas = canvas;
+			this.band = band;
+		}
+
+		@Override
+		protected void compute() {
+			int from = band * bandHeight;
+			int to = Math.min(height, from + bandHeight);
+
+			int[] rgb = new int[width * (to - from)];
+			for (int y = from; y < to; y++) {
+				renderer.renderLine(rgb, (y - from) * width, y);
+			}
+			canvas.setRGB(0, from, width, to - from, rgb, 0, width);
+
+			try {
+				append(from, to, rgb);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Appends a finished band to the checkpoint file.
+	 */
+	private void append(int from, int to, int[] rgb) throws IOException {
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + 4
+				* rgb.length);
+		record.position(RECORD_HEADER_BYTES);
+		record.asIntBuffer().put(rgb);
+
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), RECORD_HEADER_BYTES, 4 * rgb.length);
+		record.putInt(0, from);
+		record.putInt(4, to);
+		record.putInt(8, (int) crc.getValue());
+		record.position(0);
+
+		synchronized (channel) {
+			channel.position(channel.size());
+			while (record.hasRemaining()) {
+				channel.write(record);
+			}
+
+			long now = System.nanoTime();
+			if (now - lastForce > FORCE_INTERVAL_NANOS) {
+				channel.force(false);
+				lastForce = now;
+			}
+		}
+	}
+
+	private void writeHeader(long sceneHash, String settings)
+			throws IOException {
+		byte[] settingsBytes = settings.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES
+				+ settingsBytes.length);
+		header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height)
+				.putInt(bandHeight).putLong(sceneHash)
+				.putInt(settingsBytes.length).put(settingsBytes);
+		header.flip();
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+		lastForce = System.nanoTime();
+	}
+
+	/**
+	 * Restores the bands saved in the checkpoint file into the canvas, and
+	 * drops a partially written last record if there is one.
+	 *
+	 * @return Which bands are done
+	 */
+	private boolean[] readCheckpoint(long sceneHash, String settings,
+			BufferedImage canvas) throws IOException {
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		readFully(header, 0);
+		header.flip();
+		if (header.getInt() != MAGIC) {
+			throw new IOException("Not a checkpoint file: " + checkpointFile);
+		}
+		if (header.getInt() != VERSION) {
+			throw new IOException("Checkpoint was made by another version: "
+					+ checkpointFile);
+		}
+		if (header.getInt() != width || header.getInt() != height) {
+			throw new IOException("Checkpoint was made for another image size");
+		}
+		bandHeight = header.getInt();
+		if (header.getLong() != sceneHash) {
+			throw new IOException("Checkpoint was made for another scene");
+		}
+		int settingsLength = header.getInt();
+		if (settingsLength < 0 || settingsLength > channel.size()) {
+			throw new IOException("Not a checkpoint file: " + checkpointFile);
+		}
+		ByteBuffer settingsBytes = ByteBuffer.allocate(settingsLength);
+		readFully(settingsBytes, HEADER_BYTES);
+		String saved = new String(settingsBytes.array(),
+				StandardCharsets.UTF_8);
+		if (!saved.equals(settings)) {
+			throw new IOException("Checkpoint was made with other settings ("
+					+ saved + "), not " + settings);
+		}
+
+		boolean[] done = new boolean[bandCount()];
+		long position = HEADER_BYTES + settingsLength;
+		long size = channel.size();
+		ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+		resumedBands = 0;
+
+		while (position + RECORD_HEADER_BYTES <= size) {
+			recordHeader.clear();
+			readFully(recordHeader, position);
+			int from = recordHeader.getInt(0);
+			int to = recordHeader.getInt(4);
+			int crc = recordHeader.getInt(8);
+
+			if (from < 0 || to > height || from >= to || from % bandHeight != 0) {
+				break;
+			}
+			int pixels = width * (to - from);
+			if (position + RECORD_HEADER_BYTES + 4L * pixels > size) {
+				break;
+			}
+
+			ByteBuffer data = ByteBuffer.allocate(4 * pixels);
+			readFully(data, position + RECORD_HEADER_BYTES);
+			CRC32 check = new CRC32();
+			check.update(data.array());
+			if ((int) check.getValue() != crc) {
+				break;
+			}
+
+			int[] rgb = new int[pixels];
+			data.flip();
+			data.asIntBuffer().get(rgb);
+			canvas.setRGB(0, from, width, to - from, rgb, 0, width);
+
+			if (!done[from / bandHeight]) {
+				done[from / bandHeight] = true;
+				resumedBands++;
+			}
+			position += RECORD_HEADER_BYTES + 4L * pixels;
+		}
+
+		// Cut off whatever a crash left half written
+		channel.truncate(position);
+		lastForce = System.nanoTime();
+		return done;
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0) {
+				throw new IOException("Truncated checkpoint file");
+			}
+			position += n;
+		}
+	}
+
+	/**
+	 * The settings the pixels depend on besides the scene and the size: the
+	 * renderer, where the super sampling rays go, and how colors are brought
+	 * to 8 bits (clamped, by renderLine()).
+	 */
+	private static String settings(IRenderer renderer) {
+		return "renderer=" + renderer.getClass().getName() + " sampler="
+				+ PixelSampler.PATTERN.name().toLowerCase(Locale.ROOT)
+				+ " toneMap="
+				+ HdrFrameBuffer.ToneMap.CLAMP.name().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * A 64 bit FNV-1a hash of the scene text, to recognize the scene a
+	 * checkpoint belongs to.
+	 */
+	private static long hash(String text) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < text.length(); i++) {
+			hash ^= text.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,112 @@
+package ex3.headless;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+
+import javax.imageio.ImageIO;
+
+import ex3.render.IRenderer;
+import ex3.render.RegionRenderTask;
+
+/**
+ * Renders a rectangle of a scene's image only, e.g. to look at a detail
+ * without paying for the whole frame. The rectangle is given in the
+ * coordinates of the full image, and its pixels are those a full render would
+ * have, so the crop can be pasted into a full render of the same size (see
+ * stitch) without seams.
+ */
+public class CropRender {
+
+	private File sceneFile;
+	private int width;
+	private int height;
+	private Rectangle region;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sceneFile
+	 *            Scene to render
+	 * @param width
+	 *            Width of the full image
+	 * @param height
+	 *            Height of the full image
+	 * @param region
+	 *            Rectangle to render, in full image coordinates
+	 */
+	public CropRender(File sceneFile, int width, int height, Rectangle region) {
+		if (region.isEmpty()
+				|| !new Rectangle(0, 0, width, height).contains(region)) {
+			throw new IllegalArgumentException("Region " + region.x + ","
+					+ region.y + " " + region.width + "x" + region.height
+					+ " is not within the " + width + "x" + height + " image");
+		}
+		this.sceneFile = sceneFile;
+		this.width = width;
+		this.height = height;
+		this.region = region;
+	}
+
+	/**
+	 * Renders the rectangle.
+	 *
+	 * @return An image of the size of the rectangle
+	 */
+	public BufferedImage render() throws IOException, ParseException {
+		HeadlessRenderer headless = new HeadlessRenderer(sceneFile);
+		IRenderer renderer = headless.build(headless.parse(), width, height);
+
+		int[] rgb = RegionRenderTask.renderRegion(renderer, region);
+		BufferedImage crop = new BufferedImage(region.width, region.height,
+				BufferedImage.TYPE_INT_RGB);
+		crop.setRGB(0, 0, region.width, region.height, rgb, 0, region.width);
+		return crop;
+	}
+
+	/**
+	 * Renders the rectangle into a copy of a previously rendered full image.
+	 *
+	 * @param fullImage
+	 *            Image file of a full render of the same size
+	 * @return The full image, with the rectangle rendered again
+	 */
+	public BufferedImage renderInto(File fullImage) throws IOException,
+			ParseException {
+		BufferedImage full = ImageIO.read(fullImage);
+		if (full == null) {
+			throw new IOException("Unsupported image format: " + fullImage);
+		}
+		if (full.getWidth() != width || full.getHeight() != height) {
+			throw new IllegalArgumentException(fullImage + " is "
+					+ full.getWidth() + "x" + full.getHeight() + ", not "
+					+ width + "x" + height);
+		}
+
+		BufferedImage canvas = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		canvas.getGraphics().drawImage(full, 0, 0, null);
+		stitch(canvas, render(), region);
+		return canvas;
+	}
+
+	/**
+	 * Pastes a crop into a full image.
+	 *
+	 * @param full
+	 *            The full image
+	 * @param crop
+	 *            An image of the size of the region
+	 * @param region
+	 *            Where the crop goes in the full image
+	 */
+	public static void stitch(BufferedImage full, BufferedImage crop,
+			Rectangle region) {
+		int[] rgb = crop.getRGB(0, 0, region.width, region.height, null, 0,
+				region.width);
+		full.setRGB(region.x, region.y, region.width, region.height, rgb, 0,
+				region.width);
+	}
+}
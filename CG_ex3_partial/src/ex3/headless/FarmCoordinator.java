@@ -0,0 +1,227 @@
+package ex3.headless;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders one frame with several worker JVMs on the local host (see
+ * FarmWorker), to keep the heaps and GC pauses of the workers apart.
+ *
+ * The frame is cut into tiles of a few lines each. Every worker loads the
+ * scene once and then renders one tile at a time, handed out from a shared
+ * queue. If a worker dies, its tile goes back to the queue and the worker is
+ * restarted, up to a few times.
+ */
+public class FarmCoordinator {
+
+	// How many times a single worker may be restarted before giving up on it
+	private static final int MAX_RESTARTS = 3;
+
+	private File sceneFile;
+	private int width;
+	private int height;
+	private int workers;
+	private int tileHeight = 16;
+	private List<String> workerJvmOptions = new ArrayList<String>();
+
+	// Tiles still to render, as {from, to} line ranges
+	private BlockingDeque<int[]> tiles = new LinkedBlockingDeque<int[]>();
+	private CountDownLatch remaining;
+	private AtomicInteger liveSlots;
+	private BufferedImage canvas;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sceneFile
+	 *            Scene to render
+	 * @param width
+	 *            Width of the frame
+	 * @param height
+	 *            Height of the frame
+	 * @param workers
+	 *            Number of worker JVMs
+	 */
+	public FarmCoordinator(File sceneFile, int width, int height, int workers) {
+		this.sceneFile = sceneFile;
+		this.width = width;
+		this.height = height;
+		this.workers = workers;
+	}
+
+	/**
+	 * Sets the number of lines in each tile.
+	 */
+	public void setTileHeight(int tileHeight) {
+		this.tileHeight = tileHeight;
+	}
+
+	/**
+	 * Adds a JVM option (e.g. -Xmx512m) for the worker processes.
+	 */
+	public void addWorkerJvmOption(String option) {
+		workerJvmOptions.add(option);
+	}
+
+	/**
+	 * Renders the frame.
+	 *
+	 * @return The assembled image
+	 * @throws IOException
+	 *             If all the workers died before the frame was done
+	 */
+	public BufferedImage render() throws IOException, InterruptedException {
+		canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+		int count = 0;
+		for (int from = 0; from < height; from += tileHeight) {
+			tiles.add(new int[] { from, Math.min(height, from + tileHeight) });
+			count++;
+		}
+		remaining = new CountDownLatch(count);
+		liveSlots = new AtomicInteger(workers);
+
+		List<Thread> slots = new ArrayList<Thread>();
+		for (int i = 0; i < workers; i++) {
+			final int slot = i;
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					runSlot(slot);
+				}
+			}, "farm-slot-" + slot);
+			t.setDaemon(true);
+			t.start();
+			slots.add(t);
+		}
+
+		// Done when every tile is in, failed when every slot gave up first
+		while (!remaining.await(100, TimeUnit.MILLISECONDS)) {
+			if (liveSlots.get() == 0) {
+				throw new IOException("All workers failed, "
+						+ remaining.getCount() + " tiles not rendered");
+			}
+		}
+		for (Thread t : slots) {
+			t.join();
+		}
+
+		return canvas;
+	}
+
+	/**
+	 * Drives one worker process, restarting it when it dies.
+	 */
+	private void runSlot(int slot) {
+		try {
+			for (int restarts = 0; restarts <= MAX_RESTARTS; restarts++) {
+				if (remaining.getCount() == 0) {
+					return;
+				}
+				try {
+					driveWorker();
+					return;
+				} catch (IOException e) {
+					System.out.println("Worker " + slot + " failed (" + e
+							+ "), restarting");
+				}
+			}
+			System.out.println("Worker " + slot + " failed too often, giving up");
+		} catch (InterruptedException e) {
+			// Abandon the slot
+		} finally {
+			liveSlots.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Starts a worker and feeds it tiles until there are none left.
+	 *
+	 * @throws IOException
+	 *             If the worker died; its tile is back in the queue
+	 */
+	private void driveWorker() throws IOException, InterruptedException {
+		Process process = startWorker();
+		int[] tile = null;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					process.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					process.getInputStream(), 1 << 16));
+
+			if (in.readInt() != FarmWorker.READY) {
+				throw new IOException("Bad handshake");
+			}
+
+			int[] rgb = new int[width * tileHeight];
+			while (remaining.getCount() > 0) {
+				tile = tiles.poll(100, TimeUnit.MILLISECONDS);
+				if (tile == null) {
+					continue;
+				}
+
+				out.writeInt(tile[0]);
+				out.writeInt(tile[1]);
+				out.flush();
+
+				if (in.readInt() != tile[0] || in.readInt() != tile[1]) {
+					throw new IOException("Unexpected tile");
+				}
+				int pixels = width * (tile[1] - tile[0]);
+				for (int i = 0; i < pixels; i++) {
+					rgb[i] = in.readInt();
+				}
+				canvas.setRGB(0, tile[0], width, tile[1] - tile[0], rgb, 0, width);
+
+				tile = null;
+				remaining.countDown();
+			}
+
+			out.writeInt(FarmWorker.QUIT);
+			out.writeInt(FarmWorker.QUIT);
+			out.flush();
+			process.waitFor();
+
+		} catch (IOException e) {
+			// Give the tile to someone else
+			if (tile != null) {
+				tiles.addFirst(tile);
+			}
+			throw e;
+		} finally {
+			process.destroy();
+		}
+	}
+
+	/**
+	 * Launches a worker JVM with the same Java and class path as this one.
+	 */
+	private Process startWorker() throws IOException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java");
+		command.add("-Djava.awt.headless=true");
+		command.addAll(workerJvmOptions);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(FarmWorker.class.getName());
+		command.add(sceneFile.getAbsolutePath());
+		command.add(String.valueOf(width));
+		command.add(String.valueOf(height));
+
+		ProcessBuilder pb = new ProcessBuilder(command);
+		pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+		return pb.start();
+	}
+}
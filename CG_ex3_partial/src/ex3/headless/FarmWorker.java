@@ -0,0 +1,89 @@
+package ex3.headless;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+
+import ex3.render.IRenderer;
+
+/**
+ * A render farm worker process, started by FarmCoordinator. Loads the scene
+ * once, then renders the tiles (ranges of lines) it is asked for.
+ *
+ * Talks to the coordinator over its standard input and output:
+ *
+ * <pre>
+ * worker --&gt; READY
+ * coordinator --&gt; from, to          (to render lines [from, to))
+ * worker --&gt; from, to, pixels...    (width * (to - from) pixels)
+ * coordinator --&gt; -1, -1            (to exit)
+ * </pre>
+ *
+ * All values are big endian ints. Anything printed by the renderer goes to
+ * the standard error, so it can't corrupt the stream.
+ */
+public class FarmWorker {
+
+	public static final int READY = 0x45583346; // "EX3F"
+	public static final int QUIT = -1;
+
+	/**
+	 * Worker entry point. Arguments: <input scene filename> <canvas width>
+	 * <canvas height>
+	 */
+	public static void main(String[] args) throws Exception {
+
+		// Keep the standard output for the protocol only
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(FileDescriptor.out), 1 << 16));
+		System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+		DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+
+		File sceneFile = new File(args[0]);
+		int width = Integer.parseInt(args[1]);
+		int height = Integer.parseInt(args[2]);
+
+		HeadlessRenderer headless = new HeadlessRenderer(sceneFile);
+		IRenderer renderer = headless.build(headless.parse(), width, height);
+
+		out.writeInt(READY);
+		out.flush();
+
+		int[] rgb = new int[0];
+		while (true) {
+			int from;
+			int to;
+			try {
+				from = in.readInt();
+				to = in.readInt();
+			} catch (EOFException e) {
+				// Coordinator is gone
+				return;
+			}
+			if (from == QUIT) {
+				return;
+			}
+
+			int pixels = width * (to - from);
+			if (rgb.length < pixels) {
+				rgb = new int[pixels];
+			}
+			for (int y = from; y < to; y++) {
+				renderer.renderLine(rgb, (y - from) * width, y);
+			}
+
+			out.writeInt(from);
+			out.writeInt(to);
+			for (int i = 0; i < pixels; i++) {
+				out.writeInt(rgb[i]);
+			}
+			out.flush();
+		}
+	}
+}
@@ -0,0 +1,229 @@
+package ex3.headless;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.ParseException;
+
+import ex3.image.CostMap;
+import ex3.image.HdrFrameBuffer;
+import ex3.image.ParallelPngWriter;
+import ex3.parser.SceneDescriptor;
+import ex3.render.IRenderer;
+import ex3.render.LineRenderTask;
+import ex3.render.RenderEvents;
+import ex3.render.RenderMonitor;
+import ex3.render.RenderStats;
+import ex3.render.RendererFactory;
+
+/**
+ * Renders a scene file without any GUI, and measures how long each phase
+ * (parse, build, render, encode) takes.
+ *
+ * Usage: parse() the scene file, build() a renderer from the description,
+ * render() it to an image, and write() the image. Phase timings of the last
+ * call to each are kept, and are added to the renderer's statistics too.
+ */
+public class HeadlessRenderer {
+
+	protected File sceneFile;
+	protected String sceneText;
+
+	// Duration of the last parse/build/render/encode, in nanoseconds
+	protected long parseNanos;
+	protected long buildNanos;
+	protected long renderNanos;
+	protected long encodeNanos;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sceneFile
+	 *            The XML scene file to render
+	 */
+	public HeadlessRenderer(File sceneFile) {
+		this.sceneFile = sceneFile;
+	}
+
+	/**
+	 * Reads and parses the scene file.
+	 *
+	 * @return The scene description
+	 * @throws IOException
+	 *             If the scene file can't be read
+	 * @throws ParseException
+	 *             If the scene description is syntactically wrong
+	 */
+	public SceneDescriptor parse() throws IOException, ParseException {
+		long start = System.nanoTime();
+		RenderEvents.Event event = RenderEvents.SCENE_LOAD.begin();
+
+		sceneText = new String(Files.readAllBytes(sceneFile.toPath()));
+		SceneDescriptor sd = new SceneDescriptor();
+		sd.fromXML(sceneText);
+
+		event.commit(sceneFile.getPath(), sd.getObjects().size());
+		parseNanos = System.nanoTime() - start;
+		return sd;
+	}
+
+	/**
+	 * Instantiates a new renderer and initializes it with the given scene
+	 * description. Its statistics start with the last parse.
+	 *
+	 * @param sd
+	 *            Scene description, as returned by parse()
+	 * @param width
+	 *            Width of the canvas
+	 * @param height
+	 *            Height of the canvas
+	 * @return An initialized renderer
+	 */
+	public IRenderer build(SceneDescriptor sd, int width, int height) {
+		long start = System.nanoTime();
+
+		IRenderer renderer = RendererFactory.newInstance();
+		renderer.init(sd, width, height, sceneFile);
+
+		buildNanos = System.nanoTime() - start;
+		renderer.getStats().addTime(RenderStats.Phase.PARSE, parseNanos);
+		renderer.getStats().addTime(RenderStats.Phase.BUILD, buildNanos);
+		return renderer;
+	}
+
+	/**
+	 * Renders all the lines of the canvas, in parallel (see LineRenderTask),
+	 * straight to an 8 bit image. The render is tracked by the RenderMonitor
+	 * while it runs, so it may be paused, or cancelled with a
+	 * CancellationException.
+	 *
+	 * @param renderer
+	 *            Renderer, as returned by build()
+	 * @param width
+	 *            Width of the canvas, same as given to build()
+	 * @param height
+	 *            Height of the canvas, same as given to build()
+	 * @return The rendered image
+	 */
+	public BufferedImage render(IRenderer renderer, int width, int height) {
+		long start = System.nanoTime();
+		BufferedImage canvas = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		RenderMonitor.Render render = RenderMonitor.get().begin(
+				sceneFile.getPath(), renderer, height);
+		try {
+			LineRenderTask.renderAll(renderer, canvas);
+		} finally {
+			render.end();
+		}
+		renderNanos = System.nanoTime() - start;
+		renderer.getStats().addTime(RenderStats.Phase.RENDER, renderNanos);
+		return canvas;
+	}
+
+	/**
+	 * Renders a pass over all the lines, in parallel, adding its samples to a
+	 * frame buffer, for renders that keep the unclamped colors (-hdr, -map)
+	 * or add several passes together. The render is tracked by the
+	 * RenderMonitor while it runs, so it may be paused, or cancelled with a
+	 * CancellationException.
+	 *
+	 * @param renderer
+	 *            Renderer, as returned by build()
+	 * @param frameBuffer
+	 *            Frame buffer of the size given to build()
+	 */
+	public void render(IRenderer renderer, HdrFrameBuffer frameBuffer) {
+		long start = System.nanoTime();
+		RenderMonitor.Render render = RenderMonitor.get().begin(
+				sceneFile.getPath(), renderer, frameBuffer.getHeight());
+		try {
+			LineRenderTask.renderAll(renderer, frameBuffer);
+		} finally {
+			render.end();
+		}
+		renderNanos = System.nanoTime() - start;
+		renderer.getStats().addTime(RenderStats.Phase.RENDER, renderNanos);
+	}
+
+	/**
+	 * Writes a rendered image to a PNG file, and the renderer's cost map (if
+	 * it keeps one) next to it.
+	 *
+	 * @param renderer
+	 *            Renderer that rendered the image, to add the time to its
+	 *            statistics
+	 * @param image
+	 *            The image, as returned by render()
+	 * @param imageFile
+	 *            The PNG file
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public void write(IRenderer renderer, BufferedImage image, File imageFile)
+			throws IOException {
+		long start = System.nanoTime();
+		RenderEvents.Event event = RenderEvents.IMAGE_ENCODE.begin();
+		ParallelPngWriter.write(image, imageFile);
+		event.commit(imageFile.getPath(), image.getWidth(), image.getHeight());
+		encodeNanos = System.nanoTime() - start;
+		renderer.getStats().addTime(RenderStats.Phase.ENCODE, encodeNanos);
+
+		CostMap costMap = renderer.getStats().getCostMap();
+		if (costMap != null) {
+			costMap.writeNextTo(imageFile);
+		}
+	}
+
+	/**
+	 * Parses, builds and renders the scene in one go.
+	 *
+	 * @param width
+	 *            Width of the canvas
+	 * @param height
+	 *            Height of the canvas
+	 * @return The rendered image
+	 */
+	public BufferedImage renderScene(int width, int height) throws IOException,
+			ParseException {
+		SceneDescriptor sd = parse();
+		IRenderer renderer = build(sd, width, height);
+		return render(renderer, width, height);
+	}
+
+	/**
+	 * @return A one line summary of the last phase timings
+	 */
+	public String timingSummary() {
+		return String.format("parse %.1f ms, build %.1f ms, render %.1f ms",
+				parseNanos / 1e6, buildNanos / 1e6, renderNanos / 1e6);
+	}
+
+	public File getSceneFile() {
+		return sceneFile;
+	}
+
+	/**
+	 * @return The XML text read by the last call to parse()
+	 */
+	public String getSceneText() {
+		return sceneText;
+	}
+
+	public long getParseNanos() {
+		return parseNanos;
+	}
+
+	public long getBuildNanos() {
+		return buildNanos;
+	}
+
+	public long getRenderNanos() {
+		return renderNanos;
+	}
+
+	public long getEncodeNanos() {
+		return encodeNanos;
+	}
+}
@@ -0,0 +1,82 @@
+package ex3.headless;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Sends a single request to a running RenderDaemon and returns its answer.
+ */
+public class RenderClient {
+
+	private File socketFile;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param socketFile
+	 *            Unix domain socket file the daemon listens on
+	 */
+	public RenderClient(File socketFile) {
+		this.socketFile = socketFile;
+	}
+
+	/**
+	 * Asks the daemon to render a scene to an image file. Relative paths are
+	 * resolved here, since the daemon may run in another directory.
+	 *
+	 * @return The daemon's response line
+	 */
+	public String render(File sceneFile, int width, int height, File output)
+			throws IOException {
+		return send("render", sceneFile.getAbsolutePath(),
+				String.valueOf(width), String.valueOf(height),
+				output.getAbsolutePath());
+	}
+
+	/**
+	 * Asks the daemon to exit.
+	 *
+	 * @return The daemon's response line
+	 */
+	public String shutdown() throws IOException {
+		return send("shutdown");
+	}
+
+	/**
+	 * Sends one request line and waits for the response line.
+	 */
+	private String send(String... fields) throws IOException {
+		StringBuilder request = new StringBuilder();
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0) {
+				request.append(RenderDaemon.SEPARATOR);
+			}
+			request.append(fields[i]);
+		}
+
+		SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			channel.connect(UnixDomainSocketAddress.of(socketFile.toPath()));
+			PrintWriter out = new PrintWriter(Channels.newOutputStream(channel),
+					true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					Channels.newInputStream(channel), StandardCharsets.UTF_8));
+			out.println(request);
+			String response = in.readLine();
+			if (response == null) {
+				throw new IOException("Daemon closed the connection");
+			}
+			return response;
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,345 @@
+package ex3.headless;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ex3.image.ParallelPngWriter;
+import ex3.parser.SceneDescriptor;
+import ex3.render.IRenderer;
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+/**
+ * A long lived render server. Keeps one JVM (and its JIT-compiled code, decoded
+ * textures and parsed scenes) warm across many render jobs.
+ *
+ * Listens on a Unix domain socket, which only the user running the daemon may
+ * connect to: the socket file is created with permissions 0600, and on
+ * systems that report the peer of a connection (Linux, macOS) connections
+ * from other users are refused too. Each request is one line of tab separated
+ * fields, answered by one line:
+ *
+ * <pre>
+ * render  &lt;scene&gt;  &lt;width&gt;  &lt;height&gt;  &lt;output&gt;
+ *     --&gt; OK  parse=&lt;ms&gt;  build=&lt;ms&gt;  render=&lt;ms&gt;  encode=&lt;ms&gt;
+ * ping      --&gt; OK
+ * shutdown  --&gt; OK  (and the daemon exits)
+ * </pre>
+ *
+ * Any failure is answered with "ERROR &lt;message&gt;".
+ */
+public class RenderDaemon {
+
+	// Socket file used when none is given, one per user
+	public static final File DEFAULT_SOCKET = new File(
+			System.getProperty("java.io.tmpdir"), "ex3-render-"
+					+ System.getProperty("user.name") + ".sock");
+
+	// Field separator of the protocol; tabs let paths contain spaces
+	public static final String SEPARATOR = "\t";
+
+	private File socketFile;
+	private ServerSocketChannel serverChannel;
+	private Object socketKey; // Identifies our socket file, see fileKey()
+	private ExecutorService connections;
+
+	// Parsed scenes by canonical path, reused as long as the file is unchanged
+	private Map<String, CachedScene> sceneCache = new HashMap<String, CachedScene>();
+
+	private static class CachedScene {
+		SceneDescriptor sd;
+		long lastModified;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param socketFile
+	 *            Unix domain socket file to listen on
+	 */
+	public RenderDaemon(File socketFile) {
+		this.socketFile = socketFile;
+	}
+
+	/**
+	 * Accepts connections until a shutdown request arrives.
+	 */
+	public void run() throws IOException {
+		serverChannel = bind(socketFile.toPath());
+		socketKey = fileKey(socketFile.toPath());
+		connections = Executors.newCachedThreadPool();
+		System.out.println("Render daemon listening on " + socketFile);
+
+		try {
+			while (serverChannel.isOpen()) {
+				final SocketChannel channel;
+				try {
+					channel = serverChannel.accept();
+				} catch (ClosedChannelException e) {
+					// Closed by a shutdown request
+					break;
+				}
+				connections.execute(new Runnable() {
+					public void run() {
+						serve(channel);
+					}
+				});
+			}
+		} finally {
+			connections.shutdown();
+			deleteSocketFile();
+		}
+	}
+
+	/**
+	 * Deletes the socket file, unless it's no longer ours (e.g. it was
+	 * replaced by another daemon after ours was killed).
+	 */
+	private void deleteSocketFile() throws IOException {
+		Path path = socketFile.toPath();
+		if (socketKey != null && socketKey.equals(fileKey(path))) {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	/**
+	 * @return What identifies a file, even if it's replaced by another of the
+	 *         same name: its file key (device and inode) where the system has
+	 *         one, or its creation time otherwise. Null if there's no file.
+	 */
+	private static Object fileKey(Path path) throws IOException {
+		if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+			return null;
+		}
+		BasicFileAttributes attributes = Files.readAttributes(path,
+				BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		return attributes.fileKey() != null ? attributes.fileKey()
+				: attributes.creationTime();
+	}
+
+	/**
+	 * Binds a server socket to a socket file that only its owner can use. The
+	 * socket is bound in a fresh private directory, and only moved to its
+	 * place once its permissions are set, so there is no moment in which
+	 * others could connect. A stale socket file (of a daemon that didn't shut
+	 * down) is replaced; the socket of a daemon that still answers, and other
+	 * files, are not.
+	 */
+	private static ServerSocketChannel bind(Path path) throws IOException {
+		Path parent = path.toAbsolutePath().getParent();
+		if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+			if (!Files.readAttributes(path, BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS).isOther()) {
+				throw new IOException(path + " exists and is not a socket");
+			}
+			if (answers(path)) {
+				throw new IOException("A render daemon is already running on "
+						+ path);
+			}
+		}
+
+		Path dir = Files.createTempDirectory(parent, ".ex3-render",
+				PosixFilePermissions.asFileAttribute(PosixFilePermissions
+						.fromString("rwx------")));
+		Path bound = dir.resolve("sock");
+		ServerSocketChannel channel = ServerSocketChannel
+				.open(StandardProtocolFamily.UNIX);
+		try {
+			channel.bind(UnixDomainSocketAddress.of(bound));
+			Files.setPosixFilePermissions(bound,
+					PosixFilePermissions.fromString("rw-------"));
+			Files.move(bound, path, StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			channel.close();
+			Files.deleteIfExists(bound);
+			throw e;
+		} finally {
+			Files.delete(dir);
+		}
+		return channel;
+	}
+
+	/**
+	 * @return Whether something accepts connections on a socket file
+	 */
+	private static boolean answers(Path path) {
+		try {
+			SocketChannel channel = SocketChannel
+					.open(StandardProtocolFamily.UNIX);
+			try {
+				channel.connect(UnixDomainSocketAddress.of(path));
+				return true;
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// Refused: nobody listens on it any more
+			return false;
+		}
+	}
+
+	/**
+	 * Answers the requests of one connection until the client hangs up.
+	 */
+	private void serve(SocketChannel channel) {
+		try {
+			if (!sameUser(channel)) {
+				channel.close();
+				return;
+			}
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(
+					Channels.newInputStream(channel), StandardCharsets.UTF_8));
+			PrintWriter out = new PrintWriter(Channels.newOutputStream(channel),
+					true);
+
+			String line;
+			while ((line = in.readLine()) != null) {
+				out.println(handle(line.split(SEPARATOR)));
+				if (!serverChannel.isOpen()) {
+					break;
+				}
+			}
+			channel.close();
+		} catch (IOException e) {
+			System.out.println("Connection error: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Whether the peer of a connection runs as the same user as the daemon.
+	 * Systems that don't report the peer rely on the socket file permissions
+	 * alone.
+	 */
+	private static boolean sameUser(SocketChannel channel) throws IOException {
+		if (!channel.supportedOptions().contains(
+				ExtendedSocketOptions.SO_PEERCRED)) {
+			return true;
+		}
+		UnixDomainPrincipal peer = channel
+				.getOption(ExtendedSocketOptions.SO_PEERCRED);
+		String user = System.getProperty("user.name");
+		if (peer.user().getName().equals(user)) {
+			return true;
+		}
+		System.out.println("Refused a connection from user "
+				+ peer.user().getName());
+		return false;
+	}
+
+	/**
+	 * Executes a single request.
+	 *
+	 * @param request
+	 *            The request fields
+	 * @return The response line
+	 */
+	private String handle(String[] request) {
+		String command = request[0].trim().toLowerCase();
+
+		if (command.equals("ping")) {
+			return "OK";
+		}
+
+		if (command.equals("shutdown")) {
+			try {
+				serverChannel.close();
+			} catch (IOException e) {
+				// Closing anyway
+			}
+			return "OK";
+		}
+
+		if (command.equals("render")) {
+			if (request.length != 5) {
+				return "ERROR usage: render <scene> <width> <height> <output>";
+			}
+			try {
+				return render(new File(request[1]),
+						Integer.parseInt(request[2].trim()),
+						Integer.parseInt(request[3].trim()),
+						new File(request[4]));
+			} catch (Exception e) {
+				return "ERROR " + e;
+			}
+		}
+
+		return "ERROR unknown command '" + command + "'";
+	}
+
+	/**
+	 * Renders a scene to an image file.
+	 *
+	 * @return The response line, with the phase timings
+	 */
+	private String render(File sceneFile, int width, int height, File output)
+			throws IOException, ParseException {
+		HeadlessRenderer headless = new HeadlessRenderer(sceneFile);
+
+		SceneDescriptor sd = parse(headless);
+		IRenderer renderer = headless.build(sd, width, height);
+		BufferedImage image = headless.render(renderer, width, height);
+
+		long start = System.nanoTime();
+		ParallelPngWriter.write(image, output);
+		long encodeNanos = System.nanoTime() - start;
+
+		return String.format("OK" + SEPARATOR + "parse=%.1f" + SEPARATOR
+				+ "build=%.1f" + SEPARATOR + "render=%.1f" + SEPARATOR
+				+ "encode=%.1f", headless.getParseNanos() / 1e6,
+				headless.getBuildNanos() / 1e6,
+				headless.getRenderNanos() / 1e6, encodeNanos / 1e6);
+	}
+
+	/**
+	 * Parses the scene, or takes it from the cache if it was parsed before and
+	 * didn't change since. Scene descriptions are only read after parsing, so
+	 * they can be shared between jobs.
+	 */
+	private SceneDescriptor parse(HeadlessRenderer headless) throws IOException,
+			ParseException {
+		File sceneFile = headless.getSceneFile();
+		String key = sceneFile.getCanonicalPath();
+		long lastModified = sceneFile.lastModified();
+
+		synchronized (sceneCache) {
+			CachedScene cached = sceneCache.get(key);
+			if (cached != null && cached.lastModified == lastModified) {
+				return cached.sd;
+			}
+		}
+
+		SceneDescriptor sd = headless.parse();
+
+		CachedScene cached = new CachedScene();
+		cached.sd = sd;
+		cached.lastModified = lastModified;
+		synchronized (sceneCache) {
+			sceneCache.put(key, cached);
+		}
+		return sd;
+	}
+}
@@ -0,0 +1,246 @@
+package ex3.headless;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import ex3.parser.SceneDescriptor;
+import ex3.render.IRenderer;
+
+/**
+ * Watches a scene file and the texture it references, and re-renders the scene
+ * whenever one of them changes. The JVM stays up between renders, so class
+ * loading, JIT warm-up and decoded textures are all reused.
+ *
+ * Every change is rendered twice: first a quick preview at a fraction of the
+ * resolution, then the full image. Both are handed to the listener.
+ */
+public class SceneWatcher {
+
+	// Editors tend to write a file in several steps, wait for them to settle
+	private static final long DEBOUNCE_MILLIS = 150;
+
+	// The preview is rendered at 1/PREVIEW_DIVISOR of the final resolution
+	private static final int PREVIEW_DIVISOR = 4;
+
+	/**
+	 * Receives the rendered images.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called after each render.
+		 *
+		 * @param image
+		 *            The rendered image
+		 * @param preview
+		 *            True for the low resolution preview (scaled up to the
+		 *            final size), false for the final image
+		 */
+		public void sceneRendered(BufferedImage image, boolean preview);
+	}
+
+	private HeadlessRenderer headless;
+	private int width;
+	private int height;
+	private Listener listener;
+
+	// Files that trigger a re-render, and the directories registered for them
+	private Set<Path> watchedFiles = new HashSet<Path>();
+	private Map<Path, WatchKey> watchedDirs = new HashMap<Path, WatchKey>();
+	private WatchService watchService;
+
+	// Scene text of the last render, to skip changes that didn't change anything
+	private String lastSceneText;
+	private long lastTextureModified;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sceneFile
+	 *            The XML scene file to watch
+	 * @param width
+	 *            Width of the rendered image
+	 * @param height
+	 *            Height of the rendered image
+	 * @param listener
+	 *            Receives the rendered images
+	 */
+	public SceneWatcher(File sceneFile, int width, int height, Listener listener) {
+		this.headless = new HeadlessRenderer(sceneFile);
+		this.width = width;
+		this.height = height;
+		this.listener = listener;
+	}
+
+	/**
+	 * Renders the scene, then waits for changes and re-renders. Never returns
+	 * unless interrupted.
+	 */
+	public void run() throws IOException, InterruptedException {
+
+		watchService = FileSystems.getDefault().newWatchService();
+		try {
+			renderIfChanged();
+
+			while (true) {
+				WatchKey key = watchService.take();
+				boolean relevant = collectChanges(key);
+
+				if (!relevant) {
+					continue;
+				}
+
+				// Let the editor finish writing, and swallow the events it caused
+				Thread.sleep(DEBOUNCE_MILLIS);
+				while ((key = watchService.poll()) != null) {
+					collectChanges(key);
+				}
+
+				renderIfChanged();
+			}
+		} finally {
+			watchService.close();
+		}
+	}
+
+	/**
+	 * Checks whether the events of the given key touch one of the watched
+	 * files, and re-arms the key.
+	 */
+	private boolean collectChanges(WatchKey key) {
+		boolean relevant = false;
+		Path dir = (Path) key.watchable();
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				relevant = true;
+				continue;
+			}
+			Path changed = dir.resolve((Path) event.context());
+			if (watchedFiles.contains(changed.toAbsolutePath().normalize())) {
+				relevant = true;
+			}
+		}
+
+		key.reset();
+		return relevant;
+	}
+
+	/**
+	 * Parses the scene, and renders it if it differs from the last render.
+	 */
+	private void renderIfChanged() throws IOException {
+
+		File sceneFile = headless.getSceneFile();
+		SceneDescriptor sd;
+		try {
+			sd = headless.parse();
+		} catch (ParseException e) {
+			System.out.println("Syntactical error in scene description: "
+					+ e.getMessage());
+			watch(sceneFile, null);
+			return;
+		} catch (IOException e) {
+			System.out.println("Could not read scene: " + e.getMessage());
+			watch(sceneFile, null);
+			return;
+		}
+
+		File texture = textureFile(sceneFile, sd);
+		watch(sceneFile, texture);
+
+		// A save without any modification shouldn't cost a render
+		long textureModified = texture == null ? 0 : texture.lastModified();
+		String sceneText = headless.getSceneText();
+		if (sceneText.equals(lastSceneText)
+				&& textureModified == lastTextureModified) {
+			System.out.println("No changes in " + sceneFile.getName());
+			return;
+		}
+		lastSceneText = sceneText;
+		lastTextureModified = textureModified;
+
+		try {
+			// Quick preview first
+			int previewWidth = Math.max(1, width / PREVIEW_DIVISOR);
+			int previewHeight = Math.max(1, height / PREVIEW_DIVISOR);
+			IRenderer preview = headless.build(sd, previewWidth, previewHeight);
+			listener.sceneRendered(
+					upscale(headless.render(preview, previewWidth, previewHeight)),
+					true);
+			System.out.println("Preview: " + headless.timingSummary());
+
+			// And the real thing
+			IRenderer renderer = headless.build(sd, width, height);
+			listener.sceneRendered(headless.render(renderer, width, height),
+					false);
+			System.out.println("Render:  " + headless.timingSummary());
+
+		} catch (RuntimeException e) {
+			// Semantic errors in the scene (missing attributes etc.) shouldn't
+			// kill the watcher, just wait for the next fix
+			System.out.println("Error in scene description: " + e);
+		}
+	}
+
+	/**
+	 * Blows the preview up to the size of the final image, so it can be shown
+	 * in place of it.
+	 */
+	private BufferedImage upscale(BufferedImage preview) {
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.drawImage(preview, 0, 0, width, height, null);
+		g.dispose();
+		return image;
+	}
+
+	/**
+	 * Sets the files that trigger a re-render, and registers their directories
+	 * with the watch service.
+	 */
+	private void watch(File sceneFile, File texture) throws IOException {
+		watchedFiles.clear();
+		watchedFiles.add(sceneFile.toPath().toAbsolutePath().normalize());
+		if (texture != null) {
+			watchedFiles.add(texture.toPath().toAbsolutePath().normalize());
+		}
+
+		for (Path file : watchedFiles) {
+			Path dir = file.getParent();
+			if (!watchedDirs.containsKey(dir)) {
+				watchedDirs.put(dir, dir.register(watchService,
+						StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY));
+			}
+		}
+	}
+
+	/**
+	 * Resolves the background texture of the scene the same way the scene does.
+	 *
+	 * @return The texture file, or null if the scene has no texture
+	 */
+	private static File textureFile(File sceneFile, SceneDescriptor sd) {
+		String texturePath = sd.getSceneAttributes().get("background-tex");
+		if (texturePath == null) {
+			return null;
+		}
+		return new File(sceneFile.getAbsoluteFile().getParent() + File.separator
+				+ texturePath);
+	}
+}
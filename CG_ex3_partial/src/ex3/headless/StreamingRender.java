@@ -0,0 +1,161 @@
+package ex3.headless;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ex3.image.ParallelPngWriter;
+import ex3.image.PpmRowWriter;
+import ex3.image.RowWriter;
+import ex3.render.IRenderer;
+import ex3.render.RenderMonitor;
+
+/**
+ * Renders images too big to keep in memory. The image is rendered one band of
+ * lines at a time, and each finished band is streamed to the output file right
+ * away, so memory use is bounded by the band size rather than the image size.
+ *
+ * The output format follows the file extension: ".ppm" for binary PPM,
+ * anything else for PNG. PNG bands are compressed in parallel while the next
+ * bands render (see ParallelPngWriter), so little encoding is left once the
+ * last band is done.
+ */
+public class StreamingRender {
+
+	private File sceneFile;
+	private int width;
+	private int height;
+	private int bandHeight = 64;
+
+	// Time spent encoding, summed over all threads, and the part of it that
+	// was left after the last band was rendered
+	private long encodeNanos;
+	private long encodeTailNanos;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param sceneFile
+	 *            Scene to render
+	 * @param width
+	 *            Width of the image
+	 * @param height
+	 *            Height of the image
+	 */
+	public StreamingRender(File sceneFile, int width, int height) {
+		this.sceneFile = sceneFile;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Sets the number of lines rendered (and kept in memory) at a time.
+	 */
+	public void setBandHeight(int bandHeight) {
+		this.bandHeight = bandHeight;
+	}
+
+	/**
+	 * Renders the scene to the given file.
+	 */
+	public void render(File output) throws IOException, ParseException {
+		HeadlessRenderer headless = new HeadlessRenderer(sceneFile);
+		IRenderer renderer = headless.build(headless.parse(), width, height);
+
+		RowWriter writer = openWriter(output, width, height);
+		RenderMonitor.Render render = RenderMonitor.get().begin(
+				sceneFile.getPath(), renderer, height);
+		long writeNanos = 0;
+		try {
+			int[] band = new int[width * Math.min(bandHeight, height)];
+			for (int from = 0; from < height; from += bandHeight) {
+				int to = Math.min(height, from + bandHeight);
+				ForkJoinPool.commonPool().invoke(
+						new BandTask(renderer, band, from, from, to));
+
+				long start = System.nanoTime();
+				writer.writeRows(band, to - from);
+				writeNanos += System.nanoTime() - start;
+			}
+		} finally {
+			render.end();
+			long start = System.nanoTime();
+			writer.close();
+			encodeTailNanos = System.nanoTime() - start;
+		}
+
+		if (writer instanceof ParallelPngWriter) {
+			encodeNanos = ((ParallelPngWriter) writer).getEncodeNanos();
+		} else {
+			encodeNanos = writeNanos + encodeTailNanos;
+		}
+	}
+
+	/**
+	 * @return Time the last render spent encoding, summed over all threads:
+	 *         what encoding would take on its own
+	 */
+	public long getEncodeNanos() {
+		return encodeNanos;
+	}
+
+	/**
+	 * @return Time the last render spent encoding after the last band was
+	 *         rendered: what encoding costs when overlapped with rendering
+	 */
+	public long getEncodeTailNanos() {
+		return encodeTailNanos;
+	}
+
+	/**
+	 * Opens a row writer for the format of the given file name.
+	 */
+	public static RowWriter openWriter(File output, int width, int height)
+			throws IOException {
+		if (output.getName().toLowerCase().endsWith(".ppm")) {
+			return new PpmRowWriter(output, width, height);
+		}
+		return new ParallelPngWriter(output, width, height);
+	}
+
+	/**
+	 * Renders lines [from, to) of a band in parallel, into the band's buffer.
+	 */
+	private class BandTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private IRenderer renderer;
+		private int[] band;
+		private int bandStart;
+		private int from;
+		private int to;
+
+		BandTask(IRenderer renderer, int[] band, int bandStart, int from, int to) {
+			this.renderer = renderer;
+			this.band = band;
+			this.bandStart = bandStart;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= 2) {
+				RenderMonitor.Render render = RenderMonitor.get().find(renderer);
+				for (int y = from; y < to; y++) {
+					render.checkpoint();
+					long start = System.nanoTime();
+					renderer.renderLine(band, (y - bandStart) * width, y);
+					render.linesDone(1, System.nanoTime() - start);
+				}
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new BandTask(renderer, band, bandStart, from, middle),
+					new BandTask(renderer, band, bandStart, middle, to));
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package ex3.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A frame buffer many threads can add samples to at once, even to the same
+ * pixels (e.g. several workers each rendering a pass of a progressive render),
+ * while another thread takes snapshots of it for display.
+ *
+ * There is no lock on the buffer as a whole. Every pixel has a stamp, a
+ * sequence number that is odd while the pixel is being updated. A writer makes
+ * it odd with a compare-and-set, which also keeps other writers off the pixel
+ * for the few instructions the update takes, adds the sample and makes it even
+ * again. Threads only ever wait for each other when they add to the very same
+ * pixel at the very same time.
+ *
+ * Readers never block writers: they read a pixel between two reads of its
+ * stamp and start over if the stamp changed, so every pixel of a snapshot is
+ * consistent (its color sum and sample count belong together). Different
+ * pixels of a snapshot may be from different moments.
+ */
+public class ConcurrentFrameBuffer implements SampleBuffer {
+
+	// Values per pixel: red, green and blue sums (as double bits), and the
+	// number of samples
+	private static final int VALUES = 4;
+
+	// Reads of a pixel that is being written before giving up the processor
+	private static final int SPINS = 64;
+
+	private int width;
+	private int height;
+	private AtomicLongArray values;
+	private AtomicLongArray stamps;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param width
+	 *            Width of the image
+	 * @param height
+	 *            Height of the image
+	 */
+	public ConcurrentFrameBuffer(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.values = new AtomicLongArray(VALUES * width * height);
+		this.stamps = new AtomicLongArray(width * height);
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public void addSample(int x, int y, double r, double g, double b) {
+		int pixel = y * width + x;
+
+		// Take the pixel: move its stamp from even to odd
+		long stamp;
+		int spins = 0;
+		while (true) {
+			stamp = stamps.get(pixel);
+			if ((stamp & 1) == 0 && stamps.compareAndSet(pixel, stamp, stamp + 1)) {
+				break;
+			}
+			spins = spin(spins);
+		}
+
+		int i = VALUES * pixel;
+		add(i, r);
+		add(i + 1, g);
+		add(i + 2, b);
+		values.set(i + 3, values.get(i + 3) + 1);
+
+		// Release it with the next even stamp
+		stamps.set(pixel, stamp + 2);
+	}
+
+	private void add(int i, double value) {
+		values.set(i, Double.doubleToRawLongBits(Double.longBitsToDouble(values
+				.get(i)) + value));
+	}
+
+	/**
+	 * Waits a little for a pixel that is being written.
+	 *
+	 * @return The number of spins so far
+	 */
+	private static int spin(int spins) {
+		if (spins >= SPINS) {
+			Thread.yield();
+			return 0;
+		}
+		return spins + 1;
+	}
+
+	@Override
+	public int getSampleCount(int x, int y) {
+		return (int) values.get(VALUES * (y * width + x) + 3);
+	}
+
+	/**
+	 * Reads a pixel consistently.
+	 *
+	 * @param pixel
+	 *            Index of the pixel
+	 * @param sums
+	 *            Receives red, green and blue sums, and the sample count
+	 */
+	private void read(int pixel, double[] sums) {
+		int i = VALUES * pixel;
+		int spins = 0;
+		while (true) {
+			long stamp = stamps.get(pixel);
+			if ((stamp & 1) == 0) {
+				sums[0] = Double.longBitsToDouble(values.get(i));
+				sums[1] = Double.longBitsToDouble(values.get(i + 1));
+				sums[2] = Double.longBitsToDouble(values.get(i + 2));
+				sums[3] = values.get(i + 3);
+				if (stamps.get(pixel) == stamp) {
+					return;
+				}
+			}
+			spins = spin(spins);
+		}
+	}
+
+	/**
+	 * Gets the average color of a pixel, unclamped.
+	 *
+	 * @param x
+	 *            Column of the pixel
+	 * @param y
+	 *            Line of the pixel
+	 * @param rgb
+	 *            Receives red, green and blue (all 0 if there are no samples)
+	 */
+	public void getColor(int x, int y, double[] rgb) {
+		double[] sums = new double[VALUES];
+		read(y * width + x, sums);
+		for (int c = 0; c < 3; c++) {
+			rgb[c] = sums[3] == 0 ? 0 : sums[c] / sums[3];
+		}
+	}
+
+	/**
+	 * Takes a snapshot of lines of the frame buffer, clamped and quantized to
+	 * pixels. Pixels without samples are black.
+	 *
+	 * @param rgb
+	 *            Receives the pixels, in the default RGB color model
+	 * @param offset
+	 *            Index in rgb of the first pixel of line from
+	 * @param from
+	 *            First line
+	 * @param to
+	 *            One past the last line
+	 */
+	public void snapshot(int[] rgb, int offset, int from, int to) {
+		double[] sums = new double[VALUES];
+		int out = offset;
+		for (int pixel = from * width; pixel < to * width; pixel++) {
+			read(pixel, sums);
+			if (sums[3] == 0) {
+				rgb[out++] = 0;
+				continue;
+			}
+			double scale = 1 / sums[3];
+			rgb[out++] = (HdrFrameBuffer.toByte(sums[0] * scale) << 16)
+					| (HdrFrameBuffer.toByte(sums[1] * scale) << 8)
+					| HdrFrameBuffer.toByte(sums[2] * scale);
+		}
+	}
+
+	/**
+	 * Takes a snapshot of the whole frame buffer into an image, e.g. to show
+	 * the progress of a render that is still running. Images of integer RGB
+	 * types are written directly in their pixel array, others through setRGB.
+	 *
+	 * @param image
+	 *            Image of the same size as the frame buffer
+	 */
+	public void snapshot(BufferedImage image) {
+		int type = image.getType();
+		if (type == BufferedImage.TYPE_INT_RGB
+				|| type == BufferedImage.TYPE_INT_ARGB) {
+			int[] data = ((DataBufferInt) image.getRaster().getDataBuffer())
+					.getData();
+			snapshot(data, 0, 0, height);
+			if (type == BufferedImage.TYPE_INT_ARGB) {
+				for (int i = 0; i < data.length; i++) {
+					data[i] |= 0xFF000000;
+				}
+			}
+			return;
+		}
+
+		int[] rgb = new int[width];
+		for (int y = 0; y < height; y++) {
+			snapshot(rgb, 0, y, y + 1);
+			image.setRGB(0, y, width, 1, rgb, 0, width);
+		}
+	}
+}
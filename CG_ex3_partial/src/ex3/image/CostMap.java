@@ -0,0 +1,223 @@
+package ex3.image;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The cost of every pixel of a render, to find the expensive regions of an
+ * image (e.g. deep chains of reflections, or spots lit by many lights). The
+ * cost is one of the metrics below, summed over everything traced for the
+ * pixel: its primary rays (all of them with super sampling), their shadow
+ * rays and their reflections.
+ *
+ * Recording a cost is adding to one array element, so the map is cheap enough
+ * to leave on. Different pixels may be added to from different threads at the
+ * same time, but a pixel must not be added to from two threads at once (lines
+ * are rendered by one thread each).
+ *
+ * The map is shown in false colour, from blue (cheap) through green and
+ * yellow to red (expensive), on a log scale so that a few hot spots don't
+ * leave the rest of the image dark.
+ */
+public class CostMap {
+
+	/**
+	 * What a pixel's cost counts.
+	 */
+	public enum Metric {
+		/** Rays traced (primary, shadow and reflected) */
+		RAYS,
+		/** Ray-primitive intersection tests */
+		TESTS,
+		/** Nanoseconds spent tracing */
+		NANOS
+	}
+
+	// The false colour scale, from cheap to expensive
+	private static final int[] SCALE = { 0x000080, 0x0000FF, 0x00FFFF,
+			0x00FF00, 0xFFFF00, 0xFF0000 };
+
+	private Metric metric;
+	private int width;
+	private int height;
+	private long[] costs;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param metric
+	 *            What to count
+	 * @param width
+	 *            Width of the image
+	 * @param height
+	 *            Height of the image
+	 */
+	public CostMap(Metric metric, int width, int height) {
+		this.metric = metric;
+		this.width = width;
+		this.height = height;
+		this.costs = new long[width * height];
+	}
+
+	public Metric getMetric() {
+		return metric;
+	}
+
+	/**
+	 * @return Whether the cost is time, i.e. whether the renderer has to read
+	 *         the clock for it
+	 */
+	public boolean isTimed() {
+		return metric == Metric.NANOS;
+	}
+
+	/**
+	 * Adds rays traced for a pixel. Does nothing if the cost is time.
+	 *
+	 * @param x
+	 *            Column of the pixel
+	 * @param y
+	 *            Line of the pixel
+	 * @param rays
+	 *            Number of rays
+	 * @param tests
+	 *            Number of ray-primitive tests they took
+	 */
+	public void addRays(int x, int y, long rays, long tests) {
+		if (metric == Metric.RAYS) {
+			costs[y * width + x] += rays;
+		} else if (metric == Metric.TESTS) {
+			costs[y * width + x] += tests;
+		}
+	}
+
+	/**
+	 * Adds time spent on a span of pixels of a line, spread evenly over them
+	 * (e.g. rays traced together in a packet). Does nothing unless the cost
+	 * is time.
+	 *
+	 * @param y
+	 *            The line
+	 * @param from
+	 *            First pixel of the span
+	 * @param to
+	 *            One past the last pixel of the span
+	 * @param nanos
+	 *            Time spent, in nanoseconds
+	 */
+	public void addNanos(int y, int from, int to, long nanos) {
+		if (metric != Metric.NANOS) {
+			return;
+		}
+		long each = nanos / (to - from);
+		for (int x = from; x < to; x++) {
+			costs[y * width + x] += each;
+		}
+	}
+
+	/**
+	 * @return The cost of a pixel
+	 */
+	public long getCost(int x, int y) {
+		return costs[y * width + x];
+	}
+
+	/**
+	 * @return The cost of the most expensive pixel
+	 */
+	public long getMax() {
+		long max = 0;
+		for (long cost : costs) {
+			max = Math.max(max, cost);
+		}
+		return max;
+	}
+
+	/**
+	 * @return The average cost of a pixel
+	 */
+	public double getMean() {
+		long sum = 0;
+		for (long cost : costs) {
+			sum += cost;
+		}
+		return (double) sum / costs.length;
+	}
+
+	/**
+	 * Clears all the costs, e.g. before rendering again.
+	 */
+	public void clear() {
+		Arrays.fill(costs, 0);
+	}
+
+	/**
+	 * Draws the map in false colour.
+	 *
+	 * @return An image of the size of the map
+	 */
+	public BufferedImage toImage() {
+		double scale = Math.log1p(getMax());
+		int[] rgb = new int[width];
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				long cost = costs[y * width + x];
+				rgb[x] = cost == 0 ? 0 : falseColor(scale == 0 ? 0 : Math
+						.log1p(cost) / scale);
+			}
+			image.setRGB(0, y, width, 1, rgb, 0, width);
+		}
+		return image;
+	}
+
+	/**
+	 * Maps a value in [0, 1] to the false colour scale.
+	 */
+	private static int falseColor(double t) {
+		double position = t * (SCALE.length - 1);
+		int i = Math.min((int) position, SCALE.length - 2);
+		double f = position - i;
+		int rgb = 0;
+		for (int shift = 16; shift >= 0; shift -= 8) {
+			int a = (SCALE[i] >> shift) & 0xFF;
+			int b = (SCALE[i + 1] >> shift) & 0xFF;
+			rgb |= ((int) Math.round(a + (b - a) * f)) << shift;
+		}
+		return rgb;
+	}
+
+	/**
+	 * Draws the map and writes it as a PNG next to a rendered image: for
+	 * image.png it is image.heat.png.
+	 *
+	 * @param imageFile
+	 *            The rendered image
+	 * @return The file the map was written to
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public File writeNextTo(File imageFile) throws IOException {
+		String name = imageFile.getName();
+		int dot = name.lastIndexOf('.');
+		File file = new File(imageFile.getAbsoluteFile().getParentFile(),
+				(dot > 0 ? name.substring(0, dot) : name) + ".heat.png");
+		ParallelPngWriter.write(toImage(), file);
+		return file;
+	}
+
+	/**
+	 * @return A one line description of the map's scale
+	 */
+	public String summary() {
+		String unit = metric == Metric.RAYS ? "rays"
+				: metric == Metric.TESTS ? "primitive tests" : "ns";
+		return String.format(Locale.ROOT,
+				"Cost map: %s per pixel, mean %.1f, max %d", unit, getMean(),
+				getMax());
+	}
+}
@@ -0,0 +1,319 @@
+package ex3.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A floating point RGB frame buffer that accumulates samples. Colors are kept
+ * unclamped, as a sum of samples and a sample count per pixel, so several
+ * passes over the image can add to it. Converting to 8 bit pixels (tone mapping
+ * and quantizing) is done once, in bulk, at the end.
+ *
+ * The samples are kept outside the Java heap: either in a direct buffer, or in
+ * a file mapped to memory, which lets the operating system page it out and
+ * keeps the samples of one run for the next.
+ *
+ * Different pixels may be written from different threads at the same time,
+ * but a pixel must not be written from two threads at once.
+ */
+public class HdrFrameBuffer implements SampleBuffer {
+
+	// Values per pixel: red, green and blue sums, and the number of samples.
+	// They are doubles, the precision the renderer computes in, so quantizing
+	// gives exactly the pixels the renderer itself would.
+	private static final int VALUES = 4;
+
+	/**
+	 * Ways of bringing accumulated colors into [0, 1].
+	 */
+	public enum ToneMap {
+		/** Cut off everything above 1 */
+		CLAMP,
+		/** c / (1 + c), compresses highlights instead of cutting them off */
+		REINHARD
+	}
+
+	private int width;
+	private int height;
+	private DoubleBuffer samples;
+	private MappedByteBuffer mapped;
+
+	private ToneMap toneMap = ToneMap.CLAMP;
+	private double exposure = 1;
+
+	/**
+	 * Constructor. Allocates an empty frame buffer off the heap.
+	 *
+	 * @param width
+	 *            Width of the image
+	 * @param height
+	 *            Height of the image
+	 */
+	public HdrFrameBuffer(int width, int height) {
+		this(width, height, ByteBuffer.allocateDirect(byteSize(width, height)));
+	}
+
+	private HdrFrameBuffer(int width, int height, ByteBuffer bytes) {
+		this.width = width;
+		this.height = height;
+		this.samples = bytes.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+		if (bytes instanceof MappedByteBuffer) {
+			this.mapped = (MappedByteBuffer) bytes;
+		}
+	}
+
+	/**
+	 * Creates a frame buffer backed by a file mapped to memory. If the file
+	 * already holds a frame buffer of the same size its samples are kept, and
+	 * new samples add to them.
+	 *
+	 * @param file
+	 *            Backing file, created if needed
+	 * @param width
+	 *            Width of the image
+	 * @param height
+	 *            Height of the image
+	 * @return The frame buffer
+	 */
+	public static HdrFrameBuffer map(File file, int width, int height)
+			throws IOException {
+		long size = byteSize(width, height);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if (raf.length() != size) {
+				raf.setLength(0);
+				raf.setLength(size);
+			}
+			FileChannel channel = raf.getChannel();
+			// The mapping stays valid after the channel is closed
+			return new HdrFrameBuffer(width, height, channel.map(
+					FileChannel.MapMode.READ_WRITE, 0, size));
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static int byteSize(int width, int height) {
+		long size = 8L * VALUES * width * height;
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Frame buffer of " + width
+					+ "x" + height + " is too big");
+		}
+		return (int) size;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Sets how colors are brought into [0, 1] when quantizing.
+	 */
+	public void setToneMap(ToneMap toneMap) {
+		this.toneMap = toneMap;
+	}
+
+	/**
+	 * Sets the factor colors are scaled by before tone mapping.
+	 */
+	public void setExposure(double exposure) {
+		this.exposure = exposure;
+	}
+
+	@Override
+	public void addSample(int x, int y, double r, double g, double b) {
+		int i = VALUES * (y * width + x);
+		samples.put(i, samples.get(i) + r);
+		samples.put(i + 1, samples.get(i + 1) + g);
+		samples.put(i + 2, samples.get(i + 2) + b);
+		samples.put(i + 3, samples.get(i + 3) + 1);
+	}
+
+	@Override
+	public int getSampleCount(int x, int y) {
+		return (int) samples.get(VALUES * (y * width + x) + 3);
+	}
+
+	/**
+	 * Gets the average color of a pixel, unclamped.
+	 *
+	 * @param x
+	 *            Column of the pixel
+	 * @param y
+	 *            Line of the pixel
+	 * @param rgb
+	 *            Receives red, green and blue (all 0 if there are no samples)
+	 */
+	public void getColor(int x, int y, double[] rgb) {
+		int i = VALUES * (y * width + x);
+		double count = samples.get(i + 3);
+		for (int c = 0; c < 3; c++) {
+			rgb[c] = count == 0 ? 0 : samples.get(i + c) / count;
+		}
+	}
+
+	/**
+	 * Removes all the samples.
+	 */
+	public void clear() {
+		for (int i = 0; i < samples.capacity(); i++) {
+			samples.put(i, 0);
+		}
+	}
+
+	/**
+	 * Writes changes of a memory mapped frame buffer to its file. Does
+	 * nothing for an in-memory one.
+	 */
+	public void force() {
+		if (mapped != null) {
+			mapped.force();
+		}
+	}
+
+	/**
+	 * Tone maps and quantizes lines of the frame buffer to pixels.
+	 *
+	 * @param rgb
+	 *            Receives the pixels, in the default RGB color model
+	 * @param offset
+	 *            Index in rgb of the first pixel of line from
+	 * @param from
+	 *            First line
+	 * @param to
+	 *            One past the last line
+	 */
+	public void quantize(int[] rgb, int offset, int from, int to) {
+		int end = VALUES * to * width;
+		int out = offset;
+		for (int i = VALUES * from * width; i < end; i += VALUES) {
+			double count = samples.get(i + 3);
+			if (count == 0) {
+				rgb[out++] = 0;
+				continue;
+			}
+			double scale = exposure / count;
+			rgb[out++] = (channel(samples.get(i) * scale) << 16)
+					| (channel(samples.get(i + 1) * scale) << 8)
+					| channel(samples.get(i + 2) * scale);
+		}
+	}
+
+	/**
+	 * Brings a color into [0, 255].
+	 */
+	private int channel(double c) {
+		if (toneMap == ToneMap.REINHARD) {
+			c = c / (1 + c);
+		}
+		return toByte(c);
+	}
+
+	/**
+	 * Clamps a color to [0, 1] and truncates it to [0, 255], the way the
+	 * renderer quantizes its own pixels.
+	 */
+	public static int toByte(double c) {
+		if (c > 1) {
+			return 255;
+		}
+		if (c < 0) {
+			return 0;
+		}
+		return (int) (c * 255);
+	}
+
+	/**
+	 * Tone maps and quantizes the whole frame buffer into an image.
+	 *
+	 * @param image
+	 *            Image of the same size as the frame buffer
+	 */
+	public void toImage(BufferedImage image) {
+		toImage(image, 0, height);
+	}
+
+	/**
+	 * Tone maps and quantizes lines of the frame buffer into an image. Images
+	 * of integer RGB types are written directly in their pixel array, others
+	 * through setRGB.
+	 *
+	 * @param image
+	 *            Image of the same size as the frame buffer
+	 * @param from
+	 *            First line
+	 * @param to
+	 *            One past the last line
+	 */
+	public void toImage(BufferedImage image, int from, int to) {
+		int type = image.getType();
+		if (type == BufferedImage.TYPE_INT_RGB
+				|| type == BufferedImage.TYPE_INT_ARGB) {
+			int[] data = ((DataBufferInt) image.getRaster().getDataBuffer())
+					.getData();
+			quantize(data, from * width, from, to);
+			if (type == BufferedImage.TYPE_INT_ARGB) {
+				for (int i = from * width; i < to * width; i++) {
+					data[i] |= 0xFF000000;
+				}
+			}
+			return;
+		}
+
+		int[] rgb = new int[width];
+		for (int y = from; y < to; y++) {
+			quantize(rgb, 0, y, y + 1);
+			image.setRGB(0, y, width, 1, rgb, 0, width);
+		}
+	}
+
+	/**
+	 * Writes the frame buffer, averaged but not tone mapped, as a color
+	 * Portable Float Map (PFM), which keeps the full range of the colors.
+	 *
+	 * @param file
+	 *            Target file
+	 */
+	public void writePfm(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 1 << 16));
+		try {
+			// A negative scale means little endian floats
+			out.writeBytes("PF\n" + width + " " + height + "\n-1.0\n");
+
+			// Lines go from the bottom up
+			double[] color = new double[3];
+			ByteBuffer line = ByteBuffer.allocate(12 * width).order(
+					ByteOrder.LITTLE_ENDIAN);
+			for (int y = height - 1; y >= 0; y--) {
+				line.clear();
+				for (int x = 0; x < width; x++) {
+					getColor(x, y, color);
+					line.putFloat((float) color[0]);
+					line.putFloat((float) color[1]);
+					line.putFloat((float) color[2]);
+				}
+				out.write(line.array());
+			}
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,407 @@
+package ex3.image;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a PNG image (8 bit RGB) with the filtering and compression spread over
+ * several threads, while the rows are still coming in.
+ *
+ * Rows are grouped into chunks. Each chunk is filtered and compressed on its
+ * own, as a raw deflate stream ended with a sync flush, which leaves it byte
+ * aligned and open. Such streams can simply be concatenated (the same trick
+ * pigz uses): the writer thread writes the chunks in order as IDAT chunks,
+ * then ends the zlib stream with an empty final block and the Adler-32 of all
+ * the chunks, combined from the Adler-32 of each one.
+ *
+ * At most a few chunks are in flight at a time, so a renderer that produces
+ * rows faster than they are compressed is slowed down rather than filling the
+ * memory.
+ */
+public class ParallelPngWriter implements RowWriter {
+
+	private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+	// Approximate number of uncompressed bytes in a chunk
+	private static final int CHUNK_BYTES = 1 << 18;
+
+	// zlib header: deflate, 32K window, default compression
+	private static final byte[] ZLIB_HEADER = { 0x78, (byte) 0x9C };
+
+	// An empty final block with fixed Huffman codes
+	private static final byte[] FINAL_BLOCK = { 0x03, 0x00 };
+
+	private static final int ADLER_BASE = 65521;
+
+	/**
+	 * A compressed chunk.
+	 */
+	private static class Chunk {
+		byte[] data;
+		int length;
+		long adler;
+		int rawLength;
+	}
+
+	// Marks the end of the chunk queue
+	private static final Future<Chunk> END = new FutureTask<Chunk>(
+			new Callable<Chunk>() {
+				public Chunk call() {
+					return null;
+				}
+			});
+
+	private DataOutputStream out;
+	private int width;
+	private int rowsPerChunk;
+	private ExecutorService encoders;
+
+	// Rows waiting to be handed out as a chunk
+	private int[] pending;
+	private int pendingRows;
+
+	// Last row of the previous chunk, unfiltered (filters look one row up)
+	private byte[] previousRaw;
+
+	private BlockingQueue<Future<Chunk>> queue;
+	private Thread writerThread;
+	private volatile IOException writeError;
+
+	// Time spent filtering and compressing, summed over all threads
+	private AtomicLong encodeNanos = new AtomicLong();
+
+	/**
+	 * Constructor. Uses the common fork/join pool for compression.
+	 *
+	 * @param file
+	 *            Target file
+	 * @param width
+	 *            Width of the image
+	 * @param height
+	 *            Height of the image
+	 */
+	public ParallelPngWriter(File file, int width, int height)
+			throws IOException {
+		this(file, width, height, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructor. Writes the signature and the header chunk.
+	 *
+	 * @param file
+	 *            Target file
+	 * @param width
+	 *            Width of the image
+	 * @param height
+	 *            Height of the image
+	 * @param encoders
+	 *            Runs the compression of the chunks
+	 */
+	public ParallelPngWriter(File file, int width, int height,
+			ExecutorService encoders) throws IOException {
+		this.width = width;
+		this.encoders = encoders;
+		this.rowsPerChunk = Math.max(1, CHUNK_BYTES / (3 * width + 1));
+		this.pending = new int[rowsPerChunk * width];
+		this.previousRaw = new byte[3 * width];
+
+		int threads = Runtime.getRuntime().availableProcessors();
+		this.queue = new ArrayBlockingQueue<Future<Chunk>>(2 * threads + 1);
+
+		out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 1 << 16));
+		writeHeader(out, width, height);
+
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				writeChunks();
+			}
+		}, "png-writer");
+		writerThread.start();
+	}
+
+	@Override
+	public void writeRows(int[] rgb, int rows) throws IOException {
+		for (int r = 0; r < rows; r++) {
+			System.arraycopy(rgb, r * width, pending, pendingRows * width, width);
+			pendingRows++;
+			if (pendingRows == rowsPerChunk) {
+				submitChunk();
+			}
+		}
+		if (writeError != null) {
+			throw writeError;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (pendingRows > 0) {
+			submitChunk();
+		}
+		put(END);
+		try {
+			writerThread.join();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while writing PNG");
+		}
+		if (writeError != null) {
+			out.close();
+			throw writeError;
+		}
+		out.close();
+	}
+
+	/**
+	 * @return Time spent filtering and compressing, summed over all threads
+	 */
+	public long getEncodeNanos() {
+		return encodeNanos.get();
+	}
+
+	/**
+	 * Hands the pending rows out for compression.
+	 */
+	private void submitChunk() throws IOException {
+		final int[] rows = pending;
+		final int count = pendingRows;
+		final byte[] above = previousRaw;
+
+		// The next chunk filters against the last row of this one
+		previousRaw = new byte[3 * width];
+		PngFilter.toRaw(rows, (count - 1) * width, width, previousRaw);
+
+		pending = new int[rowsPerChunk * width];
+		pendingRows = 0;
+
+		put(encoders.submit(new Callable<Chunk>() {
+			public Chunk call() {
+				return compress(rows, count, above);
+			}
+		}));
+	}
+
+	private void put(Future<Chunk> chunk) throws IOException {
+		try {
+			queue.put(chunk);
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while writing PNG");
+		}
+	}
+
+	/**
+	 * Filters and compresses a chunk of rows.
+	 */
+	private Chunk compress(int[] rgb, int rows, byte[] above) {
+		long start = System.nanoTime();
+
+		byte[] raw = new byte[3 * width];
+		byte[] previous = above.clone();
+		byte[] filtered = new byte[rows * (3 * width + 1)];
+		byte[] row = new byte[3 * width + 1];
+
+		for (int r = 0; r < rows; r++) {
+			PngFilter.toRaw(rgb, r * width, width, raw);
+			PngFilter.filterRow(raw, previous, row);
+			System.arraycopy(row, 0, filtered, r * row.length, row.length);
+
+			byte[] swap = previous;
+			previous = raw;
+			raw = swap;
+		}
+
+		Chunk chunk = new Chunk();
+		Adler32 adler = new Adler32();
+		adler.update(filtered);
+		chunk.adler = adler.getValue();
+		chunk.rawLength = filtered.length;
+
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(filtered);
+		chunk.data = new byte[filtered.length / 2 + 64];
+		while (true) {
+			chunk.length += deflater.deflate(chunk.data, chunk.length,
+					chunk.data.length - chunk.length, Deflater.SYNC_FLUSH);
+			if (chunk.length < chunk.data.length) {
+				break;
+			}
+			byte[] bigger = new byte[2 * chunk.data.length];
+			System.arraycopy(chunk.data, 0, bigger, 0, chunk.length);
+			chunk.data = bigger;
+		}
+		deflater.end();
+
+		encodeNanos.addAndGet(System.nanoTime() - start);
+		return chunk;
+	}
+
+	/**
+	 * Writer thread: writes the compressed chunks in order, then finishes the
+	 * file.
+	 */
+	private void writeChunks() {
+		long adler = 1;
+		try {
+			writeChunk(out, "IDAT", ZLIB_HEADER, 0,
+					ZLIB_HEADER.length);
+
+			while (true) {
+				Future<Chunk> future = queue.take();
+				if (future == END) {
+					break;
+				}
+				if (writeError != null) {
+					// Keep draining so the producer never blocks
+					continue;
+				}
+				Chunk chunk = future.get();
+				writeChunk(out, "IDAT", chunk.data, 0, chunk.length);
+				adler = combineAdler(adler, chunk.adler, chunk.rawLength);
+			}
+
+			if (writeError == null) {
+				byte[] trailer = new byte[FINAL_BLOCK.length + 4];
+				System.arraycopy(FINAL_BLOCK, 0, trailer, 0, FINAL_BLOCK.length);
+				for (int i = 0; i < 4; i++) {
+					trailer[FINAL_BLOCK.length + i] = (byte) (adler >>> (24 - 8 * i));
+				}
+				writeChunk(out, "IDAT", trailer, 0, trailer.length);
+				writeChunk(out, "IEND", trailer, 0, 0);
+			}
+
+		} catch (IOException e) {
+			writeError = e;
+		} catch (InterruptedException e) {
+			writeError = new IOException("Interrupted while writing PNG");
+		} catch (ExecutionException e) {
+			writeError = new IOException("PNG compression failed", e.getCause());
+		}
+
+		// After an error, drain what's left so close() can return
+		if (writeError != null) {
+			try {
+				while (queue.take() != END) {
+					// Discard
+				}
+			} catch (InterruptedException e) {
+				// Give up
+			}
+		}
+	}
+
+	/**
+	 * Combines the Adler-32 of two consecutive byte sequences, like zlib's
+	 * adler32_combine.
+	 *
+	 * @param adler1
+	 *            Adler-32 of the first sequence
+	 * @param adler2
+	 *            Adler-32 of the second sequence
+	 * @param length2
+	 *            Length of the second sequence
+	 * @return Adler-32 of both sequences together
+	 */
+	static long combineAdler(long adler1, long adler2, long length2) {
+		long rem = length2 % ADLER_BASE;
+		long sum1 = adler1 & 0xFFFF;
+		long sum2 = (rem * sum1) % ADLER_BASE;
+		sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+		sum2 += ((adler1 >> 16) & 0xFFFF) + ((adler2 >> 16) & 0xFFFF)
+				+ ADLER_BASE - rem;
+		if (sum1 >= ADLER_BASE) {
+			sum1 -= ADLER_BASE;
+		}
+		if (sum1 >= ADLER_BASE) {
+			sum1 -= ADLER_BASE;
+		}
+		if (sum2 >= (ADLER_BASE << 1)) {
+			sum2 -= (ADLER_BASE << 1);
+		}
+		if (sum2 >= ADLER_BASE) {
+			sum2 -= ADLER_BASE;
+		}
+		return sum1 | (sum2 << 16);
+	}
+
+	/**
+	 * Writes a whole image.
+	 *
+	 * @param image
+	 *            The image
+	 * @param file
+	 *            Target file
+	 */
+	public static void write(BufferedImage image, File file) throws IOException {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		ParallelPngWriter writer = new ParallelPngWriter(file, width, height);
+		try {
+			int rows = writer.rowsPerChunk;
+			int[] rgb = new int[rows * width];
+			for (int y = 0; y < height; y += rows) {
+				int n = Math.min(rows, height - y);
+				image.getRGB(0, y, width, n, rgb, 0, width);
+				writer.writeRows(rgb, n);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Writes the PNG signature and the IHDR chunk of an 8 bit RGB image.
+	 */
+	private static void writeHeader(DataOutputStream out, int width, int height)
+			throws IOException {
+		out.write(SIGNATURE);
+
+		byte[] ihdr = new byte[13];
+		putInt(ihdr, 0, width);
+		putInt(ihdr, 4, height);
+		ihdr[8] = 8; // Bit depth
+		ihdr[9] = 2; // Color type: RGB
+		ihdr[10] = 0; // Compression: deflate
+		ihdr[11] = 0; // Filter method: adaptive
+		ihdr[12] = 0; // No interlace
+		writeChunk(out, "IHDR", ihdr, 0, ihdr.length);
+	}
+
+	/**
+	 * Writes a PNG chunk: length, type, data and the CRC of type and data.
+	 */
+	private static void writeChunk(DataOutputStream out, String type, byte[] data,
+			int offset, int length) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, offset, length);
+
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, offset, length);
+		out.writeInt((int) crc.getValue());
+	}
+
+	private static void putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+}
@@ -0,0 +1,106 @@
+package ex3.image;
+
+/**
+ * PNG row filtering (see the PNG specification, section 9). Each row gets the
+ * filter that leaves it with the smallest sum of absolute values, the
+ * heuristic recommended by the specification.
+ */
+public class PngFilter {
+
+	// Bytes per pixel of 8 bit RGB
+	private static final int BPP = 3;
+
+	private static final int NONE = 0;
+	private static final int SUB = 1;
+	private static final int UP = 2;
+	private static final int AVERAGE = 3;
+	private static final int PAETH = 4;
+
+	/**
+	 * Unpacks a row of pixels to RGB bytes.
+	 *
+	 * @param rgb
+	 *            Pixels, in the default RGB color model
+	 * @param offset
+	 *            Index of the first pixel of the row
+	 * @param width
+	 *            Number of pixels in the row
+	 * @param raw
+	 *            Receives 3 * width bytes
+	 */
+	public static void toRaw(int[] rgb, int offset, int width, byte[] raw) {
+		for (int x = 0; x < width; x++) {
+			int pixel = rgb[offset + x];
+			raw[BPP * x] = (byte) (pixel >> 16);
+			raw[BPP * x + 1] = (byte) (pixel >> 8);
+			raw[BPP * x + 2] = (byte) pixel;
+		}
+	}
+
+	/**
+	 * Filters a row.
+	 *
+	 * @param raw
+	 *            The row, unfiltered
+	 * @param previous
+	 *            The row above it, unfiltered (all zeros for the first row)
+	 * @param filtered
+	 *            Receives the filter type byte followed by the filtered row
+	 */
+	public static void filterRow(byte[] raw, byte[] previous, byte[] filtered) {
+		int best = NONE;
+		long bestSum = Long.MAX_VALUE;
+		for (int type = NONE; type <= PAETH; type++) {
+			long sum = 0;
+			for (int i = 0; i < raw.length; i++) {
+				sum += Math.abs((byte) filter(type, raw, previous, i));
+			}
+			if (sum < bestSum) {
+				bestSum = sum;
+				best = type;
+			}
+		}
+
+		filtered[0] = (byte) best;
+		for (int i = 0; i < raw.length; i++) {
+			filtered[i + 1] = (byte) filter(best, raw, previous, i);
+		}
+	}
+
+	/**
+	 * @return The filtered value of byte i of the row
+	 */
+	private static int filter(int type, byte[] raw, byte[] previous, int i) {
+		int x = raw[i] & 0xFF;
+		int a = i >= BPP ? raw[i - BPP] & 0xFF : 0;
+		int b = previous[i] & 0xFF;
+
+		switch (type) {
+		case SUB:
+			return x - a;
+		case UP:
+			return x - b;
+		case AVERAGE:
+			return x - ((a + b) >> 1);
+		case PAETH:
+			int c = i >= BPP ? previous[i - BPP] & 0xFF : 0;
+			return x - paeth(a, b, c);
+		default:
+			return x;
+		}
+	}
+
+	private static int paeth(int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a);
+		int pb = Math.abs(p - b);
+		int pc = Math.abs(p - c);
+		if (pa <= pb && pa <= pc) {
+			return a;
+		}
+		if (pb <= pc) {
+			return b;
+		}
+		return c;
+	}
+}
@@ -0,0 +1,57 @@
+package ex3.image;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a binary PPM (P6) image. No compression, so it costs next to nothing
+ * to write, but takes 3 bytes per pixel on disk.
+ */
+public class PpmRowWriter implements RowWriter {
+
+	private OutputStream out;
+	private int width;
+	private byte[] row;
+
+	/**
+	 * Constructor. Writes the header.
+	 *
+	 * @param file
+	 *            Target file
+	 * @param width
+	 *            Width of the image
+	 * @param height
+	 *            Height of the image
+	 */
+	public PpmRowWriter(File file, int width, int height) throws IOException {
+		this.width = width;
+		this.row = new byte[3 * width];
+		this.out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+
+		String header = "P6\n" + width + " " + height + "\n255\n";
+		out.write(header.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	@Override
+	public void writeRows(int[] rgb, int rows) throws IOException {
+		for (int r = 0; r < rows; r++) {
+			int offset = r * width;
+			for (int x = 0; x < width; x++) {
+				int pixel = rgb[offset + x];
+				row[3 * x] = (byte) (pixel >> 16);
+				row[3 * x + 1] = (byte) (pixel >> 8);
+				row[3 * x + 2] = (byte) pixel;
+			}
+			out.write(row);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
@@ -0,0 +1,26 @@
+package ex3.image;
+
+import java.io.IOException;
+
+/**
+ * Writes an image to a file row by row, top to bottom, so the whole image never
+ * has to be in memory at once.
+ */
+public interface RowWriter {
+
+	/**
+	 * Writes the next rows of the image.
+	 * 
+	 * @param rgb
+	 *            Pixels of the rows, in the default RGB color model, one row
+	 *            after the other (width as given to the writer)
+	 * @param rows
+	 *            Number of rows in rgb
+	 */
+	public void writeRows(int[] rgb, int rows) throws IOException;
+
+	/**
+	 * Finishes the file. Must be called after the last row was written.
+	 */
+	public void close() throws IOException;
+}
@@ -0,0 +1,33 @@
+package ex3.image;
+
+/**
+ * Something render samples can be added to: a frame buffer that averages the
+ * samples of each pixel.
+ */
+public interface SampleBuffer {
+
+	public int getWidth();
+
+	public int getHeight();
+
+	/**
+	 * Adds a sample to a pixel.
+	 *
+	 * @param x
+	 *            Column of the pixel
+	 * @param y
+	 *            Line of the pixel
+	 * @param r
+	 *            Red, 1 being full intensity
+	 * @param g
+	 *            Green
+	 * @param b
+	 *            Blue
+	 */
+	public void addSample(int x, int y, double r, double g, double b);
+
+	/**
+	 * @return Number of samples accumulated in a pixel
+	 */
+	public int getSampleCount(int x, int y);
+}
@@ -3,6 +3,7 @@ package ex3.render;
 import java.awt.image.BufferedImage;
 import java.io.File;
 
+import ex3.image.SampleBuffer;
 import ex3.parser.SceneDescriptor;
 
 /**
@@ -38,4 +39,65 @@ public interface IRenderer {
 	 *            The line of the image that should be rendered.
 	 */
 	public void renderLine(BufferedImage canvas, int line);
+
+	/**
+	 * Renders the given line to an array of pixels, for callers that don't keep
+	 * the whole image in a canvas. This method must be called only after init.
+	 * 
+	 * @param rgb
+	 *            Receives the pixels of the line (width as given to init), in
+	 *            the default RGB color model
+	 * @param offset
+	 *            Index in rgb of the first pixel of the line
+	 * @param line
+	 *            The line of the image that should be rendered.
+	 */
+	public void renderLine(int[] rgb, int offset, int line);
+
+	/**
+	 * Renders part of the given line to an array of pixels, e.g. to render a
+	 * region of the image only. The pixels are the same as those of the whole
+	 * line. This method must be called only after init.
+	 * 
+	 * @param rgb
+	 *            Receives the pixels of the span, in the default RGB color model
+	 * @param offset
+	 *            Index in rgb of pixel from
+	 * @param line
+	 *            The line of the image that should be rendered.
+	 * @param from
+	 *            First pixel of the span
+	 * @param to
+	 *            One past the last pixel of the span
+	 */
+	public void renderSpan(int[] rgb, int offset, int line, int from, int to);
+
+	/**
+	 * Renders the given line and adds its samples to a frame buffer, without
+	 * clamping or quantizing them. Rendering the same line again adds more
+	 * samples. This method must be called only after init.
+	 * 
+	 * @param frameBuffer
+	 *            Frame buffer of the size given to init
+	 * @param line
+	 *            The line of the image that should be rendered.
+	 */
+	public void renderLine(SampleBuffer frameBuffer, int line);
+
+	/**
+	 * Returns the number of rays traced since init. Lines may be rendered
+	 * concurrently, so this must be safe to call from any thread.
+	 * 
+	 * @return Number of rays
+	 */
+	public long getRayCount();
+
+	/**
+	 * Returns the statistics of the renderer since init: rays of every kind,
+	 * primitive tests and phase timings. Like getRayCount, this must be safe
+	 * to call from any thread.
+	 * 
+	 * @return Statistics of the renderer
+	 */
+	public RenderStats getStats();
 }
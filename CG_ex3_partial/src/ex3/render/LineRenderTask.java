@@ -0,0 +1,143 @@
+package ex3.render;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import ex3.image.SampleBuffer;
+
+/**
+ * Renders a range of lines in parallel, by splitting it into bands of a few
+ * lines each and forking them into the current fork/join pool.
+ *
+ * Since the bands are forked into the pool the task runs in, a scene rendered
+ * from inside a pool (e.g. one of many scenes in a batch) shares the threads
+ * of that pool instead of adding threads of its own.
+ *
+ * Lines are rendered either straight to a canvas, or as samples added to a
+ * frame buffer. If the renderer's render is tracked by the RenderMonitor, every
+ * line is reported to it, and may pause or cancel the render.
+ */
+public class LineRenderTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	// Number of lines below which a band is rendered instead of split
+	public static final int BAND_HEIGHT = 8;
+
+	private IRenderer renderer;
+	private BufferedImage canvas;
+	private SampleBuffer frameBuffer;
+	private int from;
+	private int to;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param renderer
+	 *            An initialized renderer
+	 * @param canvas
+	 *            Canvas of the size given to the renderer's init
+	 * @param from
+	 *            First line to render
+	 * @param to
+	 *            One past the last line to render
+	 */
+	public LineRenderTask(IRenderer renderer, BufferedImage canvas, int from,
+			int to) {
+		this.renderer = renderer;
+		this.canvas = canvas;
+		this.from = from;
+		this.to = to;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param renderer
+	 *            An initialized renderer
+	 * @param frameBuffer
+	 *            Frame buffer of the size given to the renderer's init
+	 * @param from
+	 *            First line to render
+	 * @param to
+	 *            One past the last line to render
+	 */
+	public LineRenderTask(IRenderer renderer, SampleBuffer frameBuffer,
+			int from, int to) {
+		this.renderer = renderer;
+		this.frameBuffer = frameBuffer;
+		this.from = from;
+		this.to = to;
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from <= BAND_HEIGHT) {
+			RenderMonitor.Render render = RenderMonitor.get().find(renderer);
+			for (int y = from; y < to; ++y) {
+				if (render != null) {
+					render.checkpoint();
+				}
+				long start = System.nanoTime();
+				if (frameBuffer != null) {
+					renderer.renderLine(frameBuffer, y);
+				} else {
+					renderer.renderLine(canvas, y);
+				}
+				if (render != null) {
+					render.linesDone(1, System.nanoTime() - start);
+				}
+			}
+			return;
+		}
+
+		int middle = (from + to) >>> 1;
+		invokeAll(split(from, middle), split(middle, to));
+	}
+
+	private LineRenderTask split(int from, int to) {
+		if (frameBuffer != null) {
+			return new LineRenderTask(renderer, frameBuffer, from, to);
+		}
+		return new LineRenderTask(renderer, canvas, from, to);
+	}
+
+	/**
+	 * Renders all the lines of the canvas. Runs in the current pool if called
+	 * from a fork/join task, or in the common pool otherwise.
+	 *
+	 * @param renderer
+	 *            An initialized renderer
+	 * @param canvas
+	 *            Canvas of the size given to the renderer's init
+	 */
+	public static void renderAll(IRenderer renderer, BufferedImage canvas) {
+		run(new LineRenderTask(renderer, canvas, 0, canvas.getHeight()));
+	}
+
+	/**
+	 * Renders all the lines of the frame buffer once, adding a pass of samples
+	 * to it. Runs in the current pool if called from a fork/join task, or in
+	 * the common pool otherwise.
+	 *
+	 * @param renderer
+	 *            An initialized renderer
+	 * @param frameBuffer
+	 *            Frame buffer of the size given to the renderer's init
+	 */
+	public static void renderAll(IRenderer renderer,
+			SampleBuffer frameBuffer) {
+		run(new LineRenderTask(renderer, frameBuffer, 0,
+				frameBuffer.getHeight()));
+	}
+
+	private static void run(LineRenderTask task) {
+		if (ForkJoinTask.inForkJoinPool()) {
+			task.invoke();
+		} else {
+			ForkJoinPool.commonPool().invoke(task);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package ex3.render;
+
+import java.awt.Rectangle;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Renders a rectangle of the image only, in parallel, splitting it into bands
+ * of lines like LineRenderTask. Only the pixels of the rectangle are traced, so
+ * the cost is proportional to its area.
+ *
+ * The rectangle is in the coordinates of the whole image (the size given to
+ * the renderer's init, which is what the camera shoots its rays through), so
+ * its pixels are exactly those of a full render and can be pasted into one
+ * without seams.
+ */
+public class RegionRenderTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	private IRenderer renderer;
+	private Rectangle region;
+	private int[] rgb;
+	private int from;
+	private int to;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param renderer
+	 *            An initialized renderer
+	 * @param region
+	 *            Rectangle to render, within the image
+	 * @param rgb
+	 *            Receives the pixels of the rectangle, line after line
+	 * @param from
+	 *            First line to render, in image coordinates
+	 * @param to
+	 *            One past the last line to render
+	 */
+	public RegionRenderTask(IRenderer renderer, Rectangle region, int[] rgb,
+			int from, int to) {
+		this.renderer = renderer;
+		this.region = region;
+		this.rgb = rgb;
+		this.from = from;
+		this.to = to;
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from <= LineRenderTask.BAND_HEIGHT) {
+			for (int y = from; y < to; ++y) {
+				renderer.renderSpan(rgb, (y - region.y) * region.width, y,
+						region.x, region.x + region.width);
+			}
+			return;
+		}
+
+		int middle = (from + to) >>> 1;
+		invokeAll(new RegionRenderTask(renderer, region, rgb, from, middle),
+				new RegionRenderTask(renderer, region, rgb, middle, to));
+	}
+
+	/**
+	 * Renders a rectangle of the image. Runs in the current pool if called
+	 * from a fork/join task, or in the common pool otherwise.
+	 *
+	 * @param renderer
+	 *            An initialized renderer
+	 * @param region
+	 *            Rectangle to render, within the image
+	 * @return The pixels of the rectangle, line after line, in the default RGB
+	 *         color model
+	 */
+	public static int[] renderRegion(IRenderer renderer, Rectangle region) {
+		int[] rgb = new int[region.width * region.height];
+		RegionRenderTask task = new RegionRenderTask(renderer, region, rgb,
+				region.y, region.y + region.height);
+		if (ForkJoinTask.inForkJoinPool()) {
+			task.invoke();
+		} else {
+			ForkJoinPool.commonPool().invoke(task);
+		}
+		return rgb;
+	}
+}
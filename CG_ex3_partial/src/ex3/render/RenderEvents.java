@@ -0,0 +1,312 @@
+package ex3.render;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the renderer, so that recordings of a render
+ * show its phases next to GC, safepoints and the rest:
+ *
+ * ex3.SceneLoad - reading and parsing a scene file
+ * ex3.SceneBuild - building the scene for tracing (sphere sets, packets)
+ * ex3.TileRender - rendering a line, or a span of one, with the number of
+ * rays it took, flagged as slow when it took longer than
+ * -Dex3.jfr.slowTileMillis (100 by default)
+ * ex3.ImageEncode - writing the image
+ *
+ * The event types are plain subclasses of jdk.jfr.Event, created only once
+ * the Flight Recorder is initialized (by a recording, from the command line or
+ * later): registering an event class initializes the recorder, which takes
+ * about 300 ms. Until then, on JVMs without the jdk.jfr module, or with
+ * -Dex3.jfr=false, the events are never enabled and cost one check each.
+ * Otherwise, while no recording wants an event type, its events cost a check
+ * of the type's settings.
+ *
+ * Usage: begin() an event before the work, and commit() it with the values of
+ * its fields after. Events that no recording is interested in do nothing.
+ */
+public class RenderEvents {
+
+	// Tiles that take longer than this are flagged as slow
+	private static final long SLOW_TILE_NANOS = Long.getLong(
+			"ex3.jfr.slowTileMillis", 100) * 1000000;
+
+	private static final boolean AVAILABLE = available();
+
+	private static boolean available() {
+		if ("false".equals(System.getProperty("ex3.jfr"))) {
+			return false;
+		}
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException e) {
+			// No Flight Recorder on this JVM
+			return false;
+		}
+	}
+
+	public static final Type SCENE_LOAD = new Type() {
+		@Override
+		Object create() {
+			return new SceneLoad();
+		}
+	};
+
+	public static final Type SCENE_BUILD = new Type() {
+		@Override
+		Object create() {
+			return new SceneBuild();
+		}
+	};
+
+	public static final Type TILE_RENDER = new Type() {
+		@Override
+		Object create() {
+			return new TileRender();
+		}
+	};
+
+	public static final Type IMAGE_ENCODE = new Type() {
+		@Override
+		Object create() {
+			return new ImageEncode();
+		}
+	};
+
+	// Rays traced by each thread, counted only once some recording wants
+	// tile events
+	private static volatile boolean countingRays;
+	private static final ThreadLocal<long[]> threadRays = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	/**
+	 * Counts rays traced by the current thread, for the tile events.
+	 *
+	 * @param rays
+	 *            Number of rays
+	 */
+	public static void countRays(long rays) {
+		if (countingRays) {
+			threadRays.get()[0] += rays;
+		}
+	}
+
+	/**
+	 * A type of events.
+	 */
+	public abstract static class Type {
+
+		/**
+		 * @return A new event of this type, a RenderEvent (as an Object, so
+		 *         that the types load on JVMs without jdk.jfr)
+		 */
+		abstract Object create();
+
+		/**
+		 * Begins an event of this type, if a recording is interested in it.
+		 *
+		 * @return The event, which does nothing if no recording is
+		 *         interested
+		 */
+		public Event begin() {
+			if (!AVAILABLE || !FlightRecorder.isInitialized()) {
+				return Event.NONE;
+			}
+			RenderEvent event = (RenderEvent) create();
+			if (!event.isEnabled()) {
+				return Event.NONE;
+			}
+			event.begin();
+			if (this == TILE_RENDER) {
+				countingRays = true;
+			}
+			return new Event(event);
+		}
+	}
+
+	/**
+	 * An event, from its beginning to its commit.
+	 */
+	public static class Event {
+
+		static final Event NONE = new Event(null);
+
+		private RenderEvent event; // null if nobody is interested
+		private long start;
+		private long rays;
+
+		Event(RenderEvent event) {
+			this.event = event;
+			if (event != null) {
+				start = System.nanoTime();
+				rays = threadRays.get()[0];
+			}
+		}
+
+		/**
+		 * @return Whether a recording is interested in the event, i.e. whether
+		 *         committing it does anything
+		 */
+		public boolean isEnabled() {
+			return event != null;
+		}
+
+		/**
+		 * @return Nanoseconds since the event began (0 if it isn't enabled)
+		 */
+		public long getNanos() {
+			return event != null ? System.nanoTime() - start : 0;
+		}
+
+		/**
+		 * @return Rays traced by the current thread since the event began (0
+		 *         if it isn't enabled)
+		 */
+		public long getRays() {
+			return event != null ? threadRays.get()[0] - rays : 0;
+		}
+
+		/**
+		 * @return Whether the event took long enough to be a slow tile
+		 */
+		public boolean isSlow() {
+			return getNanos() > SLOW_TILE_NANOS;
+		}
+
+		/**
+		 * Ends the event and commits it to the recordings.
+		 *
+		 * @param values
+		 *            The values of its fields, in order
+		 */
+		public void commit(Object... values) {
+			if (event == null) {
+				return;
+			}
+			event.end();
+			if (event.shouldCommit()) {
+				event.set(values);
+				event.commit();
+			}
+			event = null;
+		}
+	}
+
+	/**
+	 * The Flight Recorder events, with their fields set from the values
+	 * commit() gets, in order.
+	 */
+	abstract static class RenderEvent extends jdk.jfr.Event {
+
+		abstract void set(Object[] values);
+	}
+
+	@Name("ex3.SceneLoad")
+	@Label("Scene Load")
+	@Description("Reading and parsing a scene file")
+	@Category("Ray Tracer")
+	@StackTrace(false)
+	static class SceneLoad extends RenderEvent {
+
+		@Label("Scene File")
+		String file;
+
+		@Label("Objects")
+		int objects;
+
+		@Override
+		void set(Object[] values) {
+			file = (String) values[0];
+			objects = (Integer) values[1];
+		}
+	}
+
+	@Name("ex3.SceneBuild")
+	@Label("Scene Build")
+	@Description("Building the scene for tracing: sphere sets and packet tracer")
+	@Category("Ray Tracer")
+	@StackTrace(false)
+	static class SceneBuild extends RenderEvent {
+
+		@Label("Surfaces")
+		int surfaces;
+
+		@Label("Lights")
+		int lights;
+
+		@Label("Sphere Sets")
+		int sphereSets;
+
+		@Override
+		void set(Object[] values) {
+			surfaces = (Integer) values[0];
+			lights = (Integer) values[1];
+			sphereSets = (Integer) values[2];
+		}
+	}
+
+	@Name("ex3.TileRender")
+	@Label("Tile Render")
+	@Description("Rendering a span of a line")
+	@Category("Ray Tracer")
+	@StackTrace(false)
+	static class TileRender extends RenderEvent {
+
+		@Label("Line")
+		int line;
+
+		@Label("From X")
+		int from;
+
+		@Label("To X")
+		int to;
+
+		@Label("Rays")
+		long rays;
+
+		@Label("Slow")
+		boolean slow;
+
+		@Override
+		void set(Object[] values) {
+			line = (Integer) values[0];
+			from = (Integer) values[1];
+			to = (Integer) values[2];
+			rays = (Long) values[3];
+			slow = (Boolean) values[4];
+		}
+	}
+
+	@Name("ex3.ImageEncode")
+	@Label("Image Encode")
+	@Description("Writing the rendered image")
+	@Category("Ray Tracer")
+	@StackTrace(false)
+	static class ImageEncode extends RenderEvent {
+
+		@Label("Image File")
+		String file;
+
+		@Label("Width")
+		int width;
+
+		@Label("Height")
+		int height;
+
+		@Override
+		void set(Object[] values) {
+			file = (String) values[0];
+			width = (Integer) values[1];
+			height = (Integer) values[2];
+		}
+	}
+}
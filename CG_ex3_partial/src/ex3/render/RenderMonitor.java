@@ -0,0 +1,321 @@
+package ex3.render;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import ex3.render.raytrace.TextureCache;
+
+/**
+ * Keeps track of the renders in progress, and exposes their progress and
+ * throughput to JMX tools as ex3:type=RenderMonitor (see RenderMonitorMBean).
+ * The monitor is registered with the platform MBean server the first time it
+ * is used, so connecting to a rendering JVM (locally, or remotely with the
+ * usual com.sun.management.jmxremote options) is enough to watch it.
+ *
+ * Renders begin() with their renderer, and end() when done. The tasks that
+ * render their lines (e.g. LineRenderTask) call checkpoint() before every line,
+ * which is where renders pause and get cancelled, and report every line they
+ * render.
+ */
+public class RenderMonitor implements RenderMonitorMBean {
+
+	public static final String OBJECT_NAME = "ex3:type=RenderMonitor";
+
+	private final List<Render> renders = new CopyOnWriteArrayList<Render>();
+	private volatile boolean paused;
+
+	// The last reading of the ray count, for getRaysPerSecond
+	private long sampleNanos;
+	private long sampleRays;
+
+	/**
+	 * A render in progress.
+	 */
+	public class Render {
+
+		private String name;
+		private IRenderer renderer;
+		private long lines;
+		private ForkJoinPool pool;
+		private long startNanos = System.nanoTime();
+		private long startRays;
+		private LongAdder linesCompleted = new LongAdder();
+		private LongAdder busyNanos = new LongAdder();
+		private volatile boolean cancelled;
+
+		Render(String name, IRenderer renderer, long lines) {
+			this.name = name;
+			this.renderer = renderer;
+			this.lines = lines;
+			this.startRays = renderer.getRayCount();
+			this.pool = ForkJoinTask.inForkJoinPool() ? ForkJoinTask
+					.getPool() : ForkJoinPool.commonPool();
+		}
+
+		/**
+		 * Waits while the renders are paused, and stops the render if it was
+		 * cancelled. Called before rendering each line.
+		 *
+		 * @throws CancellationException
+		 *             If the render was cancelled
+		 */
+		public void checkpoint() {
+			if (paused) {
+				synchronized (RenderMonitor.this) {
+					while (paused && !cancelled) {
+						try {
+							RenderMonitor.this.wait();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							break;
+						}
+					}
+				}
+			}
+			if (cancelled) {
+				throw new CancellationException("Render cancelled: " + name);
+			}
+		}
+
+		/**
+		 * Reports rendered lines.
+		 *
+		 * @param count
+		 *            Number of lines
+		 * @param nanos
+		 *            How long the thread spent on them
+		 */
+		public void linesDone(int count, long nanos) {
+			linesCompleted.add(count);
+			busyNanos.add(nanos);
+		}
+
+		/**
+		 * Ends the render, whether it is done or not.
+		 */
+		public void end() {
+			renders.remove(this);
+		}
+	}
+
+	/**
+	 * The monitor of this JVM, created (and registered) on first use.
+	 */
+	private static class Holder {
+		static final RenderMonitor INSTANCE = register(new RenderMonitor());
+	}
+
+	private static RenderMonitor register(RenderMonitor monitor) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(monitor,
+					new ObjectName(OBJECT_NAME));
+		} catch (JMException e) {
+			System.err.println("Could not register " + OBJECT_NAME + ": " + e);
+		} catch (SecurityException e) {
+			// Not allowed to, the monitor still works without JMX
+		}
+		return monitor;
+	}
+
+	/**
+	 * Returns the monitor of this JVM, registering it with the platform MBean
+	 * server the first time.
+	 *
+	 * @return The monitor
+	 */
+	public static RenderMonitor get() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Begins tracking a render.
+	 *
+	 * @param name
+	 *            Name of the render (e.g. its scene file)
+	 * @param renderer
+	 *            The initialized renderer
+	 * @param lines
+	 *            Number of lines the render will render
+	 * @return The render, to end() when done
+	 */
+	public Render begin(String name, IRenderer renderer, long lines) {
+		Render render = new Render(name, renderer, lines);
+		renders.add(render);
+		return render;
+	}
+
+	/**
+	 * Finds the render in progress of a renderer.
+	 *
+	 * @param renderer
+	 *            The renderer
+	 * @return Its render, or null if it isn't tracked
+	 */
+	public Render find(IRenderer renderer) {
+		for (Render render : renders) {
+			if (render.renderer == renderer) {
+				return render;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public int getActiveRenders() {
+		return renders.size();
+	}
+
+	@Override
+	public String[] getActiveScenes() {
+		List<String> names = new ArrayList<String>();
+		for (Render render : renders) {
+			names.add(render.name);
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	@Override
+	public long getLinesTotal() {
+		long total = 0;
+		for (Render render : renders) {
+			total += render.lines;
+		}
+		return total;
+	}
+
+	@Override
+	public long getLinesCompleted() {
+		long completed = 0;
+		for (Render render : renders) {
+			completed += render.linesCompleted.sum();
+		}
+		return completed;
+	}
+
+	@Override
+	public double getProgressPercent() {
+		long total = getLinesTotal();
+		return total == 0 ? 0 : 100.0 * getLinesCompleted() / total;
+	}
+
+	@Override
+	public long getEtaSeconds() {
+		long eta = -1;
+		for (Render render : renders) {
+			long completed = render.linesCompleted.sum();
+			if (completed == 0) {
+				return -1;
+			}
+			double elapsed = (System.nanoTime() - render.startNanos) / 1e9;
+			eta = Math.max(eta, (long) Math.ceil(elapsed
+					* (render.lines - completed) / completed));
+		}
+		return eta;
+	}
+
+	@Override
+	public synchronized double getRaysPerSecond() {
+		long now = System.nanoTime();
+		long rays = 0;
+		long since = now;
+		for (Render render : renders) {
+			rays += render.renderer.getRayCount() - render.startRays;
+			since = Math.min(since, render.startNanos);
+		}
+
+		// Since the last reading, if it was of the same renders
+		double rate;
+		if (sampleNanos > since && rays >= sampleRays && now > sampleNanos) {
+			rate = (rays - sampleRays) / ((now - sampleNanos) / 1e9);
+		} else {
+			rate = now > since ? rays / ((now - since) / 1e9) : 0;
+		}
+		sampleNanos = now;
+		sampleRays = rays;
+		return rate;
+	}
+
+	@Override
+	public int getRenderThreads() {
+		int threads = 0;
+		List<ForkJoinPool> pools = new ArrayList<ForkJoinPool>();
+		for (Render render : renders) {
+			if (!pools.contains(render.pool)) {
+				pools.add(render.pool);
+				threads += render.pool.getParallelism();
+			}
+		}
+		return threads;
+	}
+
+	@Override
+	public int getActiveThreads() {
+		int threads = 0;
+		List<ForkJoinPool> pools = new ArrayList<ForkJoinPool>();
+		for (Render render : renders) {
+			if (!pools.contains(render.pool)) {
+				pools.add(render.pool);
+				threads += render.pool.getActiveThreadCount();
+			}
+		}
+		return threads;
+	}
+
+	@Override
+	public double getThreadUtilization() {
+		long now = System.nanoTime();
+		long busy = 0;
+		long since = now;
+		for (Render render : renders) {
+			busy += render.busyNanos.sum();
+			since = Math.min(since, render.startNanos);
+		}
+		int threads = getRenderThreads();
+		if (threads == 0 || now == since) {
+			return 0;
+		}
+		return Math.min(1, (double) busy / ((now - since) * threads));
+	}
+
+	@Override
+	public double getTextureCacheHitRate() {
+		long hits = TextureCache.getHits();
+		long reads = hits + TextureCache.getMisses();
+		return reads == 0 ? 0 : (double) hits / reads;
+	}
+
+	@Override
+	public boolean isPaused() {
+		return paused;
+	}
+
+	@Override
+	public synchronized void pause() {
+		paused = true;
+	}
+
+	@Override
+	public synchronized void resume() {
+		paused = false;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void cancel() {
+		for (Render render : renders) {
+			render.cancelled = true;
+		}
+		// Nothing left to pause, the next renders start right away
+		paused = false;
+		notifyAll();
+	}
+}
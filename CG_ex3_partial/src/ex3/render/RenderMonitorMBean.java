@@ -0,0 +1,92 @@
+package ex3.render;
+
+/**
+ * Management interface of the RenderMonitor, as seen from JMX tools (e.g.
+ * jconsole or VisualVM), under ex3:type=RenderMonitor.
+ *
+ * The attributes sum up all the renders active in the JVM (usually one), and
+ * the operations apply to all of them.
+ */
+public interface RenderMonitorMBean {
+
+	/**
+	 * @return Number of renders in progress
+	 */
+	public int getActiveRenders();
+
+	/**
+	 * @return Names of the renders in progress (e.g. their scene files)
+	 */
+	public String[] getActiveScenes();
+
+	/**
+	 * @return Number of lines of the renders in progress
+	 */
+	public long getLinesTotal();
+
+	/**
+	 * @return Number of those lines rendered so far
+	 */
+	public long getLinesCompleted();
+
+	/**
+	 * @return Percent of the lines rendered so far
+	 */
+	public double getProgressPercent();
+
+	/**
+	 * @return Estimated seconds until the renders are done, at the pace so
+	 *         far, or -1 if there's nothing to estimate from yet
+	 */
+	public long getEtaSeconds();
+
+	/**
+	 * @return Rays traced per second since the last time this was read (or
+	 *         since the renders began)
+	 */
+	public double getRaysPerSecond();
+
+	/**
+	 * @return Number of threads the renders may use
+	 */
+	public int getRenderThreads();
+
+	/**
+	 * @return Number of threads of the render pools that are busy now
+	 */
+	public int getActiveThreads();
+
+	/**
+	 * @return Share of the render threads' time spent rendering lines since
+	 *         the renders began, from 0 to 1
+	 */
+	public double getThreadUtilization();
+
+	/**
+	 * @return Share of texture reads served from the texture cache, from 0
+	 *         to 1 (0 if there were none)
+	 */
+	public double getTextureCacheHitRate();
+
+	/**
+	 * @return Whether the renders are paused
+	 */
+	public boolean isPaused();
+
+	/**
+	 * Pauses the renders: their threads wait before starting another line.
+	 */
+	public void pause();
+
+	/**
+	 * Resumes paused renders.
+	 */
+	public void resume();
+
+	/**
+	 * Cancels the renders: they stop before their next line, with a
+	 * CancellationException. Also ends a pause, so that the next renders
+	 * don't wait for resume().
+	 */
+	public void cancel();
+}
@@ -0,0 +1,286 @@
+package ex3.render;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import ex3.image.CostMap;
+
+/**
+ * Statistics of a renderer: how many rays of each kind it traced, how many of
+ * them hit something, how many ray-primitive tests that took, and how long
+ * each phase (parse, build, render, encode) took.
+ *
+ * Lines render concurrently, so the counters are LongAdders: every thread
+ * adds to a cell of its own, and only reading them sums the cells up. All the
+ * methods are safe to call from any thread, also while rendering.
+ *
+ * Every hit shoots exactly one reflected ray, so the average recursion depth
+ * of a primary ray is the number of reflected rays per primary ray.
+ */
+public class RenderStats {
+
+	/**
+	 * Where to write the statistics as JSON when they are reported, set with
+	 * -Dex3.stats.json=<file> (null if not set).
+	 */
+	public static final String JSON_FILE = System.getProperty("ex3.stats.json");
+
+	/**
+	 * Kinds of rays.
+	 */
+	public enum Kind {
+		PRIMARY, 		// From the eye through a pixel (or sub-pixel)
+		SHADOW, 		// From a hit towards a light
+		REFLECTION 		// Reflected off a hit
+	}
+
+	/**
+	 * Phases of a render, in order.
+	 */
+	public enum Phase {
+		PARSE, 			// Reading and parsing the scene file
+		BUILD, 			// Building the scene for tracing
+		RENDER, 		// Tracing the rays
+		ENCODE 			// Writing the image
+	}
+
+	private final LongAdder[] rays = newAdders(Kind.values().length);
+	private final LongAdder[] hits = newAdders(Kind.values().length);
+	private final LongAdder primitiveTests = new LongAdder();
+	private final LongAdder[] phaseNanos = newAdders(Phase.values().length);
+	private volatile CostMap costMap;
+
+	private static LongAdder[] newAdders(int n) {
+		LongAdder[] adders = new LongAdder[n];
+		for (int i = 0; i < n; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+
+	/**
+	 * Counts rays traced through the scene.
+	 *
+	 * @param kind
+	 *            Kind of the rays
+	 * @param count
+	 *            Number of rays
+	 * @param hitCount
+	 *            How many of them hit something
+	 * @param tests
+	 *            Number of ray-primitive intersection tests they took
+	 */
+	public void countRays(Kind kind, long count, long hitCount, long tests) {
+		rays[kind.ordinal()].add(count);
+		if (hitCount != 0) {
+			hits[kind.ordinal()].add(hitCount);
+		}
+		primitiveTests.add(tests);
+	}
+
+	/**
+	 * Adds the duration of (a run of) a phase.
+	 *
+	 * @param phase
+	 *            The phase
+	 * @param nanos
+	 *            How long it took, in nanoseconds
+	 */
+	public void addTime(Phase phase, long nanos) {
+		phaseNanos[phase.ordinal()].add(nanos);
+	}
+
+	/**
+	 * @return Number of rays of the given kind traced so far
+	 */
+	public long getRays(Kind kind) {
+		return rays[kind.ordinal()].sum();
+	}
+
+	/**
+	 * @return Number of rays of all kinds traced so far
+	 */
+	public long getRays() {
+		long sum = 0;
+		for (LongAdder adder : rays) {
+			sum += adder.sum();
+		}
+		return sum;
+	}
+
+	/**
+	 * @return Number of rays of the given kind that hit something
+	 */
+	public long getHits(Kind kind) {
+		return hits[kind.ordinal()].sum();
+	}
+
+	/**
+	 * @return Number of rays of all kinds that hit something
+	 */
+	public long getHits() {
+		long sum = 0;
+		for (LongAdder adder : hits) {
+			sum += adder.sum();
+		}
+		return sum;
+	}
+
+	/**
+	 * @return Number of ray-primitive intersection tests so far
+	 */
+	public long getPrimitiveTests() {
+		return primitiveTests.sum();
+	}
+
+	/**
+	 * @return Average number of reflections followed per primary ray (0 if no
+	 *         primary rays were traced)
+	 */
+	public double getAverageDepth() {
+		long primary = getRays(Kind.PRIMARY);
+		return primary == 0 ? 0 : (double) getRays(Kind.REFLECTION) / primary;
+	}
+
+	/**
+	 * @return Total duration of a phase so far, in nanoseconds
+	 */
+	public long getNanos(Phase phase) {
+		return phaseNanos[phase.ordinal()].sum();
+	}
+
+	/**
+	 * @return Rays traced per second of the render phase (0 if it wasn't
+	 *         timed)
+	 */
+	public double getRaysPerSecond() {
+		long nanos = getNanos(Phase.RENDER);
+		return nanos == 0 ? 0 : getRays() / (nanos / 1e9);
+	}
+
+	/**
+	 * Sets the cost map the renderer keeps, if any.
+	 *
+	 * @param costMap
+	 *            The cost map, or null
+	 */
+	public void setCostMap(CostMap costMap) {
+		this.costMap = costMap;
+	}
+
+	/**
+	 * @return The cost of every pixel, or null if the renderer doesn't keep
+	 *         it (see -Dex3.heatmap)
+	 */
+	public CostMap getCostMap() {
+		return costMap;
+	}
+
+	/**
+	 * @return A few lines summing up the statistics, for people
+	 */
+	public String summary() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.ROOT,
+				"Rays: %,d (%,d per second)%n", getRays(),
+				(long) getRaysPerSecond()));
+		for (Kind kind : Kind.values()) {
+			long count = getRays(kind);
+			sb.append(String.format(Locale.ROOT,
+					"  %-10s %,14d, %5.1f%% hit%n", kind.name().toLowerCase(),
+					count, count == 0 ? 0 : 100.0 * getHits(kind) / count));
+		}
+		long total = getRays();
+		sb.append(String.format(Locale.ROOT,
+				"Primitive tests: %,d (%.1f per ray)%n", getPrimitiveTests(),
+				total == 0 ? 0 : (double) getPrimitiveTests() / total));
+		sb.append(String.format(Locale.ROOT,
+				"Average recursion depth: %.2f%n", getAverageDepth()));
+		sb.append("Time:");
+		for (Phase phase : Phase.values()) {
+			sb.append(String.format(Locale.ROOT, " %s %.1f ms", phase.name()
+					.toLowerCase(), getNanos(phase) / 1e6));
+			sb.append(phase.ordinal() < Phase.values().length - 1 ? "," : "");
+		}
+		if (costMap != null) {
+			sb.append(String.format("%n")).append(costMap.summary());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return The statistics as a JSON object, for tools
+	 */
+	public String toJson() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"rays\": {");
+		for (Kind kind : Kind.values()) {
+			sb.append(String.format(Locale.ROOT, "\"%s\": %d, ", kind.name()
+					.toLowerCase(), getRays(kind)));
+		}
+		sb.append(String.format(Locale.ROOT, "\"total\": %d},%n", getRays()));
+		sb.append("  \"hits\": {");
+		for (Kind kind : Kind.values()) {
+			sb.append(String.format(Locale.ROOT, "\"%s\": %d, ", kind.name()
+					.toLowerCase(), getHits(kind)));
+		}
+		sb.append(String.format(Locale.ROOT, "\"total\": %d},%n", getHits()));
+		sb.append(String.format(Locale.ROOT, "  \"primitiveTests\": %d,%n",
+				getPrimitiveTests()));
+		sb.append(String.format(Locale.ROOT,
+				"  \"averageRecursionDepth\": %.4f,%n", getAverageDepth()));
+		sb.append(String.format(Locale.ROOT, "  \"raysPerSecond\": %.1f,%n",
+				getRaysPerSecond()));
+		sb.append("  \"millis\": {");
+		for (Phase phase : Phase.values()) {
+			sb.append(String.format(Locale.ROOT, "\"%s\": %.3f", phase.name()
+					.toLowerCase(), getNanos(phase) / 1e6));
+			sb.append(phase.ordinal() < Phase.values().length - 1 ? ", " : "");
+		}
+		sb.append("}\n");
+		sb.append("}\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Writes the statistics to a file as JSON.
+	 *
+	 * @param file
+	 *            The JSON file
+	 * @throws IOException
+	 *             If the file can't be written
+	 */
+	public void writeJson(File file) throws IOException {
+		PrintStream out = new PrintStream(file, "UTF-8");
+		try {
+			out.print(toJson());
+		} finally {
+			out.close();
+		}
+		if (out.checkError()) {
+			throw new IOException("Could not write " + file);
+		}
+	}
+
+	/**
+	 * Prints the summary, and writes the JSON file if one was set with
+	 * -Dex3.stats.json.
+	 *
+	 * @param out
+	 *            Where to print the summary
+	 */
+	public void report(PrintStream out) {
+		out.println(summary());
+		if (JSON_FILE != null) {
+			try {
+				writeJson(new File(JSON_FILE));
+			} catch (IOException e) {
+				out.println("Could not write statistics: " + e.getMessage());
+			}
+		}
+	}
+}
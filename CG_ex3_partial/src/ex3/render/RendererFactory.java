@@ -1,9 +1,11 @@
 package ex3.render;
 
 import ex3.render.raytrace.RayTracer;
+import ex3.render.raytrace.WavefrontRenderer;
 
 /**
- * Returns the default renderer
+ * Returns the default renderer, or the wavefront renderer when run with
+ * -Dex3.renderer=wavefront
  */
 public class RendererFactory {
 
@@ -13,6 +15,9 @@ public class RendererFactory {
 	 * @return
 	 */
 	public static IRenderer newInstance() {
+		if ("wavefront".equals(System.getProperty("ex3.renderer"))) {
+			return new WavefrontRenderer();
+		}
 		return new RayTracer();
 	}
 }
\ No newline at end of file
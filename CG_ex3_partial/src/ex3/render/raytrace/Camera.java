@@ -23,6 +23,19 @@ public class Camera implements IInitable{
 	private double screenDist;
 	private double screenWidth;
 	
+	// Frame constants, computed once per frame size by prepare()
+	private int frameWidth = -1; 		// Image size they were computed for
+	private int frameHeight = -1;
+	private double centerX; 			// Central pixel of the view plane, in image coordinates
+	private double centerY;
+	private double[] center; 			// Central pixel of the view plane in the scene
+	private double[] pixelUp; 			// Scene vector of one pixel up
+	private double[] pixelRight; 		// Scene vector of one pixel right
+	
+	// Per-column and per-row offsets from the central pixel, in the scene
+	private double[] columnX, columnY, columnZ;
+	private double[] rowX, rowY, rowZ;
+	
 	/**
 	 * Constructor.
 	 */
@@ -105,6 +118,13 @@ public class Camera implements IInitable{
 	 */
 	public Ray constructRayThroughPixel(double x, double y, double width, double height) {		
 		
+		// Use the frame constants if they were prepared for this size
+		if (width == frameWidth && height == frameHeight) {
+			double[] dir = new double[3];
+			direction(x, y, dir);
+			return new Ray(eye, new Vec(dir[0], dir[1], dir[2]), false);
+		}
+		
 		Point3D centerPixel2D; 	// Coordinates of central pixel of view plane in the view plane (2D)
 		Point3D centerPixel3D;  // Coordinates of central pixel of view plane in the scene (3D)
 		Point3D desiredPixel3D; // Coordinates of desired pixel in the scene (3D)
@@ -132,6 +152,132 @@ public class Camera implements IInitable{
 		
 	}
 	
+	/**
+	 * Precomputes everything about primary rays that doesn't change within a
+	 * frame of the given size: the view plane's center and pixel vectors, and
+	 * the offset of every column and row from the center. After this, rays for
+	 * a frame of this size are built with a few additions per ray.
+	 * 
+	 * The operations are the same as those of the general case, in the same
+	 * order, so the rays are exactly the same.
+	 * 
+	 * @param width - the width of the image
+	 * @param height - the height of the image
+	 */
+	public void prepare(int width, int height) {
+		
+		double pixelRatio = screenWidth / width;
+		centerX = Math.floor(width/2.0);
+		centerY = Math.floor(height/2.0);
+		
+		Point3D center3D = Point3D.addVectorToPoint(eye, Vec.scale(screenDist, towards));
+		center = new double[] { center3D.x, center3D.y, center3D.z };
+		Vec up1 = Vec.scale(pixelRatio, up);
+		Vec right1 = Vec.scale(pixelRatio, right);
+		pixelUp = new double[] { up1.x, up1.y, up1.z };
+		pixelRight = new double[] { right1.x, right1.y, right1.z };
+		
+		// Per-pixel deltas: how much to travel right from the center for each column
+		columnX = new double[width];
+		columnY = new double[width];
+		columnZ = new double[width];
+		for (int x = 0; x < width; x++) {
+			columnX[x] = (x - centerX) * pixelRight[0];
+			columnY[x] = (x - centerX) * pixelRight[1];
+			columnZ[x] = (x - centerX) * pixelRight[2];
+		}
+		
+		// Per-row deltas: how much to travel up for each row (upside-down)
+		rowX = new double[height];
+		rowY = new double[height];
+		rowZ = new double[height];
+		for (int y = 0; y < height; y++) {
+			rowX[y] = -((y - centerY) * pixelUp[0]);
+			rowY[y] = -((y - centerY) * pixelUp[1]);
+			rowZ[y] = -((y - centerY) * pixelUp[2]);
+		}
+		
+		frameWidth = width;
+		frameHeight = height;
+		
+	}
+	
+	/**
+	 * Fills the directions of the primary rays through a span of pixels of a
+	 * row. Must be called after prepare() with the frame size. Allocates
+	 * nothing.
+	 * 
+	 * @param y - the row
+	 * @param from - the first column
+	 * @param to - one past the last column
+	 * @param dirX - receives the X components of the normalized directions
+	 * @param dirY - receives the Y components
+	 * @param dirZ - receives the Z components
+	 * @param offset - index in the arrays of the first ray
+	 */
+	public void rowDirections(int y, int from, int to, double[] dirX, double[] dirY, double[] dirZ, int offset) {
+		
+		double upX = rowX[y];
+		double upY = rowY[y];
+		double upZ = rowZ[y];
+		
+		for (int x = from, i = offset; x < to; x++, i++) {
+			
+			// Vector from the eye to the pixel on the view plane
+			double vx = ((center[0] + columnX[x]) + upX) - eye.x;
+			double vy = ((center[1] + columnY[x]) + upY) - eye.y;
+			double vz = ((center[2] + columnZ[x]) + upZ) - eye.z;
+			
+			double l = Math.sqrt(vx*vx + vy*vy + vz*vz);
+			dirX[i] = vx / l;
+			dirY[i] = vy / l;
+			dirZ[i] = vz / l;
+		}
+		
+	}
+	
+	/**
+	 * Fills the directions of the primary rays through a tile of pixels, row
+	 * after row. Must be called after prepare() with the frame size. Allocates
+	 * nothing.
+	 * 
+	 * @param fromX - the first column
+	 * @param toX - one past the last column
+	 * @param fromY - the first row
+	 * @param toY - one past the last row
+	 * @param dirX - receives the X components of the normalized directions
+	 * @param dirY - receives the Y components
+	 * @param dirZ - receives the Z components
+	 */
+	public void tileDirections(int fromX, int toX, int fromY, int toY, double[] dirX, double[] dirY, double[] dirZ) {
+		int width = toX - fromX;
+		for (int y = fromY; y < toY; y++) {
+			rowDirections(y, fromX, toX, dirX, dirY, dirZ, (y - fromY) * width);
+		}
+	}
+	
+	/**
+	 * Computes the normalized direction of the primary ray through any point
+	 * of the image (e.g. inside a pixel, for super sampling). Must be called
+	 * after prepare() with the frame size. Allocates nothing.
+	 * 
+	 * @param x - the X coordinate in the view plane matrix
+	 * @param y - the Y coordinate in the view plane matrix
+	 * @param dir - receives the X, Y and Z components of the direction
+	 */
+	public void direction(double x, double y, double[] dir) {
+		
+		double vx = ((center[0] + (x - centerX) * pixelRight[0]) + -((y - centerY) * pixelUp[0])) - eye.x;
+		double vy = ((center[1] + (x - centerX) * pixelRight[1]) + -((y - centerY) * pixelUp[1])) - eye.y;
+		double vz = ((center[2] + (x - centerX) * pixelRight[2]) + -((y - centerY) * pixelUp[2])) - eye.z;
+		
+		double l = Math.sqrt(vx*vx + vy*vy + vz*vz);
+		dir[0] = vx / l;
+		dir[1] = vy / l;
+		dir[2] = vz / l;
+		
+	}
+	
 	/**
 	 * Getter for eye.
 	 * 
@@ -0,0 +1,310 @@
+package ex3.render.raytrace;
+
+import java.util.List;
+
+import shapes.Disc;
+import shapes.Intersection;
+import shapes.Poly;
+import shapes.Sphere;
+import shapes.Surface;
+import math.Point3D;
+import math.Simd;
+import math.Vec;
+
+/**
+ * Intersects packets of rays with the objects of a scene.
+ *
+ * The objects are tested in the same order as Scene.findIntersection() does,
+ * but every object is tested against all the rays of the packet at once: its
+ * constants are loaded once, and the inner loop runs over the arrays of the
+ * packet without allocating. The arithmetic of every kernel is that of the
+ * matching method of Intersection, operation for operation, so every ray gets
+ * exactly the closest hit it would get on its own.
+ *
+ * These are the scalar kernels. VectorPacketTracer (in the simd source folder)
+ * overrides them with kernels that test 4 or 8 rays at a time with the Vector
+ * API; create() picks it when it can be used (see Simd).
+ *
+ */
+public class PacketTracer {
+
+	// Kinds of objects
+	private static final int SPHERE = 0;
+	private static final int DISC = 1;
+	private static final int POLY = 2;
+
+	private Surface[] objects; 		// All of the surfaces, in scene order
+	private int[] kinds; 			// Kind of every surface
+	private double[][] constants; 	// Constants of every surface, by kind (see the constructor)
+
+	/**
+	 * Creates a packet tracer, with the vector kernels if they can be used,
+	 * or the scalar ones otherwise.
+	 *
+	 * @param surfaces - the surfaces of the scene
+	 * @return the packet tracer
+	 */
+	public static PacketTracer create(List<Surface> surfaces) {
+		PacketTracer tracer = (PacketTracer)Simd.create("ex3.render.raytrace.VectorPacketTracer", surfaces);
+		return tracer != null ? tracer : new PacketTracer(surfaces);
+	}
+
+	/**
+	 * Constructor, with the scalar kernels.
+	 *
+	 * @param surfaces - the surfaces of the scene
+	 */
+	public PacketTracer(List<Surface> surfaces) {
+
+		objects = surfaces.toArray(new Surface[surfaces.size()]);
+		kinds = new int[objects.length];
+		constants = new double[objects.length][];
+
+		for (int k = 0; k < objects.length; k++) {
+
+			Surface obj = objects[k];
+
+			// Disc extends Sphere, so check it first (like findIntersection)
+			if (obj instanceof Disc) {
+
+				// Center, normal and radius
+				Disc disc = (Disc)obj;
+				Point3D c = disc.getCenter();
+				Vec n = disc.getNormalAtPoint(null);
+				kinds[k] = DISC;
+				constants[k] = new double[] { c.x, c.y, c.z, n.x, n.y, n.z, disc.getRadius() };
+
+			} else if (obj instanceof Sphere) {
+
+				// Center and squared radius
+				Sphere sphere = (Sphere)obj;
+				Point3D c = sphere.getCenter();
+				kinds[k] = SPHERE;
+				constants[k] = new double[] { c.x, c.y, c.z, Math.pow(sphere.getRadius(), 2) };
+
+			} else {
+
+				// Normal, then all the points
+				Poly poly = (Poly)obj;
+				Vec n = poly.getNormalAtPoint(null);
+				double[] data = new double[3 + 3 * poly.getSize()];
+				data[0] = n.x;
+				data[1] = n.y;
+				data[2] = n.z;
+				for (int i = 0; i < poly.getSize(); i++) {
+					Point3D p = poly.getPoint(i);
+					data[3 + 3*i] = p.x;
+					data[4 + 3*i] = p.y;
+					data[5 + 3*i] = p.z;
+				}
+				kinds[k] = POLY;
+				constants[k] = data;
+
+			}
+		}
+
+	}
+
+	/**
+	 * Finds the closest hit of every ray of the packet, and stores it in the
+	 * packet.
+	 *
+	 * @param packet - the rays
+	 * @return the number of ray-object tests it took
+	 */
+	public long intersect(RayPacket packet) {
+
+		// Nothing hit yet
+		for (int i = 0; i < packet.size; i++) {
+			packet.object[i] = null;
+			packet.distance[i] = Double.POSITIVE_INFINITY;
+		}
+
+		// Test one object against all the rays at a time
+		long tests = 0;
+		for (int k = 0; k < objects.length; k++) {
+			switch (kinds[k]) {
+			case SPHERE:
+				tests += intersectSphere(packet, 0, packet.size, objects[k], constants[k]);
+				break;
+			case DISC:
+				tests += intersectDisc(packet, 0, packet.size, objects[k], constants[k]);
+				break;
+			default:
+				tests += intersectPoly(packet, 0, packet.size, objects[k], constants[k]);
+				break;
+			}
+		}
+		return tests;
+
+	}
+
+	/**
+	 * Packet version of Intersection.raySphereIntersection(), for the rays
+	 * from (inclusive) to (exclusive).
+	 *
+	 * @return the number of rays tested
+	 */
+	int intersectSphere(RayPacket packet, int from, int to, Surface obj, double[] sphere) {
+
+		double cx = sphere[0], cy = sphere[1], cz = sphere[2], r2 = sphere[3];
+
+		for (int i = from; i < to; i++) {
+
+			double ox = packet.ox[i], oy = packet.oy[i], oz = packet.oz[i];
+			double vx = packet.dx[i], vy = packet.dy[i], vz = packet.dz[i];
+
+			double wx = ox - cx;
+			double wy = oy - cy;
+			double wz = oz - cz;
+			double b = 2 * (vx*wx + vy*wy + vz*wz);
+			double c = (wx*wx + wy*wy + wz*wz) - r2;
+			double discriminant = (b * b - 4.0 * c);
+
+			// No solution exists
+			if (discriminant < 0.0) {
+				continue;
+			}
+			double d = Math.sqrt(discriminant);
+
+			double t1 = +(-b + d) / 2.0;
+			double t2 = +(-b - d) / 2.0;
+			double t;
+			if (t1 <= 0 && t2 <= 0) {
+				continue;
+			} else if (t1 > 0 && t2 <= 0) {
+				t = t1;
+			} else if (t2 > 0 && t1 <= 0) {
+				t = t2;
+			} else {
+				t = Math.min(t1, t2);
+			}
+
+			hit(packet, i, obj, ox + vx*t, oy + vy*t, oz + vz*t);
+		}
+		return to - from;
+
+	}
+
+	/**
+	 * Packet version of Intersection.rayDiscIntersection(), for the rays from
+	 * (inclusive) to (exclusive).
+	 *
+	 * @return the number of rays tested
+	 */
+	int intersectDisc(RayPacket packet, int from, int to, Surface obj, double[] disc) {
+
+		double cx = disc[0], cy = disc[1], cz = disc[2];
+		double nx = disc[3], ny = disc[4], nz = disc[5];
+		double radius = disc[6];
+
+		for (int i = from; i < to; i++) {
+
+			double ox = packet.ox[i], oy = packet.oy[i], oz = packet.oz[i];
+			double vx = packet.dx[i], vy = packet.dy[i], vz = packet.dz[i];
+
+			// The disc's plane, back-faces ignored
+			double rayDotNormal = vx*nx + vy*ny + vz*nz;
+			if (rayDotNormal >= 0) {
+				continue;
+			}
+			double d = ((cx - ox)*nx + (cy - oy)*ny + (cz - oz)*nz) / rayDotNormal;
+			double hx = ox + vx*d;
+			double hy = oy + vy*d;
+			double hz = oz + vz*d;
+
+			// Inside the disc
+			double dist = Math.sqrt(Math.pow(hx - cx, 2) + Math.pow(hy - cy, 2) + Math.pow(hz - cz, 2));
+			if (dist <= radius) {
+				hit(packet, i, obj, hx, hy, hz);
+			}
+		}
+		return to - from;
+
+	}
+
+	/**
+	 * Packet version of Intersection.rayPolyIntersection(), for the rays from
+	 * (inclusive) to (exclusive).
+	 *
+	 * @return the number of rays tested
+	 */
+	int intersectPoly(RayPacket packet, int from, int to, Surface obj, double[] poly) {
+
+		double nx = poly[0], ny = poly[1], nz = poly[2];
+		double qx = poly[3], qy = poly[4], qz = poly[5];
+		int size = (poly.length - 3) / 3;
+
+		lanes:
+		for (int i = from; i < to; i++) {
+
+			double ox = packet.ox[i], oy = packet.oy[i], oz = packet.oz[i];
+			double vx = packet.dx[i], vy = packet.dy[i], vz = packet.dz[i];
+
+			// The poly's plane, back-faces ignored
+			double rayDotNormal = vx*nx + vy*ny + vz*nz;
+			if (rayDotNormal >= 0) {
+				continue;
+			}
+			double d = ((qx - ox)*nx + (qy - oy)*ny + (qz - oz)*nz) / rayDotNormal;
+			double hx = ox + vx*d;
+			double hy = oy + vy*d;
+			double hz = oz + vz*d;
+
+			// Inside every side of the pyramid from the origin to the poly
+			double fx = hx - ox, fy = hy - oy, fz = hz - oz;
+			for (int j = 0; j < size; j++) {
+				int a = 3 + 3*j;
+				int b = 3 + 3*((j+1) % size);
+				double v1x = poly[a] - ox, v1y = poly[a+1] - oy, v1z = poly[a+2] - oz;
+				double v2x = poly[b] - ox, v2y = poly[b+1] - oy, v2z = poly[b+2] - oz;
+				double sx = v2y*v1z - v2z*v1y;
+				double sy = v2z*v1x - v2x*v1z;
+				double sz = v2x*v1y - v2y*v1x;
+				if (fx*sx + fy*sy + fz*sz < 0) {
+					continue lanes;
+				}
+			}
+
+			hit(packet, i, obj, hx, hy, hz);
+		}
+		return to - from;
+
+	}
+
+	/**
+	 * Keeps a hit if it's the closest one of the ray so far.
+	 */
+	static void hit(RayPacket packet, int i, Surface obj, double hx, double hy, double hz) {
+
+		double dist = Math.sqrt(Math.pow(packet.ox[i] - hx, 2) + Math.pow(packet.oy[i] - hy, 2) + Math.pow(packet.oz[i] - hz, 2));
+
+		if ((dist < packet.distance[i]) && (dist > Intersection.TOLERANCE)) {
+			packet.distance[i] = dist;
+			packet.object[i] = obj;
+			packet.px[i] = hx;
+			packet.py[i] = hy;
+			packet.pz[i] = hz;
+		}
+
+	}
+
+	/**
+	 * Number of surfaces.
+	 *
+	 * @return the number of surfaces
+	 */
+	public int size() {
+		return objects.length;
+	}
+
+	/**
+	 * Number of rays the kernels test at a time.
+	 *
+	 * @return 1 for the scalar kernels, or the number of lanes of the vector ones
+	 */
+	public int lanes() {
+		return 1;
+	}
+
+}
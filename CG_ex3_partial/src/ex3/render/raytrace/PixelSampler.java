@@ -0,0 +1,156 @@
+package ex3.render.raytrace;
+
+import java.util.Locale;
+
+/**
+ * Places the super sampling rays of a pixel: super-samp-width^2 points in the
+ * pixel, as offsets from its center (the point non super sampled rays go
+ * through), from -0.5 to 0.5 on each axis.
+ *
+ * The patterns, chosen with -Dex3.sampler:
+ *
+ * jittered (the default) - one random point in each cell of a
+ * super-samp-width x super-samp-width grid, so the samples cover the pixel
+ * evenly without lining up with the edges of the scene
+ * halton - the points of the Halton sequence (bases 2 and 3), shifted by a
+ * random amount per pixel, which cover the pixel even more evenly, so fewer
+ * samples smooth the edges as well
+ * grid - the centers of the cells of the grid, the same in every pixel
+ *
+ * The random numbers come from a hash of the pixel, the sample and the axis,
+ * not from a generator with a state, so every pixel gets the same samples
+ * whichever thread renders it, in whatever order.
+ *
+ * Samples past the first super-samp-width^2 (e.g. of renders that add to the
+ * samples of previous ones) go on with the pattern: another jittered grid,
+ * or the next points of the sequence.
+ */
+public class PixelSampler {
+
+	/**
+	 * Sample patterns.
+	 */
+	public enum Pattern {
+		JITTERED, 	// One random point per cell of a grid
+		HALTON, 	// The Halton sequence, shifted per pixel
+		GRID 		// The center of every cell of a grid
+	}
+
+	// The pattern to sample with, set with -Dex3.sampler
+	public static final Pattern PATTERN = pattern(System.getProperty("ex3.sampler", "jittered"));
+
+	private Pattern pattern; 	// The pattern
+	private int width; 			// Samples per pixel across, i.e. super-samp-width
+
+	/**
+	 * The pattern of a setting of -Dex3.sampler. A typo shouldn't keep the
+	 * renderer from loading, so unknown patterns are warned about and the
+	 * default is used.
+	 *
+	 * @param setting - the name of the pattern, in any case
+	 * @return the pattern
+	 */
+	private static Pattern pattern(String setting) {
+		for (Pattern pattern : Pattern.values()) {
+			if (pattern.name().equals(setting.toUpperCase(Locale.ROOT))) {
+				return pattern;
+			}
+		}
+		System.err.println("Unknown -Dex3.sampler=" + setting + " (expected jittered, halton or grid), using jittered");
+		return Pattern.JITTERED;
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param pattern - the pattern to sample with
+	 * @param width - samples per pixel across (super-samp-width)
+	 */
+	public PixelSampler(Pattern pattern, int width) {
+		this.pattern = pattern;
+		this.width = width;
+	}
+
+	/**
+	 * Getter for the number of samples per pixel.
+	 *
+	 * @return super-samp-width^2
+	 */
+	public int samples() {
+		return width * width;
+	}
+
+	/**
+	 * Places a sample of a pixel. Allocates nothing.
+	 *
+	 * @param x - the x coordinate of the pixel
+	 * @param y - the y coordinate of the pixel
+	 * @param sample - the number of the sample, from 0
+	 * @param offset - receives the x and y offsets of the sample from the
+	 * center of the pixel, from -0.5 (inclusive) to 0.5
+	 */
+	public void sample(int x, int y, int sample, double[] offset) {
+
+		switch (pattern) {
+
+		case HALTON:
+
+			// Shifting the points (and wrapping around) keeps them as even
+			offset[0] = wrap(radicalInverse(sample, 2) + random(x, y, -1, 0)) - 0.5;
+			offset[1] = wrap(radicalInverse(sample, 3) + random(x, y, -1, 1)) - 0.5;
+			break;
+
+		case GRID:
+
+			offset[0] = (sample % width + 0.5) / width - 0.5;
+			offset[1] = (sample / width % width + 0.5) / width - 0.5;
+			break;
+
+		default:
+
+			// The cell of the sample, and a point in it
+			offset[0] = (sample % width + random(x, y, sample, 0)) / width - 0.5;
+			offset[1] = (sample / width % width + random(x, y, sample, 1)) / width - 0.5;
+			break;
+
+		}
+
+	}
+
+	/**
+	 * The radical inverse of a number: its digits in the given base, mirrored
+	 * around the point (e.g. 6 = 110 in base 2 gives 0.011 = 0.375).
+	 *
+	 * @param i - the number
+	 * @param base - the base
+	 * @return the radical inverse, from 0 (inclusive) to 1
+	 */
+	static double radicalInverse(int i, int base) {
+		double inverse = 0;
+		double digit = 1.0 / base;
+		for (int n = i; n > 0; n /= base) {
+			inverse += (n % base) * digit;
+			digit /= base;
+		}
+		return inverse;
+	}
+
+	private static double wrap(double u) {
+		return u >= 1 ? u - 1 : u;
+	}
+
+	/**
+	 * A random number for a pixel, a sample and an axis: the same arguments
+	 * always give the same number (SplitMix64's finalizer over their mix).
+	 *
+	 * @return a number from 0 (inclusive) to 1
+	 */
+	static double random(int x, int y, int sample, int axis) {
+		long h = x * 0x9E3779B97F4A7C15L + y * 0xC2B2AE3D27D4EB4FL + sample * 0x165667B19E3779F9L + axis * 0xD6E8FEB86659FD93L;
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		h = h ^ (h >>> 31);
+		return (h >>> 11) * 0x1.0p-53;
+	}
+
+}
@@ -0,0 +1,162 @@
+package ex3.render.raytrace;
+
+import shapes.Intersection;
+import shapes.Surface;
+import math.Point3D;
+import math.Ray;
+import math.Vec;
+
+/**
+ * A packet of rays traced together, stored as structure of arrays: one array
+ * per component of the origins and directions, so that an intersection kernel
+ * can test all the rays against one object in a single tight loop.
+ *
+ * Every ray also remembers the pixel it contributes to (for background
+ * textures), and after PacketTracer.intersect() the closest object it hits.
+ *
+ */
+public class RayPacket {
+
+	// Rays
+	int size; 								// Number of rays in the packet
+	double[] ox, oy, oz; 					// Origins
+	double[] dx, dy, dz; 					// Normalized directions
+	int[] x, y; 							// Pixels the rays contribute to
+
+	// Closest hits, filled by PacketTracer.intersect()
+	Surface[] object; 						// The object hit, or null
+	double[] px, py, pz; 					// The point of intersection
+	double[] distance; 						// The distance from the origin
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity - the maximum number of rays
+	 */
+	public RayPacket(int capacity) {
+
+		ox = new double[capacity];
+		oy = new double[capacity];
+		oz = new double[capacity];
+		dx = new double[capacity];
+		dy = new double[capacity];
+		dz = new double[capacity];
+		x = new int[capacity];
+		y = new int[capacity];
+
+		object = new Surface[capacity];
+		px = new double[capacity];
+		py = new double[capacity];
+		pz = new double[capacity];
+		distance = new double[capacity];
+
+	}
+
+	/**
+	 * Removes all the rays.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Adds a ray to the packet.
+	 *
+	 * @param p - the origin
+	 * @param v - the direction, already normalized
+	 * @param x - the x coordinate of the pixel
+	 * @param y - the y coordinate of the pixel
+	 */
+	public void add(Point3D p, Vec v, int x, int y) {
+		add(p.x, p.y, p.z, v.x, v.y, v.z, x, y);
+	}
+
+	/**
+	 * Adds a ray to the packet.
+	 *
+	 * @param ray - the ray
+	 * @param x - the x coordinate of the pixel
+	 * @param y - the y coordinate of the pixel
+	 */
+	public void add(Ray ray, int x, int y) {
+		add(ray.p, ray.v, x, y);
+	}
+
+	/**
+	 * Adds a ray to the packet.
+	 *
+	 * @param ox - the X coordinate of the origin
+	 * @param oy - the Y coordinate of the origin
+	 * @param oz - the Z coordinate of the origin
+	 * @param dx - the X component of the direction, already normalized
+	 * @param dy - the Y component of the direction
+	 * @param dz - the Z component of the direction
+	 * @param x - the x coordinate of the pixel
+	 * @param y - the y coordinate of the pixel
+	 */
+	public void add(double ox, double oy, double oz, double dx, double dy, double dz, int x, int y) {
+		int i = size++;
+		this.ox[i] = ox;
+		this.oy[i] = oy;
+		this.oz[i] = oz;
+		this.dx[i] = dx;
+		this.dy[i] = dy;
+		this.dz[i] = dz;
+		this.x[i] = x;
+		this.y[i] = y;
+	}
+
+	/**
+	 * Getter for size.
+	 *
+	 * @return the number of rays in the packet
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Getter for capacity.
+	 *
+	 * @return the maximum number of rays
+	 */
+	public int capacity() {
+		return ox.length;
+	}
+
+	/**
+	 * Builds one of the rays as a single ray.
+	 *
+	 * @param i - the ray number
+	 * @return the ray
+	 */
+	public Ray getRay(int i) {
+		return new Ray(new Point3D(ox[i], oy[i], oz[i]), new Vec(dx[i], dy[i], dz[i]), false);
+	}
+
+	/**
+	 * Getter for the closest object one of the rays hits. Only valid after
+	 * PacketTracer.intersect().
+	 *
+	 * @param i - the ray number
+	 * @return the object, or null if the ray hits nothing
+	 */
+	public Surface getObject(int i) {
+		return object[i];
+	}
+
+	/**
+	 * Builds the closest hit of one of the rays, as Scene.findIntersection()
+	 * would have returned it. Only valid after PacketTracer.intersect().
+	 *
+	 * @param i - the ray number
+	 * @return intersecting point and object, or null if the ray hits nothing
+	 */
+	public Intersection getIntersection(int i) {
+		if (object[i] == null) {
+			return null;
+		}
+		return new Intersection(object[i], new Point3D(px[i], py[i], pz[i]), distance[i]);
+	}
+
+}
@@ -0,0 +1,246 @@
+package ex3.render.raytrace;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ex3.render.RenderStats;
+
+/**
+ * Records every ray a scene intersects (primary, shadow and reflected, in all
+ * the render paths) to a binary file, with the closest hit it found, so that
+ * intersection code can be benchmarked and checked offline against the exact
+ * rays of a real render (see RayReplay in the benchmarks).
+ *
+ * Capture is on when the JVM runs with -Dex3.capture=<file>. Capture one scene
+ * per run: the hits are recorded as indices into the scene's surfaces.
+ *
+ * The file starts with MAGIC, followed by records of RECORD_BYTES each, big
+ * endian:
+ *
+ * byte kind (RenderStats.Kind ordinal), byte depth (recursion level), double
+ * origin x, y, z, double direction x, y, z, int index of the surface hit (-1
+ * for none), double distance to the hit (NaN for none)
+ *
+ * Every thread fills a buffer of its own, which is written to the file
+ * channel in one go when full, so threads only meet when writing. The buffers
+ * are flushed and the file closed when the JVM shuts down.
+ */
+public class RayRecorder {
+
+	public static final String FILE = System.getProperty("ex3.capture");
+
+	public static final byte[] MAGIC = { 'E', 'X', '3', 'R', 'A', 'Y', 'S', '1' };
+	public static final int RECORD_BYTES = 2 + 6 * 8 + 4 + 8;
+
+	// Bytes of every thread's buffer
+	private static final int BUFFER_BYTES = RECORD_BYTES * 1024;
+
+	private static RayRecorder instance;
+
+	private FileChannel channel;
+	private final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+	private final ThreadLocal<ByteBuffer> buffer = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			ByteBuffer b = ByteBuffer.allocateDirect(BUFFER_BYTES);
+			synchronized (buffers) {
+				buffers.add(b);
+			}
+			return b;
+		}
+	};
+
+	/**
+	 * Returns the recorder of this JVM, opening the capture file the first
+	 * time.
+	 *
+	 * @return The recorder, or null if capture is off (or the file can't be
+	 *         written)
+	 */
+	public static synchronized RayRecorder get() {
+		if (instance == null && FILE != null) {
+			try {
+				instance = new RayRecorder(new File(FILE));
+			} catch (IOException e) {
+				System.err.println("Could not capture rays to " + FILE + ": " + e);
+				return null;
+			}
+			final RayRecorder recorder = instance;
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					try {
+						recorder.close();
+					} catch (IOException e) {
+						System.err.println("Could not capture rays to " + FILE + ": " + e);
+					}
+				}
+			});
+		}
+		return instance;
+	}
+
+	private RayRecorder(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		channel.write(ByteBuffer.wrap(MAGIC));
+	}
+
+	/**
+	 * Records a ray and its closest hit.
+	 *
+	 * @param kind - the kind of the ray
+	 * @param depth - the recursion level of the ray
+	 * @param ox - origin x
+	 * @param oy - origin y
+	 * @param oz - origin z
+	 * @param dx - direction x
+	 * @param dy - direction y
+	 * @param dz - direction z
+	 * @param object - index of the surface hit, or -1
+	 * @param distance - distance to the hit (ignored if nothing was hit)
+	 */
+	public void record(RenderStats.Kind kind, int depth, double ox, double oy, double oz,
+			double dx, double dy, double dz, int object, double distance) {
+
+		ByteBuffer b = buffer.get();
+		if (b.remaining() < RECORD_BYTES) {
+			flush(b);
+		}
+		b.put((byte)kind.ordinal());
+		b.put((byte)Math.min(depth, Byte.MAX_VALUE));
+		b.putDouble(ox).putDouble(oy).putDouble(oz);
+		b.putDouble(dx).putDouble(dy).putDouble(dz);
+		b.putInt(object);
+		b.putDouble(object == -1 ? Double.NaN : distance);
+
+	}
+
+	/**
+	 * Writes a buffer to the file, and empties it.
+	 */
+	private void flush(ByteBuffer b) {
+		b.flip();
+		try {
+			synchronized (this) {
+				while (b.hasRemaining()) {
+					channel.write(b);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Could not capture rays to " + FILE + ": " + e);
+		}
+		b.clear();
+	}
+
+	/**
+	 * Writes what's left in all the buffers, and closes the file.
+	 *
+	 * @throws IOException if the file can't be written
+	 */
+	public void close() throws IOException {
+		synchronized (buffers) {
+			for (ByteBuffer b : buffers) {
+				flush(b);
+			}
+		}
+		channel.close();
+	}
+
+	/**
+	 * Reads a capture file, one record at a time.
+	 */
+	public static class Reader {
+
+		private FileChannel channel;
+		private ByteBuffer b = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+		// The last record read
+		public RenderStats.Kind kind;
+		public int depth;
+		public double ox, oy, oz;
+		public double dx, dy, dz;
+		public int object;
+		public double distance;
+
+		/**
+		 * Opens a capture file.
+		 *
+		 * @param file - the capture file
+		 * @throws IOException if it can't be read, or isn't a capture file
+		 */
+		public Reader(File file) throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			b.limit(0);
+			byte[] magic = new byte[MAGIC.length];
+			if (!fill(magic.length)) {
+				throw new EOFException("Not a ray capture: " + file);
+			}
+			b.get(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				channel.close();
+				throw new IOException("Not a ray capture: " + file);
+			}
+		}
+
+		/**
+		 * Makes sure the buffer holds at least n bytes.
+		 *
+		 * @return false at the end of the file
+		 */
+		private boolean fill(int n) throws IOException {
+			if (b.remaining() >= n) {
+				return true;
+			}
+			b.compact();
+			while (b.position() < n) {
+				if (channel.read(b) < 0) {
+					b.flip();
+					return false;
+				}
+			}
+			b.flip();
+			return true;
+		}
+
+		/**
+		 * Reads the next record into the fields.
+		 *
+		 * @return false at the end of the file
+		 * @throws IOException if the file can't be read
+		 */
+		public boolean next() throws IOException {
+			if (!fill(RECORD_BYTES)) {
+				return false;
+			}
+			kind = RenderStats.Kind.values()[b.get()];
+			depth = b.get();
+			ox = b.getDouble();
+			oy = b.getDouble();
+			oz = b.getDouble();
+			dx = b.getDouble();
+			dy = b.getDouble();
+			dz = b.getDouble();
+			object = b.getInt();
+			distance = b.getDouble();
+			return true;
+		}
+
+		/**
+		 * Closes the file.
+		 *
+		 * @throws IOException if it can't be closed
+		 */
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+}
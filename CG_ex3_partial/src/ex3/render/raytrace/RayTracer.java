@@ -3,16 +3,32 @@ package ex3.render.raytrace;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.io.File;
+import java.util.Locale;
 
+import math.Point3D;
 import math.Ray;
 import math.Vec;
+import ex3.image.CostMap;
+import ex3.image.HdrFrameBuffer;
+import ex3.image.SampleBuffer;
 import ex3.parser.Element;
 import ex3.parser.SceneDescriptor;
 import ex3.render.IRenderer;
+import ex3.render.RenderEvents;
+import ex3.render.RenderStats;
 
 public class RayTracer implements IRenderer {
 
+	// Number of neighboring primary rays traced together, e.g. 4 or 8 (set
+	// with -Dex3.packetSize, 1 or less traces every ray on its own)
+	private static final int PACKET_SIZE = Integer.getInteger("ex3.packetSize", 8);
+	
+	// What to keep the cost of every pixel in, set with -Dex3.heatmap=rays,
+	// tests or nanos (null keeps no cost map)
+	private static final CostMap.Metric HEATMAP = heatmap(System.getProperty("ex3.heatmap"));
+
 	private Scene scene;
+	private PixelSampler sampler; 	// Where super sampling rays go (null if super sampling is off)
 	private int canvasWidth;
 	private int canvasHeight;
 	
@@ -23,6 +39,27 @@ public class RayTracer implements IRenderer {
 		
 	}
 	
+	/**
+	 * The metric of a setting of -Dex3.heatmap. The cost map is only a
+	 * diagnostic, so an unknown metric is warned about and no cost map is
+	 * kept, rather than failing the render.
+	 * 
+	 * @param setting - the name of the metric, in any case, or null
+	 * @return the metric, or null for no cost map
+	 */
+	private static CostMap.Metric heatmap(String setting) {
+		if (setting == null) {
+			return null;
+		}
+		for (CostMap.Metric metric : CostMap.Metric.values()) {
+			if (metric.name().equals(setting.toUpperCase(Locale.ROOT))) {
+				return metric;
+			}
+		}
+		System.err.println("Unknown -Dex3.heatmap=" + setting + " (expected rays, tests or nanos), keeping no cost map");
+		return null;
+	}
+	
 	/**
 	 * Inits the renderer with scene description and sets the target canvas to
 	 * size (width X height). After init renderLine may be called
@@ -52,6 +89,17 @@ public class RayTracer implements IRenderer {
 		// Set the camera
 		scene.setCameraAttributes(sceneDesc.getCameraAttributes());
 		
+		// Get ready for tracing
+		scene.prepare();
+		if (scene.superSampling() != -1) {
+			sampler = new PixelSampler(PixelSampler.PATTERN, scene.superSampling());
+		}
+		
+		// Keep the cost of every pixel, if asked to
+		if (HEATMAP != null) {
+			scene.setCostMap(new CostMap(HEATMAP, width, height));
+		}
+		
 		// Get the canvas height and width
 		this.canvasWidth = width;
 		this.canvasHeight = height;
@@ -70,54 +118,272 @@ public class RayTracer implements IRenderer {
 	@Override
 	public void renderLine(BufferedImage canvas, int line) {
 		
-		// Iterate over all pixels in the line
-		for (int i=0; i<canvasWidth; i++) {
+		// Render to a row of pixels, and copy it to the canvas in one go
+		int[] rgb = new int[canvasWidth];
+		renderLine(rgb, 0, line);
+		canvas.setRGB(0, line, canvasWidth, 1, rgb, 0, canvasWidth);
+		
+	}
+
+	/**
+	 * Renders the given line to an array of pixels. This method must be called
+	 * only after init.
+	 * 
+	 * @param rgb
+	 *            Receives the pixels of the line, in the default RGB color model
+	 * @param offset
+	 *            Index in rgb of the first pixel of the line
+	 * @param line
+	 *            The line of the image that should be rendered.
+	 */
+	@Override
+	public void renderLine(int[] rgb, int offset, int line) {
+		renderSpan(rgb, offset, line, 0, canvasWidth);
+	}
+
+	/**
+	 * Renders part of the given line to an array of pixels. Pixels are the
+	 * same as those of a whole line. This method must be called only after
+	 * init.
+	 * 
+	 * @param rgb
+	 *            Receives the pixels of the span, in the default RGB color model
+	 * @param offset
+	 *            Index in rgb of pixel from
+	 * @param line
+	 *            The line of the image that should be rendered.
+	 * @param from
+	 *            First pixel of the span
+	 * @param to
+	 *            One past the last pixel of the span
+	 */
+	@Override
+	public void renderSpan(int[] rgb, int offset, int line, int from, int to) {
+		
+		RenderEvents.Event event = RenderEvents.TILE_RENDER.begin();
+		
+		// Colors of the primary rays through the span, all at once
+		Vec[] colors = primaryColors(line, from, to);
+		double[] subPixel = new double[2];
+		
+		// Iterate over the pixels of the span
+		for (int i=from; i<to; i++) {
 
 			Vec color;
 			if (scene.superSampling() == -1) {
 				
-				// Super sampling is off, shoot just one ray through the center of the pixel
-				Ray ray = scene.castRay(i, line, canvasWidth, canvasHeight);
-				color = scene.calcColor(ray, 0, i, line);
+				// Super sampling is off, just one ray through the center of the pixel
+				color = colors[i - from];
 				
 			} else {
 				
 				// Super sampling is on, shoot superSampling^2 rays through each pixel
+				long start = startTiming();
 				
 				// Start from black
 				color = new Vec();
 				
 				// Shoot superSampling^2 rays
-				for (int j=0; j<scene.superSampling(); j++) {
-					for (int k=0; k<scene.superSampling(); k++) {
-						
-						// Calculate coordinates inside the sub-pixel
-						int ssx = i + (j / scene.superSampling());
-						int ssy = line + (k / scene.superSampling());
-						
-						// Shoot the ray and calculate the color at that point
-						Ray ray = scene.castRay(ssx, ssy, canvasWidth, canvasHeight);
-						Vec ssColor = scene.calcColor(ray, 0, i, line);
-						
-						// Sum up the color
-						color.add(ssColor);
-					}
+				for (int s=0; s<sampler.samples(); s++) {
+					
+					// Place the sample inside the pixel
+					sampler.sample(i, line, s, subPixel);
+					
+					// Shoot the ray and calculate the color at that point
+					Ray ray = scene.castRay(i + subPixel[0], line + subPixel[1], canvasWidth, canvasHeight);
+					Vec ssColor = scene.calcColor(ray, 0, i, line);
+					
+					// Sum up the color
+					color.add(ssColor);
 				}
 				
 				// Average out the colors of all the sub-pixels
-				double weakning = 1 / Math.pow(scene.superSampling(), 2);
+				double weakning = 1.0 / sampler.samples();
 				color.scale(weakning);
+				stopTiming(start, line, i, i + 1);
 				
 			}
 			
 			// Calculate the actual color [0, 1] --> [0, 255]
-			Color realColor = new Color((int)(color.x*255), (int)(color.y*255), (int)(color.z*255));
+			Color realColor = new Color(HdrFrameBuffer.toByte(color.x), HdrFrameBuffer.toByte(color.y), HdrFrameBuffer.toByte(color.z));
 			
 			// Paint the pixel
-			canvas.setRGB(i, line, realColor.getRGB());	
+			rgb[offset + i - from] = realColor.getRGB();
+	
+		}
+		
+		if (event.isEnabled()) {
+			event.commit(line, from, to, event.getRays(), event.isSlow());
+		}
+		
+	}
+	
+	/**
+	 * Renders the given line and adds its samples to a frame buffer. With super
+	 * sampling on, every sub-pixel ray is a sample of its own, and the samples
+	 * go on from those already in the frame buffer, so that every render adds
+	 * new ones. This method must be called only after init.
+	 * 
+	 * @param frameBuffer
+	 *            Frame buffer of the size given to init
+	 * @param line
+	 *            The line of the image that should be rendered.
+	 */
+	@Override
+	public void renderLine(SampleBuffer frameBuffer, int line) {
+		
+		RenderEvents.Event event = RenderEvents.TILE_RENDER.begin();
+		
+		// Colors of the primary rays through the line, all at once
+		Vec[] colors = primaryColors(line, 0, canvasWidth);
+		double[] subPixel = new double[2];
+		
+		// Iterate over all pixels in the line
+		for (int i=0; i<canvasWidth; i++) {
+
+			if (scene.superSampling() == -1) {
+				
+				// Super sampling is off, just one ray through the center of the pixel
+				Vec color = colors[i];
+				frameBuffer.addSample(i, line, color.x, color.y, color.z);
+				
+			} else {
+				
+				// Super sampling is on, shoot superSampling^2 rays through each pixel
+				long start = startTiming();
+				int first = frameBuffer.getSampleCount(i, line);
+				for (int s=first; s<first + sampler.samples(); s++) {
+					
+					// Place the sample inside the pixel
+					sampler.sample(i, line, s, subPixel);
+					
+					// Shoot the ray and add its color as a sample
+					Ray ray = scene.castRay(i + subPixel[0], line + subPixel[1], canvasWidth, canvasHeight);
+					Vec ssColor = scene.calcColor(ray, 0, i, line);
+					frameBuffer.addSample(i, line, ssColor.x, ssColor.y, ssColor.z);
+				}
+				stopTiming(start, line, i, i + 1);
+				
+			}
+	
+		}
+		
+		if (event.isEnabled()) {
+			event.commit(line, 0, canvasWidth, event.getRays(), event.isSlow());
+		}
+		
+	}
 	
+	/**
+	 * Traces the primary rays through a span of a line, unless super sampling
+	 * is on (then every pixel shoots rays of its own). Neighboring rays are
+	 * traced together in packets of PACKET_SIZE, or one by one if packets are
+	 * off.
+	 * 
+	 * @return Colors of the pixels of the span, or null
+	 */
+	protected Vec[] primaryColors(int line, int from, int to) {
+		
+		if (scene.superSampling() != -1) {
+			return null;
+		}
+		
+		// Directions of the rays, all at once
+		int n = to - from;
+		double[] dirX = new double[n];
+		double[] dirY = new double[n];
+		double[] dirZ = new double[n];
+		scene.getCamera().rowDirections(line, from, to, dirX, dirY, dirZ, 0);
+		Point3D eye = scene.getCamera().getEye();
+		
+		Vec[] colors = new Vec[n];
+		if (PACKET_SIZE < 2) {
+			
+			// Packets are off, trace the rays one by one
+			for (int i=0; i<n; i++) {
+				long start = startTiming();
+				Ray ray = new Ray(eye, new Vec(dirX[i], dirY[i], dirZ[i]), false);
+				colors[i] = scene.calcColor(ray, 0, from + i, line);
+				stopTiming(start, line, from + i, from + i + 1);
+			}
+			return colors;
+			
 		}
 		
+		RayPacket packet = new RayPacket(PACKET_SIZE);
+		Vec[] packetColors = new Vec[PACKET_SIZE];
+		for (int start=0; start<n; start+=PACKET_SIZE) {
+			int end = Math.min(n, start + PACKET_SIZE);
+			long time = startTiming();
+			packet.clear();
+			for (int i=start; i<end; i++) {
+				packet.add(eye.x, eye.y, eye.z, dirX[i], dirY[i], dirZ[i], from + i, line);
+			}
+			scene.calcColors(packet, 0, packetColors);
+			System.arraycopy(packetColors, 0, colors, start, end - start);
+			stopTiming(time, line, from + start, from + end);
+		}
+		return colors;
+		
+	}
+	
+	/**
+	 * Reads the clock if the cost map keeps time.
+	 * 
+	 * @return The time now, in nanoseconds, or 0 if the cost map doesn't keep
+	 *         time
+	 */
+	protected long startTiming() {
+		CostMap costMap = scene.getCostMap();
+		return costMap != null && costMap.isTimed() ? System.nanoTime() : 0;
+	}
+	
+	/**
+	 * Adds the time since startTiming to the cost of a span of pixels, if the
+	 * cost map keeps time. Pixels traced together share the time evenly.
+	 * 
+	 * @param start
+	 *            As returned by startTiming
+	 * @param line
+	 *            The line of the pixels
+	 * @param from
+	 *            First pixel of the span
+	 * @param to
+	 *            One past the last pixel of the span
+	 */
+	protected void stopTiming(long start, int line, int from, int to) {
+		if (start != 0) {
+			scene.getCostMap().addNanos(line, from, to, System.nanoTime() - start);
+		}
+	}
+	
+	/**
+	 * Returns the scene given to init.
+	 * 
+	 * @return The scene
+	 */
+	protected Scene getScene() {
+		return scene;
+	}
+	
+	/**
+	 * Returns the number of rays traced since init.
+	 * 
+	 * @return Number of rays
+	 */
+	@Override
+	public long getRayCount() {
+		return scene.getRayCount();
+	}
+	
+	/**
+	 * Returns the statistics of the renderer since init.
+	 * 
+	 * @return Statistics of the renderer
+	 */
+	@Override
+	public RenderStats getStats() {
+		return scene.getStats();
 	}
 
 }
@@ -3,16 +3,17 @@ package ex3.render.raytrace;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
-import javax.imageio.ImageIO;
-
 import shapes.Disc;
 import shapes.Intersection;
 import shapes.Poly;
 import shapes.Sphere;
+import shapes.SphereSet;
 import shapes.Surface;
 import lights.DirLight;
 import lights.Light;
@@ -21,6 +22,9 @@ import lights.SpotLight;
 import math.Point3D;
 import math.Ray;
 import math.Vec;
+import ex3.image.CostMap;
+import ex3.render.RenderEvents;
+import ex3.render.RenderStats;
 
 /**
  * A Scene class containing all the scene objects including camera, lights and surfaces.
@@ -44,6 +48,23 @@ public class Scene implements IInitable {
 	protected List<Surface> surfaces; 	// All of the surfaces in the scene
 	protected List<Light> lights; 	 	// All of the lights in the scene
 	protected Camera camera; 			// The camera of the scene
+	private Surface[] scanObjects; 		// The surfaces in the order findIntersection tests them...
+	private SphereSet[] scanSpheres; 	// ...with runs of spheres in sphere sets instead
+	private PacketTracer packetTracer; 	// The surfaces, ready for tracing packets of rays
+	
+	private RenderStats stats = new RenderStats(); 	// Rays traced so far, and more
+	private CostMap costMap; 			// Cost of every pixel (null if not kept)
+	private int shadowLights; 			// Lights that cast shadows, i.e. shadow rays per hit
+	private RayRecorder recorder; 		// Records every ray traced (null if not capturing)
+	private Map<Surface, Integer> surfaceIndex; 	// Index of every surface, for the recorder
+	
+	// Ray-primitive tests findIntersection() did on each thread so far
+	private static final ThreadLocal<long[]> threadTests = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
 
 	/**
 	 * Constructor.
@@ -124,7 +145,7 @@ public class Scene implements IInitable {
 		
 		if (bgTexturePath != null) {    
 			try {
-				bgTexture = ImageIO.read(new File(scenePath.getParent() + File.separator + bgTexturePath));
+				bgTexture = TextureCache.read(new File(scenePath.getParent() + File.separator + bgTexturePath));
 				wRatio = 1.0 * bgTexture.getWidth() / canvasWidth;
 				hRatio = 1.0 * bgTexture.getHeight() / canvasHeight;
 			} catch (IOException e1) {
@@ -143,23 +164,49 @@ public class Scene implements IInitable {
 	 * @return intersecting point and object
 	 */
 	public Intersection findIntersection(Ray ray) {
+		return findIntersection(ray, threadTests.get());
+	}
+	
+	/**
+	 * Shoot the ray into the scene like findIntersection(ray), and count the
+	 * ray-primitive tests it takes.
+	 * 
+	 * @param ray - the ray
+	 * @param tests - tests[0] gets the number of tests added
+	 * @return intersecting point and object
+	 */
+	private Intersection findIntersection(Ray ray, long[] tests) {
 		
 		double minDistance = Double.POSITIVE_INFINITY;
 		Surface minObject = null;
 		Point3D minPoint = null;
+		Intersection minSphere = null; 	// The closest hit, if it's on a sphere of a sphere set
 		Point3D p;
 		
 		// Iterate through all objects in the scene
-		for (Surface obj : surfaces) {
+		for (int s = 0; s < scanObjects.length; s++) {
+			
+			// Runs of spheres are tested together
+			if (scanSpheres[s] != null) {
+				Intersection hit = scanSpheres[s].closestIntersection(ray, minDistance);
+				tests[0] += scanSpheres[s].tests();
+				if (hit != null) {
+					minDistance = hit.distance;
+					minObject = hit.object;
+					minPoint = hit.point;
+					minSphere = hit;
+				}
+				continue;
+			}
+			Surface obj = scanObjects[s];
 			
 			// Find their intersection with the object
 			if (obj instanceof Disc) {
 				p = Intersection.rayDiscIntersection(ray, (Disc)obj);
-			} else if (obj instanceof Sphere) {
-				p = Intersection.raySphereIntersection(ray, (Sphere)obj);
 			} else {
 				p = Intersection.rayPolyIntersection(ray, (Poly)obj);
 			}
+			tests[0]++;
 			
 			// If no intersection happened, skip to the next object
 			if (p == null) {
@@ -167,7 +214,7 @@ public class Scene implements IInitable {
 			}
 			
 			// Calculate the distance between the beginning of the ray
-			// and the intersection point with the sphere
+			// and the intersection point with the object
 			double dist = Point3D.distance(ray.p, p);
 			
 			// If its closer than the current minimum, save it
@@ -175,6 +222,7 @@ public class Scene implements IInitable {
 				minDistance = dist;
 				minObject = obj;
 				minPoint = p;
+				minSphere = null;
 			}
 			
 		}
@@ -184,11 +232,33 @@ public class Scene implements IInitable {
 			return null;
 		}
 		
-		// Else, return the intersection
+		// Else, return the intersection (the sphere set's, if it's the closest)
+		if (minSphere != null) {
+			return minSphere;
+		}
 		return new Intersection(minObject, minPoint, minDistance);
 		
 	}
 
+	/**
+	 * Shoot a ray into the scene like findIntersection(), and count it.
+	 * 
+	 * @param ray - the ray
+	 * @param kind - the kind of the ray
+	 * @param level - recursion level of the ray (of the hit, for shadow rays)
+	 * @return intersecting point and object
+	 */
+	private Intersection trace(Ray ray, RenderStats.Kind kind, int level) {
+		long[] tests = threadTests.get();
+		long before = tests[0];
+		Intersection intersection = findIntersection(ray, tests);
+		countRays(kind, 1, intersection != null ? 1 : 0, tests[0] - before);
+		if (recorder != null) {
+			record(kind, level, ray, intersection);
+		}
+		return intersection;
+	}
+
 	/**
 	 * Calculate the color where the ray points at.
 	 * If it hits an object, calculate the color there.
@@ -208,29 +278,218 @@ public class Scene implements IInitable {
 		}
 		
 		// Find the intersection of the ray with the closest object in the scene
-		Intersection intersection = findIntersection(ray);
+		long[] tests = threadTests.get();
+		long before = tests[0];
+		Intersection intersection = trace(ray, level == 0 ? RenderStats.Kind.PRIMARY : RenderStats.Kind.REFLECTION, level);
 		
 		// No intersection, return bgColor or bgTexture
 		if (intersection == null) {
-			
-			if (bgTexture == null) {
-				
-				// If no background texture is defined, return the background color
-				return bgColor;
-				
+			countPixel(x, y, 1, tests[0] - before);
+			return calcBackgroundColor(x, y);
+		}
+		
+		// Emission, ambient, diffuse and specular factors (and the shadow rays)
+		Vec color = calcLocalColor(ray, intersection, level, null);
+		countPixel(x, y, 1 + shadowLights, tests[0] - before);
+		
+		// Add reflective factor
+		Vec reflectionColor = calcColor(reflectionRay(ray, intersection), level+1, x, y);
+		addReflectionColor(color, intersection, reflectionColor);
+		
+		return color;
+		
+	}
+	
+	/**
+	 * Calculate the colors where the rays of a packet point at, exactly as
+	 * calcColor() would for each of them.
+	 * The rays are intersected with the scene together, and so are the shadow
+	 * rays towards each light. Reflected rays stay together while they're
+	 * coherent, i.e. when all of them come off the same flat object. Otherwise
+	 * (e.g. off a sphere, or off different objects) the packet breaks up into
+	 * single rays.
+	 * 
+	 * @param packet - the rays
+	 * @param level - current recursion level
+	 * @param colors - receives the color of every ray of the packet
+	 */
+	public void calcColors(RayPacket packet, int level, Vec[] colors) {
+		
+		int n = packet.size();
+		
+		// Recursion stopping condition
+		if (level == maxRecLvl) {
+			for (int i=0; i<n; i++) {
+				colors[i] = new Vec(0, 0, 0);
+			}
+			return;
+		}
+		
+		// Find the intersections of all the rays at once
+		long tests = packetTracer.intersect(packet);
+		
+		// Rays that hit nothing get bgColor or bgTexture
+		Intersection[] intersections = new Intersection[n];
+		int hits = 0;
+		for (int i=0; i<n; i++) {
+			intersections[i] = packet.getIntersection(i);
+			if (intersections[i] == null) {
+				colors[i] = calcBackgroundColor(packet.x[i], packet.y[i]);
 			} else {
-				
-				// If background texture is defined, return the proper pixel from it
-				int rgb = bgTexture.getRGB((int)(x * wRatio), (int)(y * hRatio));
-				int red =   (rgb >> 16) & 0xFF;
-				int green = (rgb >>  8) & 0xFF;
-				int blue =  (rgb      ) & 0xFF;
-				return new Vec(red/255.0, green/255.0, blue/255.0);
-				
+				hits++;
+			}
+		}
+		countRays(level == 0 ? RenderStats.Kind.PRIMARY : RenderStats.Kind.REFLECTION, n, hits, tests);
+		countPixels(packet, tests);
+		if (recorder != null) {
+			record(level == 0 ? RenderStats.Kind.PRIMARY : RenderStats.Kind.REFLECTION, level, packet);
+		}
+		if (hits == 0) {
+			return;
+		}
+		
+		// Check shadows, one packet per light
+		boolean[][] occluded = new boolean[n][lights.size()];
+		RayPacket shadowPacket = new RayPacket(hits);
+		int l = 0;
+		for (Light light : lights) {
+			if (!(light instanceof DirLight)) { 	// Directional light doesn't cast a shadow
+				shadowPacket.clear();
+				for (int i=0; i<n; i++) {
+					if (intersections[i] != null) {
+						Vec fromIntersectionToLightSource = light.vectorToMe(intersections[i].point);
+						fromIntersectionToLightSource.normalize();
+						shadowPacket.add(intersections[i].point, fromIntersectionToLightSource, packet.x[i], packet.y[i]);
+					}
+				}
+				long shadowTests = packetTracer.intersect(shadowPacket);
+				int shadowHits = 0;
+				for (int i=0, j=0; i<n; i++) {
+					if (intersections[i] != null) {
+						Intersection lightIntersection = shadowPacket.getIntersection(j++);
+						occluded[i][l] = isOccluded(light, intersections[i].point, lightIntersection);
+						shadowHits += lightIntersection != null ? 1 : 0;
+					}
+				}
+				countRays(RenderStats.Kind.SHADOW, hits, shadowHits, shadowTests);
+				countPixels(shadowPacket, shadowTests);
+				if (recorder != null) {
+					record(RenderStats.Kind.SHADOW, level, shadowPacket);
+				}
+			}
+			l++;
+		}
+		
+		// Emission, ambient, diffuse and specular factors
+		Ray[] rays = new Ray[n];
+		for (int i=0; i<n; i++) {
+			if (intersections[i] != null) {
+				rays[i] = packet.getRay(i);
+				colors[i] = calcLocalColor(rays[i], intersections[i], level, occluded[i]);
+			}
+		}
+		
+		// Add reflective factor
+		if (hits > 1 && isCoherent(intersections)) {
+			
+			// Trace the reflected rays together
+			RayPacket reflectionPacket = new RayPacket(hits);
+			for (int i=0; i<n; i++) {
+				if (intersections[i] != null) {
+					reflectionPacket.add(reflectionRay(rays[i], intersections[i]), packet.x[i], packet.y[i]);
+				}
+			}
+			Vec[] reflectionColors = new Vec[hits];
+			calcColors(reflectionPacket, level+1, reflectionColors);
+			for (int i=0, j=0; i<n; i++) {
+				if (intersections[i] != null) {
+					addReflectionColor(colors[i], intersections[i], reflectionColors[j++]);
+				}
+			}
+			
+		} else {
+			
+			// Trace them one by one
+			for (int i=0; i<n; i++) {
+				if (intersections[i] != null) {
+					Vec reflectionColor = calcColor(reflectionRay(rays[i], intersections[i]), level+1, packet.x[i], packet.y[i]);
+					addReflectionColor(colors[i], intersections[i], reflectionColor);
+				}
 			}
 			
 		}
 		
+	}
+	
+	/**
+	 * Checks whether the rays reflected off a packet's intersections are
+	 * coherent enough to be traced together: all of them come off the same
+	 * flat object (disc or poly), so they point in similar directions.
+	 * 
+	 * @param intersections - the intersections of the packet (null if missed)
+	 * @return true if all the intersections are on the same flat object
+	 */
+	private boolean isCoherent(Intersection[] intersections) {
+		
+		Surface object = null;
+		for (Intersection intersection : intersections) {
+			if (intersection == null) {
+				continue;
+			}
+			if (object == null) {
+				object = intersection.object;
+			} else if (intersection.object != object) {
+				return false;
+			}
+		}
+		
+		// Reflections off a sphere spread out
+		return !(object instanceof Sphere) || (object instanceof Disc);
+		
+	}
+	
+	/**
+	 * Calculate the background color/texture where a ray that hits nothing
+	 * points at.
+	 * 
+	 * @param x - the x coordinate of the currently drawn pixel
+	 * @param y - the y coordinate of the currently drawn pixel
+	 * @return the background color
+	 */
+	Vec calcBackgroundColor(int x, int y) {
+		
+		if (bgTexture == null) {
+			
+			// If no background texture is defined, return the background color
+			return bgColor;
+			
+		} else {
+			
+			// If background texture is defined, return the proper pixel from it
+			int rgb = bgTexture.getRGB((int)(x * wRatio), (int)(y * hRatio));
+			int red =   (rgb >> 16) & 0xFF;
+			int green = (rgb >>  8) & 0xFF;
+			int blue =  (rgb      ) & 0xFF;
+			return new Vec(red/255.0, green/255.0, blue/255.0);
+			
+		}
+		
+	}
+	
+	/**
+	 * Calculate the color at an intersection point, without the reflective
+	 * factor: emission, ambient, and diffuse and specular for every light the
+	 * point isn't shaded from.
+	 * 
+	 * @param ray - the ray
+	 * @param intersection - the intersection of the ray with the closest object
+	 * @param level - current recursion level
+	 * @param occluded - whether the point is shaded from each light, in the
+	 * order of the lights, or null to shoot the shadow rays here
+	 * @return the color at that point
+	 */
+	Vec calcLocalColor(Ray ray, Intersection intersection, int level, boolean[] occluded) {
+		
 		// Initial color is black (0, 0, 0)
 		// I = Iemission + Iambient + Idiffuse + Ispecular + Ireflective
 		Vec color = new Vec(); 	
@@ -242,25 +501,24 @@ public class Scene implements IInitable {
 		color.add(calcAmbientColor(intersection));
 		
 		// Iterate over all the lights in the scene
+		int l = 0;
 		for (Light light : lights) {
 
 			// Check shadow
-			boolean occluded = false;
-			if (!(light instanceof DirLight)) { 	// Directional light doesn't cast a shadow
+			boolean shaded;
+			if (occluded != null) {
+				shaded = occluded[l];
+			} else if (!(light instanceof DirLight)) { 	// Directional light doesn't cast a shadow
 				Vec fromIntersectionToLightSource = light.vectorToMe(intersection.point);
 				Ray shadowRay = new Ray(intersection.point, fromIntersectionToLightSource);
-				Intersection lightIntersection = findIntersection(shadowRay);
-				if (lightIntersection != null) {
-					double distanceToLightSource = light.distanceToMe(intersection.point);
-					double distanceToObject = lightIntersection.distance;
-					if (distanceToObject > Intersection.TOLERANCE && distanceToLightSource > distanceToObject + Intersection.TOLERANCE) {
-						occluded = true;
-					}
-				}
+				shaded = isOccluded(light, intersection.point, trace(shadowRay, RenderStats.Kind.SHADOW, level));
+			} else {
+				shaded = false;
 			}
+			l++;
 			
 			// If point is not shaded
-			if (!occluded) {
+			if (!shaded) {
 			
 				// Add diffuse factor
 				color.add(calcDiffuseColor(intersection, light));
@@ -271,26 +529,55 @@ public class Scene implements IInitable {
 			}
 			
 		}
-
-		// Add reflective factor
-		Vec normal = intersection.object.getNormalAtPoint(intersection.point);
-		Ray reflectionRay = new Ray(intersection.point, ray.v.reflect(normal));
-		double KS = intersection.object.getReflectanceCoefficient();
-		Vec reflectionColor = calcColor(reflectionRay, level+1, x, y);
-		color.add(Vec.scale(KS, reflectionColor));
 		
-		// Make sure we don't overflow on color
-		if (color.x > 1) {
-			color.x = 1;
-		}
-		if (color.y > 1) {
-			color.y = 1;
-		}
-		if (color.z > 1) {
-			color.z = 1;
+		return color;
+		
+	}
+	
+	/**
+	 * Checks whether the closest object a shadow ray hits is between the
+	 * point and the light.
+	 * 
+	 * @param light - the light
+	 * @param point - the origin of the shadow ray
+	 * @param lightIntersection - the closest intersection of the shadow ray
+	 * @return true if the point is shaded from the light
+	 */
+	boolean isOccluded(Light light, Point3D point, Intersection lightIntersection) {
+		
+		if (lightIntersection == null) {
+			return false;
 		}
+		double distanceToLightSource = light.distanceToMe(point);
+		double distanceToObject = lightIntersection.distance;
+		return distanceToObject > Intersection.TOLERANCE && distanceToLightSource > distanceToObject + Intersection.TOLERANCE;
 		
-		return color;
+	}
+	
+	/**
+	 * Construct the ray reflected at an intersection point.
+	 * 
+	 * @param ray - the ray
+	 * @param intersection - the intersection of the ray with the closest object
+	 * @return the reflected ray
+	 */
+	Ray reflectionRay(Ray ray, Intersection intersection) {
+		Vec normal = intersection.object.getNormalAtPoint(intersection.point);
+		return new Ray(intersection.point, ray.v.reflect(normal));
+	}
+	
+	/**
+	 * Add the reflective factor to the color at an intersection point. The
+	 * color may go above 1, it's clamped only when it's quantized.
+	 * 
+	 * @param color - the color at the point, without the reflective factor
+	 * @param intersection - the intersection point
+	 * @param reflectionColor - the color where the reflected ray points at
+	 */
+	void addReflectionColor(Vec color, Intersection intersection, Vec reflectionColor) {
+		
+		double KS = intersection.object.getReflectanceCoefficient();
+		color.add(Vec.scale(KS, reflectionColor));
 		
 	}
 
@@ -346,6 +633,90 @@ public class Scene implements IInitable {
 	 */
 	public void setCameraAttributes(Map<String, String> attributes) {
 		camera.init(attributes);
+		camera.prepare(canvasWidth, canvasHeight);
+	}
+	
+	/**
+	 * Prepare the surfaces for tracing: group runs of spheres into sphere
+	 * sets for findIntersection(), and get ready for packets of rays for
+	 * calcColors(). Must be called after all the objects were added.
+	 */
+	public void prepare() {
+		
+		RenderEvents.Event event = RenderEvents.SCENE_BUILD.begin();
+		List<Surface> objects = new ArrayList<Surface>();
+		List<SphereSet> spheres = new ArrayList<SphereSet>();
+		List<Sphere> run = new ArrayList<Sphere>();
+		
+		for (Surface obj : surfaces) {
+			
+			// Discs are spheres too, but not for intersections
+			if (obj instanceof Sphere && !(obj instanceof Disc)) {
+				run.add((Sphere)obj);
+				continue;
+			}
+			
+			// End of a run of spheres, keep it in its place
+			if (!run.isEmpty()) {
+				objects.add(null);
+				spheres.add(SphereSet.create(run));
+				run.clear();
+			}
+			objects.add(obj);
+			spheres.add(null);
+			
+		}
+		if (!run.isEmpty()) {
+			objects.add(null);
+			spheres.add(SphereSet.create(run));
+		}
+		
+		scanObjects = objects.toArray(new Surface[objects.size()]);
+		scanSpheres = spheres.toArray(new SphereSet[spheres.size()]);
+		packetTracer = PacketTracer.create(surfaces);
+		
+		shadowLights = 0;
+		for (Light light : lights) {
+			if (!(light instanceof DirLight)) {
+				shadowLights++;
+			}
+		}
+		
+		// Capture the rays, if asked to (-Dex3.capture)
+		recorder = RayRecorder.get();
+		if (recorder != null) {
+			surfaceIndex = new IdentityHashMap<Surface, Integer>();
+			for (Surface obj : surfaces) {
+				surfaceIndex.put(obj, surfaceIndex.size());
+			}
+		}
+		
+		if (event.isEnabled()) {
+			int sphereSets = 0;
+			for (SphereSet set : scanSpheres) {
+				sphereSets += set != null ? 1 : 0;
+			}
+			event.commit(surfaces.size(), lights.size(), sphereSets);
+		}
+		
+	}
+	
+	/**
+	 * Getter for surfaces.
+	 * 
+	 * @return all of the surfaces in the scene
+	 */
+	public List<Surface> getSurfaces() {
+		return surfaces;
+	}
+	
+	/**
+	 * Getter for camera.
+	 * 
+	 * @return camera
+	 */
+	public Camera getCamera() {
+		return camera;
 	}
 	
 	/**
@@ -456,6 +827,138 @@ public class Scene implements IInitable {
 		return camera.constructRayThroughPixel(x, y, width, height);
 	}
 	
+	/**
+	 * Count rays traced through the scene, here or by others (e.g. in bulk).
+	 * 
+	 * @param kind - the kind of the rays
+	 * @param rays - how many rays were traced
+	 * @param hits - how many of them hit something
+	 * @param tests - how many ray-primitive tests tracing them took
+	 */
+	void countRays(RenderStats.Kind kind, int rays, int hits, long tests) {
+		stats.countRays(kind, rays, hits, tests);
+		RenderEvents.countRays(rays);
+	}
+	
+	/**
+	 * Record a ray traced through the scene, and what it hit, in the capture.
+	 * 
+	 * @param kind - the kind of the ray
+	 * @param level - recursion level of the ray (of the hit, for shadow rays)
+	 * @param ray - the ray
+	 * @param intersection - its closest hit, or null
+	 */
+	void record(RenderStats.Kind kind, int level, Ray ray, Intersection intersection) {
+		recorder.record(kind, level, ray.p.x, ray.p.y, ray.p.z, ray.v.x, ray.v.y, ray.v.z,
+				intersection != null ? surfaceIndex.get(intersection.object) : -1,
+				intersection != null ? intersection.distance : 0);
+	}
+	
+	/**
+	 * Record the rays of a packet, after it was intersected, in the capture.
+	 * 
+	 * @param kind - the kind of the rays
+	 * @param level - recursion level of the rays (of the hits, for shadow rays)
+	 * @param packet - the rays
+	 */
+	void record(RenderStats.Kind kind, int level, RayPacket packet) {
+		for (int i=0; i<packet.size(); i++) {
+			Surface obj = packet.getObject(i);
+			recorder.record(kind, level, packet.ox[i], packet.oy[i], packet.oz[i],
+					packet.dx[i], packet.dy[i], packet.dz[i],
+					obj != null ? surfaceIndex.get(obj) : -1, packet.distance[i]);
+		}
+	}
+	
+	/**
+	 * Whether the rays traced are captured (-Dex3.capture).
+	 * 
+	 * @return true if they should be recorded
+	 */
+	boolean isRecording() {
+		return recorder != null;
+	}
+	
+	/**
+	 * Add the cost of rays to their pixel in the cost map, if there is one.
+	 * 
+	 * @param x - the x coordinate of the pixel
+	 * @param y - the y coordinate of the pixel
+	 * @param rays - how many rays were traced for it
+	 * @param tests - how many ray-primitive tests tracing them took
+	 */
+	void countPixel(int x, int y, int rays, long tests) {
+		if (costMap != null) {
+			costMap.addRays(x, y, rays, tests);
+		}
+	}
+	
+	/**
+	 * Add the cost of the rays of a packet to their pixels in the cost map,
+	 * if there is one. The packet kernels test every ray of the packet against
+	 * the same primitives, so every ray took an even share of the tests.
+	 * 
+	 * @param packet - the rays
+	 * @param tests - how many ray-primitive tests intersecting them took
+	 */
+	void countPixels(RayPacket packet, long tests) {
+		if (costMap != null) {
+			int n = packet.size();
+			for (int i=0; i<n; i++) {
+				costMap.addRays(packet.x[i], packet.y[i], 1, tests / n);
+			}
+		}
+	}
+	
+	/**
+	 * Keep the cost of every pixel in a cost map, from now on.
+	 * 
+	 * @param costMap - the cost map, of the size of the canvas (null to stop)
+	 */
+	public void setCostMap(CostMap costMap) {
+		this.costMap = costMap;
+		stats.setCostMap(costMap);
+	}
+	
+	/**
+	 * Getter for the cost map.
+	 * 
+	 * @return the cost map, or null if none is kept
+	 */
+	public CostMap getCostMap() {
+		return costMap;
+	}
+	
+	/**
+	 * Getter for the surfaces, ready for tracing packets of rays.
+	 * Only valid after prepare().
+	 * 
+	 * @return the packet tracer
+	 */
+	PacketTracer getPacketTracer() {
+		return packetTracer;
+	}
+	
+	/**
+	 * Number of rays traced through the scene so far, including shadow and
+	 * reflection rays. Safe to call while rendering.
+	 * 
+	 * @return ray count
+	 */
+	public long getRayCount() {
+		return stats.getRays();
+	}
+	
+	/**
+	 * Getter for the statistics of the rays traced through the scene so far.
+	 * Safe to call while rendering.
+	 * 
+	 * @return the statistics
+	 */
+	public RenderStats getStats() {
+		return stats;
+	}
+	
 	/**
 	 * Getter for superSampling.
 	 * 
@@ -465,4 +968,13 @@ public class Scene implements IInitable {
 		return superSampling;
 	}
 	
+	/**
+	 * Getter for maxRecLvl.
+	 * 
+	 * @return max number of recursive rays when calculating reflections
+	 */
+	public int maxRecursionLevel() {
+		return maxRecLvl;
+	}
+	
 }
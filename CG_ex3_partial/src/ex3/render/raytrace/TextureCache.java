@@ -0,0 +1,190 @@
+package ex3.render.raytrace;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Keeps decoded texture images in memory, so re-initializing a scene in the
+ * same JVM doesn't decode the same image file over and over again.
+ *
+ * An entry is reused as long as the file's modification time hasn't changed.
+ * Files are decoded outside the cache's lock, so different files decode in
+ * parallel; threads that want a file another thread is decoding wait for it.
+ * The cache holds at most -Dex3.textureCache.mb megabytes of pixels (256 by
+ * default), and drops the least recently used images beyond that.
+ *
+ */
+public class TextureCache {
+
+	// Most bytes of pixels to keep
+	private static final long MAX_BYTES = Long.getLong("ex3.textureCache.mb", 256) << 20;
+
+	// Decoded images by canonical file path, least recently used first
+	private static final LinkedHashMap<String, Entry> cache = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	// Bytes of pixels of the decoded images in the cache
+	private static long bytes;
+
+	// Reads served from the cache, and reads that decoded the file
+	private static long hits;
+	private static long misses;
+
+	/**
+	 * A decoded image (or one being decoded) and the modification time of
+	 * the file it came from.
+	 */
+	private static class Entry {
+		FutureTask<BufferedImage> image;
+		long lastModified;
+		long bytes; 	// 0 until decoded
+	}
+
+	/**
+	 * Returns the decoded image of the given file.
+	 * Decodes the file only if it wasn't decoded before, or if it changed since.
+	 *
+	 * @param file - the image file
+	 * @return the decoded image
+	 * @throws IOException if the file can't be read or decoded
+	 */
+	public static BufferedImage read(final File file) throws IOException {
+
+		String key = file.getCanonicalPath();
+		long lastModified = file.lastModified();
+
+		// Use the cached image if the file didn't change, or start a new entry
+		Entry entry;
+		boolean decode = false;
+		synchronized (cache) {
+			entry = cache.get(key);
+			if (entry != null && entry.lastModified == lastModified) {
+				hits++;
+			} else {
+				misses++;
+				if (entry != null) {
+					bytes -= entry.bytes;
+				}
+				entry = new Entry();
+				entry.lastModified = lastModified;
+				entry.image = new FutureTask<BufferedImage>(new Callable<BufferedImage>() {
+					public BufferedImage call() throws IOException {
+						BufferedImage image = ImageIO.read(file);
+						if (image == null) {
+							throw new IOException("Unsupported image format: " + file);
+						}
+						return image;
+					}
+				});
+				cache.put(key, entry);
+				decode = true;
+			}
+		}
+
+		// Decode the file (outside the lock), or wait for whoever does
+		if (decode) {
+			entry.image.run();
+		}
+		BufferedImage image;
+		try {
+			image = entry.image.get();
+		} catch (ExecutionException e) {
+			synchronized (cache) {
+				if (cache.get(key) == entry) {
+					cache.remove(key); 	// Try again next time
+				}
+			}
+			if (e.getCause() instanceof IOException) {
+				throw (IOException)e.getCause();
+			}
+			throw new IOException("Could not decode " + file, e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while decoding " + file);
+		}
+
+		// Count the new image, and make room for it
+		if (decode) {
+			synchronized (cache) {
+				if (cache.get(key) == entry) {
+					entry.bytes = sizeOf(image);
+					bytes += entry.bytes;
+					evict(entry);
+				}
+			}
+		}
+
+		return image;
+
+	}
+
+	/**
+	 * Drops the least recently used decoded images until the cache fits in
+	 * MAX_BYTES (or only the given entry is left). Must hold the lock.
+	 *
+	 * @param keep - the entry not to drop
+	 */
+	private static void evict(Entry keep) {
+		Iterator<Entry> entries = cache.values().iterator();
+		while (bytes > MAX_BYTES && entries.hasNext()) {
+			Entry entry = entries.next();
+			if (entry != keep && entry.image.isDone()) {
+				bytes -= entry.bytes;
+				entries.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes of the pixels of an image.
+	 *
+	 * @param image - the image
+	 * @return its size in bytes
+	 */
+	private static long sizeOf(BufferedImage image) {
+		DataBuffer data = image.getRaster().getDataBuffer();
+		return (long)data.getSize() * data.getNumBanks() * DataBuffer.getDataTypeSize(data.getDataType()) / 8;
+	}
+
+	/**
+	 * Returns the number of reads served from the cache so far.
+	 *
+	 * @return number of hits
+	 */
+	public static long getHits() {
+		synchronized (cache) {
+			return hits;
+		}
+	}
+
+	/**
+	 * Returns the number of reads that had to decode the file so far.
+	 *
+	 * @return number of misses
+	 */
+	public static long getMisses() {
+		synchronized (cache) {
+			return misses;
+		}
+	}
+
+	/**
+	 * Drops all the cached images.
+	 */
+	public static void clear() {
+		synchronized (cache) {
+			cache.clear();
+			bytes = 0;
+		}
+	}
+
+}
@@ -0,0 +1,65 @@
+package ex3.render.raytrace;
+
+import java.io.File;
+
+import math.Point3D;
+import math.Vec;
+import ex3.parser.SceneDescriptor;
+
+/**
+ * A ray tracer that traces the primary rays of a line (or span) all at once
+ * with a WavefrontTracer, stage by stage, instead of one ray after the other.
+ * Images are the same as RayTracer's. With super sampling on, pixels are
+ * still traced one by one.
+ *
+ * The queues are sorted between stages as given by -Dex3.wavefront.sort
+ * (none, direction or origin; none by default).
+ *
+ * With -Dex3.heatmap=nanos the pixels of a span share its time evenly, as
+ * they are traced together all the way.
+ */
+public class WavefrontRenderer extends RayTracer {
+
+	private static final WavefrontTracer.Sort SORT = WavefrontTracer.Sort
+			.valueOf(System.getProperty("ex3.wavefront.sort", "none")
+					.toUpperCase());
+
+	private WavefrontTracer tracer;
+
+	@Override
+	public void init(SceneDescriptor sceneDesc, int width, int height, File path) {
+		super.init(sceneDesc, width, height, path);
+		tracer = new WavefrontTracer(getScene(), SORT);
+	}
+
+	@Override
+	protected Vec[] primaryColors(int line, int from, int to) {
+
+		Scene scene = getScene();
+		if (scene.superSampling() != -1) {
+			return null;
+		}
+
+		// Generate the rays
+		int n = to - from;
+		double[] dirX = new double[n];
+		double[] dirY = new double[n];
+		double[] dirZ = new double[n];
+		scene.getCamera().rowDirections(line, from, to, dirX, dirY, dirZ, 0);
+		Point3D eye = scene.getCamera().getEye();
+
+		RayPacket rays = new RayPacket(n);
+		for (int i = 0; i < n; i++) {
+			rays.add(eye.x, eye.y, eye.z, dirX[i], dirY[i], dirZ[i], from + i, line);
+		}
+
+		// And trace them, stage by stage
+		Vec[] colors = new Vec[n];
+		long start = startTiming();
+		tracer.trace(rays, colors);
+		stopTiming(start, line, from, to);
+		return colors;
+
+	}
+
+}
@@ -0,0 +1,317 @@
+package ex3.render.raytrace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import shapes.Intersection;
+import lights.DirLight;
+import lights.Light;
+import math.Ray;
+import math.Vec;
+import ex3.render.RenderStats;
+
+/**
+ * Traces many rays at once, breadth first: instead of following every ray
+ * down its whole chain of reflections (like Scene.calcColor() does), all the
+ * rays of a level go through every stage together, one stage at a time:
+ *
+ * intersect - all the rays against the scene, one object at a time
+ * shadow - one queue of shadow rays per light, intersected the same way
+ * shade - the local color of every hit (emission, ambient, diffuse, specular)
+ * reflect - the queue of reflected rays, which is the next level
+ *
+ * The queues keep their rays in primitive arrays (see RayPacket), so every
+ * stage runs over a few long arrays. Between stages the queues may be sorted
+ * by direction or by origin, so that similar rays are processed together.
+ *
+ * Reflections are added at the end, from the deepest level up: the color of
+ * a hit is its local color, plus its reflectance times the color of its
+ * reflected ray, clamped. This is exactly what calcColor() computes on its
+ * way back from the recursion, so the colors are the same.
+ *
+ */
+public class WavefrontTracer {
+
+	/**
+	 * How to sort the queues between stages.
+	 */
+	public enum Sort {
+		NONE, 			// Keep the rays in the order they were generated
+		DIRECTION, 		// Group rays going in similar directions
+		ORIGIN 			// Group rays starting near each other
+	}
+
+	// Bits of every coordinate in sort keys
+	private static final int KEY_BITS = 10;
+
+	private Scene scene;
+	private Sort sort;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param scene - a prepared scene
+	 * @param sort - how to sort the queues
+	 */
+	public WavefrontTracer(Scene scene, Sort sort) {
+		this.scene = scene;
+		this.sort = sort;
+	}
+
+	/**
+	 * The hits of one level: their intersections, local colors, and the rays
+	 * (i.e. pixels) whose colors they add to.
+	 */
+	private static class Bounce {
+		int[] paths;
+		Intersection[] intersections;
+		Vec[] colors;
+	}
+
+	/**
+	 * Calculate the colors where the rays point at, exactly as calcColor()
+	 * would for each of them at level 0.
+	 *
+	 * @param rays - the rays (e.g. the primary rays of a line)
+	 * @param colors - receives the color of every ray
+	 */
+	public void trace(RayPacket rays, Vec[] colors) {
+
+		// Every ray of a queue adds to the color of one of the original rays
+		RayPacket queue = rays;
+		int[] paths = new int[rays.size()];
+		for (int i=0; i<paths.length; i++) {
+			paths[i] = i;
+		}
+
+		List<Bounce> bounces = new ArrayList<Bounce>();
+		for (int level=0; queue.size() > 0; level++) {
+
+			// Recursion stopping condition
+			if (level == scene.maxRecursionLevel()) {
+				for (int i=0; i<queue.size(); i++) {
+					colors[paths[i]] = new Vec(0, 0, 0);
+				}
+				break;
+			}
+
+			// Reflected rays go everywhere, group them first
+			if (level > 0) {
+				queue = sort(queue, paths);
+			}
+
+			// Intersect
+			Intersection[] intersections = intersect(queue, level == 0 ? RenderStats.Kind.PRIMARY : RenderStats.Kind.REFLECTION, level);
+
+			// Rays that hit nothing end with bgColor or bgTexture
+			int hits = 0;
+			for (int i=0; i<queue.size(); i++) {
+				if (intersections[i] == null) {
+					colors[paths[i]] = scene.calcBackgroundColor(queue.x[i], queue.y[i]);
+				} else {
+					hits++;
+				}
+			}
+			if (hits == 0) {
+				break;
+			}
+
+			Bounce bounce = new Bounce();
+			bounce.paths = new int[hits];
+			bounce.intersections = new Intersection[hits];
+			bounce.colors = new Vec[hits];
+			Ray[] hitRays = new Ray[hits];
+			int[] hitRayIndex = new int[hits];
+			for (int i=0, j=0; i<queue.size(); i++) {
+				if (intersections[i] != null) {
+					bounce.paths[j] = paths[i];
+					bounce.intersections[j] = intersections[i];
+					hitRays[j] = queue.getRay(i);
+					hitRayIndex[j++] = i;
+				}
+			}
+
+			// Shadow
+			boolean[][] occluded = shadow(bounce.intersections, queue, hitRayIndex, level);
+
+			// Shade
+			for (int j=0; j<hits; j++) {
+				bounce.colors[j] = scene.calcLocalColor(hitRays[j], bounce.intersections[j], level, occluded[j]);
+			}
+			bounces.add(bounce);
+
+			// Reflect
+			RayPacket next = new RayPacket(hits);
+			for (int j=0; j<hits; j++) {
+				int i = hitRayIndex[j];
+				next.add(scene.reflectionRay(hitRays[j], bounce.intersections[j]), queue.x[i], queue.y[i]);
+			}
+			queue = next;
+			paths = bounce.paths.clone();
+
+		}
+
+		// Add the reflections, from the deepest level up
+		for (int b=bounces.size()-1; b>=0; b--) {
+			Bounce bounce = bounces.get(b);
+			for (int j=0; j<bounce.paths.length; j++) {
+				Vec color = bounce.colors[j];
+				scene.addReflectionColor(color, bounce.intersections[j], colors[bounce.paths[j]]);
+				colors[bounce.paths[j]] = color;
+			}
+		}
+
+	}
+
+	/**
+	 * Intersect stage: finds the closest hit of every ray of a queue.
+	 *
+	 * @param queue - the rays
+	 * @param kind - the kind of the rays, to count them
+	 * @param level - recursion level of the rays (of the hits, for shadow rays)
+	 * @return the intersection of every ray, or null where it hits nothing
+	 */
+	private Intersection[] intersect(RayPacket queue, RenderStats.Kind kind, int level) {
+
+		long tests = scene.getPacketTracer().intersect(queue);
+
+		Intersection[] intersections = new Intersection[queue.size()];
+		int hits = 0;
+		for (int i=0; i<queue.size(); i++) {
+			intersections[i] = queue.getIntersection(i);
+			hits += intersections[i] != null ? 1 : 0;
+		}
+		scene.countRays(kind, queue.size(), hits, tests);
+		scene.countPixels(queue, tests);
+		if (scene.isRecording()) {
+			scene.record(kind, level, queue);
+		}
+		return intersections;
+
+	}
+
+	/**
+	 * Shadow stage: checks which hits are shaded from which light, with one
+	 * queue of shadow rays per light.
+	 *
+	 * @param intersections - the hits
+	 * @param queue - the rays that hit
+	 * @param rayIndex - the index in the queue of the ray of every hit
+	 * @param level - recursion level of the hits
+	 * @return whether every hit is shaded from each light, in the order of the lights
+	 */
+	private boolean[][] shadow(Intersection[] intersections, RayPacket queue, int[] rayIndex, int level) {
+
+		boolean[][] occluded = new boolean[intersections.length][scene.lights.size()];
+
+		int l = 0;
+		for (Light light : scene.lights) {
+
+			// Directional light doesn't cast a shadow
+			if (light instanceof DirLight) {
+				l++;
+				continue;
+			}
+
+			// Shoot from every hit towards the light
+			RayPacket shadows = new RayPacket(intersections.length);
+			int[] hit = new int[intersections.length];
+			for (int j=0; j<intersections.length; j++) {
+				Vec fromIntersectionToLightSource = light.vectorToMe(intersections[j].point);
+				fromIntersectionToLightSource.normalize();
+				shadows.add(intersections[j].point, fromIntersectionToLightSource, queue.x[rayIndex[j]], queue.y[rayIndex[j]]);
+				hit[j] = j;
+			}
+			shadows = sort(shadows, hit);
+
+			Intersection[] lightIntersections = intersect(shadows, RenderStats.Kind.SHADOW, level);
+			for (int k=0; k<shadows.size(); k++) {
+				int j = hit[k];
+				occluded[j][l] = scene.isOccluded(light, intersections[j].point, lightIntersections[k]);
+			}
+			l++;
+
+		}
+
+		return occluded;
+
+	}
+
+	/**
+	 * Sorts a queue by the sort key of its rays.
+	 *
+	 * @param queue - the rays
+	 * @param tags - values that follow the rays (e.g. their paths), sorted in place
+	 * @return the sorted queue (the queue itself if there's nothing to sort)
+	 */
+	private RayPacket sort(RayPacket queue, int[] tags) {
+
+		int n = queue.size();
+		if (sort == Sort.NONE || n < 2) {
+			return queue;
+		}
+
+		// Key in the high bits, index in the low bits
+		long[] keys = new long[n];
+		if (sort == Sort.DIRECTION) {
+			for (int i=0; i<n; i++) {
+				long octant = (queue.dx[i] < 0 ? 4 : 0) | (queue.dy[i] < 0 ? 2 : 0) | (queue.dz[i] < 0 ? 1 : 0);
+				long key = (octant << (2*KEY_BITS)) | (quantize(queue.dx[i], -1, 1) << KEY_BITS) | quantize(queue.dy[i], -1, 1);
+				keys[i] = (key << 32) | i;
+			}
+		} else {
+			double[] min = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+			double[] max = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+			for (int i=0; i<n; i++) {
+				min[0] = Math.min(min[0], queue.ox[i]);
+				min[1] = Math.min(min[1], queue.oy[i]);
+				min[2] = Math.min(min[2], queue.oz[i]);
+				max[0] = Math.max(max[0], queue.ox[i]);
+				max[1] = Math.max(max[1], queue.oy[i]);
+				max[2] = Math.max(max[2], queue.oz[i]);
+			}
+			for (int i=0; i<n; i++) {
+				long key = morton(quantize(queue.ox[i], min[0], max[0]), quantize(queue.oy[i], min[1], max[1]), quantize(queue.oz[i], min[2], max[2]));
+				keys[i] = (key << 32) | i;
+			}
+		}
+		Arrays.sort(keys);
+
+		// Move the rays and the tags to their places
+		RayPacket sorted = new RayPacket(n);
+		int[] sortedTags = new int[n];
+		for (int k=0; k<n; k++) {
+			int i = (int)keys[k];
+			sorted.add(queue.ox[i], queue.oy[i], queue.oz[i], queue.dx[i], queue.dy[i], queue.dz[i], queue.x[i], queue.y[i]);
+			sortedTags[k] = tags[i];
+		}
+		System.arraycopy(sortedTags, 0, tags, 0, n);
+		return sorted;
+
+	}
+
+	/**
+	 * Maps a value of a range to an integer of KEY_BITS bits.
+	 */
+	private static long quantize(double value, double min, double max) {
+		double scale = max > min ? ((1 << KEY_BITS) - 1) / (max - min) : 0;
+		long q = (long)((value - min) * scale);
+		return Math.max(0, Math.min((1 << KEY_BITS) - 1, q));
+	}
+
+	/**
+	 * Interleaves the bits of three coordinates, so that points close to each
+	 * other in space get keys close to each other.
+	 */
+	private static long morton(long x, long y, long z) {
+		long key = 0;
+		for (int bit=0; bit<KEY_BITS; bit++) {
+			key |= ((x >> bit) & 1) << (3*bit + 2);
+			key |= ((y >> bit) & 1) << (3*bit + 1);
+			key |= ((z >> bit) & 1) << (3*bit);
+		}
+		return key;
+	}
+
+}
@@ -22,6 +22,22 @@ public class Ray {
 		v.normalize();
 	}
 	
+	/**
+	 * Constructs a new ray, with a direction that may already be normalized.
+	 * 
+	 * @param p - point of origin
+	 * @param v - ray direction
+	 * @param normalize - false if v is already of unit length
+	 */
+	public Ray(Point3D p, Vec v, boolean normalize) {
+		this.p = p;
+		this.v = v;
+		
+		if (normalize) {
+			v.normalize();
+		}
+	}
+	
 	/**
 	 * Returns a string representation of the ray.
 	 */
@@ -0,0 +1,87 @@
+package math;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+
+/**
+ * Finds out whether the kernels written with the Vector API (the simd source
+ * folder, compiled with --add-modules jdk.incubator.vector) can be used, and
+ * creates them.
+ *
+ * They can be used when the JVM runs with --add-modules jdk.incubator.vector
+ * and the simd classes were compiled in. Otherwise the scalar kernels are used.
+ * The number of lanes is set with -Dex3.simd=auto (the widest the CPU has, up
+ * to 8, the default), 4, 8 or off; other values are warned about and taken as
+ * auto. It's the same for all the kernels of a JVM: the Vector API only
+ * compiles to vector instructions when the shape of the vectors is a constant.
+ *
+ */
+public class Simd {
+
+	// Lanes of the vector kernels, or 0 if they can't be used
+	public static final int LANES = lanes(System.getProperty("ex3.simd", "auto"));
+
+	/**
+	 * Whether the vector kernels can be used.
+	 *
+	 * @return true if they can
+	 */
+	public static boolean isAvailable() {
+		return LANES > 0;
+	}
+
+	/**
+	 * Creates a vector kernel, with LANES lanes.
+	 *
+	 * @param className - the name of its class (in the simd source folder)
+	 * @param objects - the objects to intersect, passed to its constructor
+	 * @return the kernel, or null if vector kernels can't be used
+	 */
+	public static Object create(String className, List<?> objects) {
+		if (!isAvailable()) {
+			return null;
+		}
+		try {
+			return Class.forName(className).getConstructor(List.class).newInstance(objects);
+		} catch (ClassNotFoundException e) {
+			return null; 	// The simd source folder wasn't compiled in
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * The number of lanes to use, for a setting of -Dex3.simd.
+	 */
+	private static int lanes(String setting) {
+
+		// A typo shouldn't keep the tracers from loading
+		if (!setting.matches("auto|off|4|8")) {
+			System.err.println("Unknown -Dex3.simd=" + setting + " (expected auto, off, 4 or 8), using auto");
+			setting = "auto";
+		}
+
+		if (setting.equals("off")) {
+			return 0;
+		}
+
+		// The module is only there if the JVM was asked to add it
+		int preferred;
+		try {
+			Object species = Class.forName("jdk.incubator.vector.DoubleVector").getField("SPECIES_PREFERRED").get(null);
+			preferred = (Integer)Class.forName("jdk.incubator.vector.VectorSpecies").getMethod("length").invoke(species);
+		} catch (ReflectiveOperationException e) {
+			return 0;
+		} catch (LinkageError e) {
+			return 0;
+		}
+
+		// Narrower vectors than the CPU has are fine, wider ones would be emulated
+		int lanes = setting.equals("auto") ? Math.min(preferred, 8) : Integer.parseInt(setting);
+		return lanes >= 4 && lanes <= preferred ? lanes : 0;
+
+	}
+
+}
@@ -0,0 +1,186 @@
+package shapes;
+
+import java.util.List;
+
+import math.Point3D;
+import math.Ray;
+import math.Simd;
+
+/**
+ * A set of spheres, ready to be intersected with a ray all together.
+ *
+ * The centers and radii are kept as structure of arrays, and the spheres are
+ * tested in blocks of BLOCK: a first pass over the block only computes the
+ * discriminants (a few multiplications per sphere, no branches), and only the
+ * spheres the ray can hit go through the rest of the algorithm. Most spheres
+ * of a scene miss most rays, so most of them cost only the first pass.
+ *
+ * The arithmetic is that of Intersection.raySphereIntersection(), and the
+ * spheres are tested in order, so the closest hit is exactly the one a loop
+ * over the spheres would find.
+ *
+ * VectorSphereSet (in the simd source folder) does the same with the Vector
+ * API, testing 4 or 8 spheres at a time; create() picks it when it can be
+ * used (see Simd).
+ *
+ */
+public class SphereSet {
+
+	public static final int BLOCK = 8; 		// Spheres tested together
+
+	Sphere[] spheres; 						// The spheres
+	double[] cx, cy, cz; 					// Their centers
+	double[] r2; 							// Their squared radii
+
+	/**
+	 * Creates a sphere set, tested with vector instructions if they can be
+	 * used, or in scalar blocks otherwise.
+	 *
+	 * @param spheres - the spheres, in the order to test them
+	 * @return the sphere set
+	 */
+	public static SphereSet create(List<Sphere> spheres) {
+		SphereSet set = (SphereSet)Simd.create("shapes.VectorSphereSet", spheres);
+		return set != null ? set : new SphereSet(spheres);
+	}
+
+	/**
+	 * Constructor, for testing in scalar blocks.
+	 *
+	 * @param spheres - the spheres, in the order to test them
+	 */
+	public SphereSet(List<Sphere> spheres) {
+
+		int n = spheres.size();
+		this.spheres = spheres.toArray(new Sphere[n]);
+		cx = new double[n];
+		cy = new double[n];
+		cz = new double[n];
+		r2 = new double[n];
+
+		for (int i = 0; i < n; i++) {
+			Sphere sphere = this.spheres[i];
+			cx[i] = sphere.getCenter().x;
+			cy[i] = sphere.getCenter().y;
+			cz[i] = sphere.getCenter().z;
+			r2[i] = Math.pow(sphere.getRadius(), 2);
+		}
+
+	}
+
+	/**
+	 * Finds the closest intersection of a ray with the spheres, if it's closer
+	 * than a given distance (e.g. the closest intersection with other objects
+	 * so far).
+	 *
+	 * Allocates nothing but the intersection it returns.
+	 *
+	 * @param ray - the ray
+	 * @param minDistance - the distance to beat
+	 * @return the intersection, or null if no sphere is hit closer than minDistance
+	 */
+	public Intersection closestIntersection(Ray ray, double minDistance) {
+
+		double ox = ray.p.x, oy = ray.p.y, oz = ray.p.z;
+		double vx = ray.v.x, vy = ray.v.y, vz = ray.v.z;
+		int closest = -1;
+		double closestX = 0, closestY = 0, closestZ = 0;
+
+		for (int start = 0; start < spheres.length; start += BLOCK) {
+
+			int end = Math.min(spheres.length, start + BLOCK);
+
+			// First pass: which spheres of the block the ray's line hits
+			int candidates = 0;
+			for (int i = start; i < end; i++) {
+				double wx = ox - cx[i];
+				double wy = oy - cy[i];
+				double wz = oz - cz[i];
+				double b = 2 * (vx*wx + vy*wy + vz*wz);
+				double c = (wx*wx + wy*wy + wz*wz) - r2[i];
+				if (!(b * b - 4.0 * c < 0.0)) {
+					candidates |= 1 << (i - start);
+				}
+			}
+
+			// Second pass: the intersection points of those
+			while (candidates != 0) {
+
+				int i = start + Integer.numberOfTrailingZeros(candidates);
+				candidates &= candidates - 1;
+
+				double wx = ox - cx[i];
+				double wy = oy - cy[i];
+				double wz = oz - cz[i];
+				double b = 2 * (vx*wx + vy*wy + vz*wz);
+				double c = (wx*wx + wy*wy + wz*wz) - r2[i];
+				double d = Math.sqrt(b * b - 4.0 * c);
+
+				// Take the closest t in front of the origin
+				double t1 = +(-b + d) / 2.0;
+				double t2 = +(-b - d) / 2.0;
+				double t;
+				if (t1 <= 0 && t2 <= 0) {
+					continue;
+				} else if (t1 > 0 && t2 <= 0) {
+					t = t1;
+				} else if (t2 > 0 && t1 <= 0) {
+					t = t2;
+				} else {
+					t = Math.min(t1, t2);
+				}
+
+				// Keep it if it's the closest so far
+				double px = ox + vx*t;
+				double py = oy + vy*t;
+				double pz = oz + vz*t;
+				double dist = Math.sqrt(Math.pow(ox - px, 2) + Math.pow(oy - py, 2) + Math.pow(oz - pz, 2));
+				if ((dist < minDistance) && (dist > Intersection.TOLERANCE)) {
+					minDistance = dist;
+					closest = i;
+					closestX = px;
+					closestY = py;
+					closestZ = pz;
+				}
+
+			}
+		}
+
+		if (closest == -1) {
+			return null;
+		}
+		return new Intersection(spheres[closest], new Point3D(closestX, closestY, closestZ), minDistance);
+
+	}
+
+	/**
+	 * Getter for a sphere.
+	 *
+	 * @param i - the sphere number
+	 * @return the sphere
+	 */
+	public Sphere get(int i) {
+		return spheres[i];
+	}
+
+	/**
+	 * Getter for size.
+	 *
+	 * @return how many spheres the set has
+	 */
+	public int size() {
+		return spheres.length;
+	}
+
+	/**
+	 * Number of spheres closestIntersection() tests a ray against: all of
+	 * them, in the first pass, and the padding of the last vector of
+	 * VectorSphereSet.
+	 *
+	 * @return the number of ray-sphere tests per ray
+	 */
+	public int tests() {
+		return cx.length;
+	}
+
+}